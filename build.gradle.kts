@@ -21,6 +21,8 @@ dependencies {
     // IntelliJ Platform
     intellijPlatform {
         intellijIdeaCommunity("2023.1.5")
+        bundledPlugin("com.intellij.java")
+        bundledPlugin("org.jetbrains.kotlin")
         pluginVerifier()
         zipSigner()
         instrumentationTools()
@@ -37,6 +39,10 @@ dependencies {
     // Testing
     testImplementation(libs.junit)
     testImplementation("org.mockito:mockito-core:5.1.1")
+
+    // Benchmarks, kept in the test source set
+    testImplementation(libs.jmh.core)
+    testAnnotationProcessor(libs.jmh.generator.annprocess)
 }
 
 // Set the JVM language level used to build the project. Use Java 17 for compatibility.
@@ -117,6 +123,15 @@ tasks {
             events("passed", "skipped", "failed")
         }
     }
+
+    // Runs JMH benchmarks from the test source set, e.g. ./gradlew benchmark -Pbenchmark=RequestBodyWriterBenchmark
+    register<JavaExec>("benchmark") {
+        dependsOn(testClasses)
+        classpath = sourceSets.test.get().runtimeClasspath
+        mainClass = "org.openjdk.jmh.Main"
+        args(providers.gradleProperty("benchmark").getOrElse(".*Benchmark"))
+        providers.gradleProperty("profiler").orNull?.let { args("-prof", it) }
+    }
 }
 
 // Configure changelog plugin
@@ -11,8 +11,13 @@ import com.intellij.openapi.util.TextRange;
 import com.intellij.psi.PsiFile;
 import com.harmless004.aicopilot.services.AIService;
 import com.harmless004.aicopilot.services.CodeContextAnalyzer;
+import com.harmless004.aicopilot.services.CompletionRequest;
+import com.harmless004.aicopilot.services.EditorRequestTracker;
+import com.harmless004.aicopilot.services.SpeculativePrefetcher;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Action to manually trigger AI completion when the user presses Ctrl+Alt+Space
  */
@@ -51,29 +56,55 @@ public class TriggerCompletionAction extends AnAction {
     }
 
     private void triggerAICompletion(Project project, Editor editor, PsiFile psiFile) {
-        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+        int offset = editor.getCaretModel().getOffset();
+
+        // Document and PSI are read in a read action, as anywhere off the EDT
+        ApplicationManager.getApplication().executeOnPooledThread(() -> ApplicationManager.getApplication().runReadAction(() -> {
             try {
-                int offset = editor.getCaretModel().getOffset();
+                if (editor.isDisposed() || !psiFile.isValid() || offset > editor.getDocument().getTextLength()) {
+                    return;
+                }
 
-                // Extract context
                 CodeContextAnalyzer analyzer = new CodeContextAnalyzer();
+                AIService aiService = ApplicationManager.getApplication().getService(AIService.class);
+
+                // Reuse an earlier suggestion the user is already typing through
+                String stableContextKey = analyzer.extractStableContextKey(editor, offset);
+                String linePrefix = getLinePrefix(editor, offset);
+                String continuation = aiService.getPrefixContinuation(stableContextKey, linePrefix);
+                if (continuation != null) {
+                    ApplicationManager.getApplication().invokeLater(() -> insertSuggestion(project, editor, continuation, offset));
+                    return;
+                }
+
+                // Extract context
                 String context = analyzer.extractContext(psiFile, editor, offset);
 
                 // Get current line
                 String currentLine = getCurrentLine(editor, offset);
 
-                // Get AI completion
-                AIService aiService = ApplicationManager.getApplication().getService(AIService.class);
-                aiService.getCompletion(context, currentLine)
+                // Get AI completion; moving the caret or editing cancels it
+                CompletionRequest request = new CompletionRequest(context, currentLine)
+                        .withLinePrefix(stableContextKey, linePrefix)
+                        .withEditor(editor)
+                        .withPriority(CompletionRequest.Priority.MANUAL);
+                CompletableFuture<String> aiResponse = aiService.getCompletion(request);
+                EditorRequestTracker.getInstance().track(editor, aiResponse);
+
+                aiResponse
                         .thenAccept(suggestion -> {
                             if (suggestion != null && !suggestion.trim().isEmpty()) {
                                 // Insert suggestion at cursor position
                                 ApplicationManager.getApplication().invokeLater(() -> {
-                                    insertSuggestion(editor, suggestion, offset);
+                                    insertSuggestion(project, editor, suggestion, offset);
                                 });
                             }
                         })
                         .exceptionally(throwable -> {
+                            if (aiResponse.isCancelled()) {
+                                return null; // Superseded by further editing
+                            }
+
                             // Handle error
                             ApplicationManager.getApplication().invokeLater(() -> {
                                 showErrorMessage(project, "AI completion failed: " + throwable.getMessage());
@@ -86,7 +117,7 @@ public class TriggerCompletionAction extends AnAction {
                     showErrorMessage(project, "Error triggering AI completion: " + ex.getMessage());
                 });
             }
-        });
+        }));
     }
 
     private String getCurrentLine(Editor editor, int offset) {
@@ -98,11 +129,19 @@ public class TriggerCompletionAction extends AnAction {
         return document.getText(new TextRange(lineStartOffset, lineEndOffset));
     }
 
-    private void insertSuggestion(Editor editor, String suggestion, int offset) {
+    private String getLinePrefix(Editor editor, int offset) {
+        Document document = editor.getDocument();
+        int lineStartOffset = document.getLineStartOffset(document.getLineNumber(offset));
+
+        return document.getText(new TextRange(lineStartOffset, offset));
+    }
+
+    private void insertSuggestion(Project project, Editor editor, String suggestion, int offset) {
         ApplicationManager.getApplication().runWriteAction(() -> {
             editor.getDocument().insertString(offset, suggestion);
             editor.getCaretModel().moveToOffset(offset + suggestion.length());
         });
+        SpeculativePrefetcher.getInstance().onSuggestionAccepted(project, editor);
     }
 
     private void showConfigurationMessage(Project project) {
@@ -7,16 +7,25 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.util.ProcessingContext;
 import com.harmless004.aicopilot.services.AIService;
 import com.harmless004.aicopilot.services.CodeContextAnalyzer;
+import com.harmless004.aicopilot.services.CompletionRequest;
+import com.harmless004.aicopilot.services.EditorRequestTracker;
+import com.harmless004.aicopilot.services.SpeculativePrefetcher;
+import com.harmless004.aicopilot.settings.AICopilotSettings;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Main completion provider that integrates AI-powered code suggestions
@@ -27,6 +36,9 @@ public class AICompletionProvider extends CompletionProvider<CompletionParameter
     private static final Logger LOG = Logger.getInstance(AICompletionProvider.class);
     private static final int MAX_COMPLETION_TIME_MS = 3000; // 3 second timeout
     private static final int MIN_TRIGGER_LENGTH = 3; // Minimum characters to trigger
+    private static final long CANCEL_CHECK_INTERVAL_MS = 20; // How often to poll for cancellation
+    private static final int SUFFIX_LINES = 2; // Lines after the caret used to rank alternatives
+    private static final double AI_PRIORITY = 1000;
 
     private final AIService aiService;
     private final CodeContextAnalyzer contextAnalyzer;
@@ -52,33 +64,90 @@ public class AICompletionProvider extends CompletionProvider<CompletionParameter
             Editor editor = parameters.getEditor();
             int offset = parameters.getOffset();
 
+            // Typing through an earlier suggestion needs no new request
+            String stableContextKey = contextAnalyzer.extractStableContextKey(editor, offset);
+            String linePrefix = getLinePrefix(editor, offset);
+            String continuation = aiService.getPrefixContinuation(stableContextKey, linePrefix);
+            if (continuation != null) {
+                addAISuggestion(result, continuation, AI_PRIORITY);
+                return;
+            }
+
             String codeContext = contextAnalyzer.extractContext(file, editor, offset);
             String currentLine = getCurrentLine(editor, offset);
 
             // Log for debugging
             LOG.info("AI Completion triggered for context: " + codeContext.substring(0, Math.min(100, codeContext.length())));
 
-            // Make async AI request
-            CompletableFuture<String> aiResponse = aiService.getCompletion(codeContext, currentLine);
+            // Make async AI request for all alternatives at once; it is cancelled as soon as the
+            // caret or document changes
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_COMPLETION_TIME_MS);
+            AICopilotSettings settings = AICopilotSettings.getInstance();
+            CompletionRequest request = new CompletionRequest(codeContext, currentLine)
+                    .withLinePrefix(stableContextKey, linePrefix)
+                    .withDeadline(deadline)
+                    .withEditor(editor)
+                    .withCandidates(settings != null ? settings.getMaxCandidates() : 1, getCodeAfterCursor(editor, offset))
+                    .withPriority(isInComment(parameters.getPosition())
+                            ? CompletionRequest.Priority.COMMENT_TO_CODE
+                            : CompletionRequest.Priority.AUTOMATIC);
+            CompletableFuture<List<String>> aiResponse = aiService.getCompletionCandidates(request);
+            EditorRequestTracker.getInstance().track(editor, aiResponse);
 
             // Handle response with timeout
             try {
-                String suggestion = aiResponse.get(MAX_COMPLETION_TIME_MS, TimeUnit.MILLISECONDS);
+                List<String> suggestions = awaitSuggestion(aiResponse, deadline);
 
-                if (suggestion != null && !suggestion.trim().isEmpty()) {
-                    addAISuggestion(result, suggestion, parameters);
+                // Already ranked best first; lower priorities keep that order in the popup
+                for (int i = 0; i < suggestions.size(); i++) {
+                    addAISuggestion(result, suggestions.get(i), AI_PRIORITY - i);
                 }
 
+            } catch (ProcessCanceledException e) {
+                throw e;
             } catch (Exception e) {
                 LOG.warn("AI completion request failed or timed out", e);
                 // Gracefully handle timeout - don't block user
             }
 
+        } catch (ProcessCanceledException e) {
+            // Completion was cancelled because the user kept typing
+            throw e;
         } catch (Exception e) {
             LOG.error("Error in AI completion provider", e);
         }
     }
 
+    /**
+     * Waits for the AI response while honouring completion cancellation.
+     * The request is cancelled when completion is cancelled or the time budget runs out,
+     * so the HTTP exchange does not outlive its only consumer.
+     */
+    private <T> T awaitSuggestion(CompletableFuture<T> aiResponse, long deadline)
+            throws ExecutionException, InterruptedException, TimeoutException {
+        try {
+            while (true) {
+                ProgressManager.checkCanceled();
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException("AI completion timed out after " + MAX_COMPLETION_TIME_MS + "ms");
+                }
+
+                try {
+                    return aiResponse.get(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(CANCEL_CHECK_INTERVAL_MS)),
+                            TimeUnit.NANOSECONDS);
+                } catch (TimeoutException ignored) {
+                    // Poll again so a cancelled completion is noticed quickly
+                }
+            }
+        } finally {
+            if (!aiResponse.isDone()) {
+                aiResponse.cancel(true);
+            }
+        }
+    }
+
     /**
      * Determines if AI completion should be triggered based on context
      */
@@ -165,10 +234,30 @@ public class AICompletionProvider extends CompletionProvider<CompletionParameter
         return document.getText(new TextRange(lineStartOffset, lineEndOffset));
     }
 
+    /**
+     * Gets the text between the start of the current line and the cursor
+     */
+    private String getLinePrefix(Editor editor, int offset) {
+        Document document = editor.getDocument();
+        int lineStartOffset = document.getLineStartOffset(document.getLineNumber(offset));
+
+        return document.getText(new TextRange(lineStartOffset, offset));
+    }
+
+    /**
+     * Gets the rest of the current line and the next few lines after the cursor
+     */
+    private String getCodeAfterCursor(Editor editor, int offset) {
+        Document document = editor.getDocument();
+        int lastLine = Math.min(document.getLineCount() - 1, document.getLineNumber(offset) + SUFFIX_LINES);
+
+        return document.getText(new TextRange(offset, Math.max(offset, document.getLineEndOffset(lastLine))));
+    }
+
     /**
      * Adds AI suggestion to completion results
      */
-    private void addAISuggestion(CompletionResultSet result, String suggestion, CompletionParameters parameters) {
+    private void addAISuggestion(CompletionResultSet result, String suggestion, double priority) {
         // Clean and format the suggestion
         String cleanSuggestion = cleanAISuggestion(suggestion);
 
@@ -188,7 +277,7 @@ public class AICompletionProvider extends CompletionProvider<CompletionParameter
                 });
 
         // Add with high priority so it appears at top
-        result.withPrefixMatcher("").addElement(PrioritizedLookupElement.withPriority(lookupElement, 1000));
+        result.withPrefixMatcher("").addElement(PrioritizedLookupElement.withPriority(lookupElement, priority));
     }
 
     /**
@@ -236,6 +325,10 @@ public class AICompletionProvider extends CompletionProvider<CompletionParameter
         // Move cursor to end of insertion
         context.getEditor().getCaretModel().moveToOffset(startOffset + suggestion.length());
 
+        // Start on the next completion once the lookup has closed
+        context.setLaterRunnable(() ->
+                SpeculativePrefetcher.getInstance().onSuggestionAccepted(context.getProject(), context.getEditor()));
+
         LOG.info("AI suggestion inserted: " + suggestion.substring(0, Math.min(50, suggestion.length())));
     }
 }
\ No newline at end of file
@@ -1,307 +1,1373 @@
 package com.harmless004.aicopilot.services;
 
+import com.google.gson.stream.MalformedJsonException;
+import com.harmless004.aicopilot.settings.AICopilotSettings;
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Editor;
 import com.intellij.util.concurrency.AppExecutorUtil;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.net.URI;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executor;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
- * Service responsible for communicating with AI APIs (OpenAI, Claude, etc.)
- * to generate code completions.
+ * Service responsible for communicating with AI APIs (OpenAI, Claude, local models, etc.)
+ * to generate code completions. The APIs themselves are {@link CompletionBackend} extensions.
  */
 @Service
-public final class AIService {
+public final class AIService implements Disposable {
 
     private static final Logger LOG = Logger.getInstance(AIService.class);
 
     // API Configuration
-    private static final String OPENAI_API_URL = "https://api.openai.com/v1/chat/completions";
-    private static final String CLAUDE_API_URL = "https://api.anthropic.com/v1/messages";
     private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(5);
+    private static final int MAX_TOKENS = 150;
+    private static final int MAX_CANDIDATES = 5;
+    private static final String CANDIDATE_SEPARATOR = "\u0000";
+    private static final int DEFAULT_CACHE_SIZE = 100;
+    private static final Duration DEFAULT_CACHE_TTL = Duration.ofMinutes(30);
+    private static final Duration PERSISTENT_CACHE_TTL = Duration.ofDays(7);
+    private static final long LATENCY_WINDOW_MS = 5 * 60 * 1000;
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    private static final long RATE_LIMIT_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    // Manual requests have no deadline of their own; a longer back-off sheds them instead of parking a worker
+    private static final long MAX_RATE_LIMIT_WAIT_NANOS = TimeUnit.SECONDS.toNanos(3);
+    private static final int MAX_RUNNING_REQUESTS = 4;
+    private static final int MAX_QUEUED_REQUESTS = 32;
+    // A hedged request waits on its thread while two attempts run on others
+    private static final int MAX_WORKER_THREADS = 3 * MAX_RUNNING_REQUESTS;
+    // Requests already queue in the scheduler; this only absorbs short bursts of attempts
+    private static final int MAX_QUEUED_TASKS = MAX_WORKER_THREADS;
 
     // Threading and caching
-    private final Executor aiExecutor = AppExecutorUtil.getAppExecutorService();
-    private final ConcurrentHashMap<String, String> responseCache = new ConcurrentHashMap<>();
+    private final ExecutorService aiExecutor = createExecutor();
+    private final CompletionCache responseCache = new CompletionCache(DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL);
+    private final PrefixCompletionCache prefixCache = new PrefixCompletionCache();
+    // Ranked alternatives of recent multi-candidate responses, joined by CANDIDATE_SEPARATOR
+    private final CompletionCache candidateSets = new CompletionCache(DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL);
+    private final ConcurrentHashMap<String, InFlightCompletion> inFlightRequests = new ConcurrentHashMap<>();
+    private final CompletionMetrics metrics = new CompletionMetrics();
+    private final CompletionScheduler scheduler = new CompletionScheduler(aiExecutor, MAX_RUNNING_REQUESTS,
+            MAX_QUEUED_REQUESTS, metrics, LATENCY_WINDOW_MS);
+    private final Map<Editor, CompletableFuture<String>> latestByEditor = new ConcurrentHashMap<>();
+    private final Map<String, ProviderLatency> providerLatency = new ConcurrentHashMap<>();
+    private final Map<String, ProviderRateLimiter> rateLimiters = new ConcurrentHashMap<>();
+    private final Map<String, ProviderCircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private final HedgeBudget hedgeBudget = new HedgeBudget();
+    // Published only once open; opening and resizing run one after another on the AI executor
+    private volatile PersistentCompletionStore persistentStore;
+    private long persistentStoreCapacity;
+    private CompletableFuture<Void> persistentStoreTask = CompletableFuture.completedFuture(null);
     private final HttpClient httpClient;
+    private volatile boolean disposed;
 
     public AIService() {
+        // Connect timeout is client-wide; the derived per-request timeout also bounds connection setup
         this.httpClient = HttpClient.newBuilder()
                 .connectTimeout(REQUEST_TIMEOUT)
                 .build();
+
+        // Map and replay the disk cache tier in the background; lookups miss until it is ready
+        getPersistentStore();
+    }
+
+    /**
+     * Creates the executor for completion work, sized independently of the shared IDE pool.
+     * Uses virtual threads where the runtime supports them, so that waiting on the network parks
+     * instead of pinning a platform thread; otherwise a small bounded pool of its own.
+     */
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return createBoundedExecutor(MAX_WORKER_THREADS, MAX_QUEUED_TASKS);
+        }
     }
 
     /**
-     * Main method to get AI completion for given code context
+     * Fixed pool of daemon threads with a bounded queue. Work beyond the queue is rejected with
+     * {@link RejectedExecutionException}, which every submitter handles by shedding the request.
+     */
+    static ExecutorService createBoundedExecutor(int threads, int queueCapacity) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "AI Copilot completion " + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Main method to get AI completion for given code context.
+     * Returns the aggregated text of the streamed response.
      */
     public CompletableFuture<String> getCompletion(@NotNull String codeContext, @NotNull String currentLine) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                // Check cache first
-                String cacheKey = generateCacheKey(codeContext, currentLine);
-                String cachedResponse = responseCache.get(cacheKey);
-                if (cachedResponse != null) {
-                    LOG.info("Using cached AI response");
-                    return cachedResponse;
-                }
+        return getCompletion(new CompletionRequest(codeContext, currentLine));
+    }
 
-                // Generate prompt
-                String prompt = buildPrompt(codeContext, currentLine);
+    /**
+     * Gets AI completion for a fully described request
+     */
+    public CompletableFuture<String> getCompletion(@NotNull CompletionRequest request) {
+        return getStreamingCompletion(request, token -> { });
+    }
 
-                // Make API call based on configured provider
-                AIProvider provider = getConfiguredProvider();
-                String response;
+    /**
+     * Gets the ranked alternatives for a request made {@link CompletionRequest#withCandidates with candidates},
+     * best first. Falls back to the single best completion when the alternatives are no longer
+     * known, for example after a cache hit on a single-candidate response; never makes more than
+     * the one network call of {@link #getCompletion}.
+     */
+    public CompletableFuture<List<String>> getCompletionCandidates(@NotNull CompletionRequest request) {
+        String cacheKey = generateCacheKey(request.getCodeContext(), request.getCurrentLine());
+        CompletableFuture<String> best = getCompletion(request);
+        CompletableFuture<List<String>> candidates = best.thenApply(response -> lookupCandidates(cacheKey, response));
 
-                if (provider == AIProvider.OPENAI) {
-                    response = callOpenAI(prompt);
-                } else {
-                    response = callClaude(prompt);
-                }
+        // Derived futures do not propagate cancellation on their own
+        candidates.whenComplete((result, error) -> {
+            if (candidates.isCancelled()) {
+                best.cancel(true);
+            }
+        });
+        return candidates;
+    }
 
-                // Cache successful response
-                if (response != null && !response.trim().isEmpty()) {
-                    responseCache.put(cacheKey, response);
+    private List<String> lookupCandidates(String cacheKey, @Nullable String best) {
+        if (best == null || best.trim().isEmpty()) {
+            return List.of();
+        }
 
-                    // Limit cache size to prevent memory issues
-                    if (responseCache.size() > 100) {
-                        responseCache.clear();
-                    }
+        String joined = candidateSets.get(cacheKey);
+        if (joined != null) {
+            List<String> candidates = List.of(joined.split(CANDIDATE_SEPARATOR));
+            if (candidates.get(0).equals(best)) {
+                return candidates;
+            }
+        }
+        return List.of(best); // Alternatives belong to an older response
+    }
+
+    /**
+     * Gets AI completion and hands each text delta to the consumer as soon as it arrives.
+     */
+    public CompletableFuture<String> getStreamingCompletion(@NotNull String codeContext,
+                                                            @NotNull String currentLine,
+                                                            @NotNull Consumer<String> tokenConsumer) {
+        return getStreamingCompletion(new CompletionRequest(codeContext, currentLine), tokenConsumer);
+    }
+
+    /**
+     * Gets AI completion and hands each text delta to the consumer as soon as it arrives.
+     * The consumer runs on the AI executor thread, or on the calling thread for cached results;
+     * the future completes with the full text.
+     * Identical concurrent requests share one network call. Cancelling the returned future
+     * aborts the underlying HTTP exchange once no other caller is waiting for it.
+     */
+    public CompletableFuture<String> getStreamingCompletion(@NotNull CompletionRequest request,
+                                                            @NotNull Consumer<String> tokenConsumer) {
+        if (disposed) {
+            return CompletableFuture.completedFuture(null);
+        }
+        metrics.recordRequest();
+
+        // Check cache first
+        String cacheKey = generateCacheKey(request.getCodeContext(), request.getCurrentLine());
+        String cachedResponse = isCachingEnabled() ? lookupCache(cacheKey) : null;
+        if (cachedResponse != null) {
+            LOG.info("Using cached AI response");
+            metrics.recordCacheHit();
+            tokenConsumer.accept(cachedResponse);
+            rememberForPrefix(request, cachedResponse);
+            return CompletableFuture.completedFuture(cachedResponse);
+        }
+
+        CompletableFuture<String> caller = joinOrStartRequest(cacheKey, request, tokenConsumer);
+        caller.thenAccept(response -> rememberForPrefix(request, response));
+        supersedeEarlierRequest(request, caller);
+        return caller;
+    }
+
+    /**
+     * Cancels the previous pending request of the same editor, so only the newest one survives
+     */
+    private void supersedeEarlierRequest(CompletionRequest request, CompletableFuture<String> caller) {
+        Editor editor = request.getEditor();
+        if (editor == null) {
+            return;
+        }
+
+        CompletableFuture<String> previous = latestByEditor.put(editor, caller);
+        caller.whenComplete((result, error) -> latestByEditor.remove(editor, caller));
+        if (previous != null && previous != caller && previous.cancel(true)) {
+            metrics.recordSuperseded();
+        }
+    }
+
+    /**
+     * Returns the rest of an earlier suggestion that the user is typing through, without any
+     * network call, or null if the typed line prefix does not match one.
+     */
+    @Nullable
+    public String getPrefixContinuation(@NotNull String stableContextKey, @NotNull String linePrefix) {
+        String continuation = prefixCache.lookup(stableContextKey, linePrefix);
+        if (continuation != null) {
+            metrics.recordPrefixHit();
+        }
+        return continuation;
+    }
+
+    /**
+     * Joins an identical request that is already on the wire, or starts a new one
+     */
+    private CompletableFuture<String> joinOrStartRequest(String cacheKey, CompletionRequest request,
+                                                         Consumer<String> tokenConsumer) {
+        while (true) {
+            InFlightCompletion flight = inFlightRequests.get(cacheKey);
+            if (flight == null) {
+                InFlightCompletion created = new InFlightCompletion();
+                flight = inFlightRequests.putIfAbsent(cacheKey, created);
+                if (flight == null) {
+                    CompletableFuture<String> caller = created.subscribe(tokenConsumer);
+                    startRequest(cacheKey, request, created);
+                    return caller;
                 }
+            }
 
-                return response;
+            CompletableFuture<String> caller = flight.subscribe(tokenConsumer);
+            if (caller != null) {
+                metrics.recordCoalesced();
+                return caller;
+            }
 
+            // The flight finished between lookup and subscription; drop it and retry
+            inFlightRequests.remove(cacheKey, flight);
+        }
+    }
+
+    /**
+     * Schedules the network request for a newly registered in-flight completion.
+     * Requests shed by the scheduler complete without a result.
+     */
+    private void startRequest(String cacheKey, CompletionRequest request, InFlightCompletion flight) {
+        CompletableFuture<String> shared = flight.getShared();
+        shared.whenComplete((result, error) -> inFlightRequests.remove(cacheKey, flight));
+
+        scheduler.submit(request.getPriority(), () -> {
+            try {
+                shared.complete(fetchCompletion(cacheKey, request, flight::publish, shared));
+            } catch (CancellationException e) {
+                // Callers are no longer interested; savings were recorded where the request stopped
+                shared.cancel(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                shared.complete(null);
             } catch (Exception e) {
                 LOG.warn("AI completion request failed", e);
-                return null;
+                shared.complete(null);
             }
-        }, aiExecutor);
+        }, shared, () -> shared.complete(null));
     }
 
     /**
-     * Builds an effective prompt for code completion
+     * Resolves a completion from the configured provider and caches it.
+     * Stops early and throws {@link CancellationException} once the outcome future is cancelled.
      */
-    private String buildPrompt(String codeContext, String currentLine) {
-        StringBuilder prompt = new StringBuilder();
+    private String fetchCompletion(String cacheKey, CompletionRequest request,
+                                   Consumer<String> tokenConsumer, CompletableFuture<?> outcome)
+            throws IOException, InterruptedException {
+        // The request may have been superseded while it was queued
+        if (outcome.isDone()) {
+            metrics.recordCancelledBeforeDispatch(estimateTokens(RequestBodyWriter.promptLength(request)) + MAX_TOKENS);
+            throw new CancellationException();
+        }
+
+        // Make API call based on configured provider, hedging against the other one if enabled
+        String response = callWithHedging(request, tokenConsumer, outcome);
 
-        prompt.append("Complete the following code. Provide only the completion, no explanations:\n\n");
-        prompt.append("Context:\n");
-        prompt.append(codeContext);
-        prompt.append("\n\nCurrent line to complete:\n");
-        prompt.append(currentLine);
-        prompt.append("\n\nCompletion:");
+        // Cache successful response; the cache bounds itself
+        if (response != null && !response.trim().isEmpty() && isCachingEnabled()) {
+            responseCache.put(cacheKey, response);
+
+            PersistentCompletionStore store = getPersistentStore();
+            if (store != null) {
+                store.put(cacheKey, response);
+            }
+        }
 
-        return prompt.toString();
+        return response;
     }
 
     /**
-     * Makes API call to OpenAI GPT
+     * Calls the configured backend, or another configured one while its circuit breaker is open.
+     * If hedging is enabled, another backend is usable and the primary has produced nothing
+     * within its observed p90 latency, a duplicate request goes to the other backend.
+     * The first attempt to produce output wins and the other one is cancelled.
      */
-    private String callOpenAI(String prompt) throws IOException, InterruptedException {
-        String apiKey = System.getenv("OPENAI_API_KEY");
+    private String callWithHedging(CompletionRequest request, Consumer<String> tokenConsumer,
+                                   CompletableFuture<?> outcome) throws IOException, InterruptedException {
+        CompletionBackend primary = getConfiguredBackend();
+        if (primary == null) {
+            LOG.warn("No completion backend is registered");
+            return null;
+        }
+        CompletionBackend secondary = findAlternative(primary);
+
+        if (!getCircuitBreaker(primary).allowsRequests()) {
+            if (secondary == null) {
+                metrics.recordCircuitRejected();
+                return null; // Fail fast instead of waiting for a degraded backend to time out
+            }
+            LOG.info(primary.getId() + " circuit is open, failing over to " + secondary.getId());
+            metrics.recordFailover();
+            primary = secondary;
+            secondary = findAlternative(primary);
+        }
 
-        if (apiKey == null || apiKey.trim().isEmpty()) {
-            LOG.warn("OPENAI_API_KEY environment variable not set");
+        long hedgeDelayMs = getHedgeDelayMillis(primary, secondary);
+        if (hedgeDelayMs < 0) {
+            return callProvider(primary, request, tokenConsumer, outcome);
+        }
+
+        hedgeBudget.recordPrimary(AICopilotSettings.getInstance().getHedgeBudgetPercent());
+        HedgeRace race = new HedgeRace(tokenConsumer);
+        CompletableFuture<String> primaryAttempt = startAttempt(primary, request, race, outcome);
+
+        try {
+            return unlessCancelled(primaryAttempt.get(hedgeDelayMs, TimeUnit.MILLISECONDS), outcome);
+        } catch (TimeoutException e) {
+            // Primary is slower than usual, consider hedging below
+        } catch (ExecutionException e) {
+            return unlessCancelled(rethrowAttemptFailure(e), outcome);
+        }
+
+        if (race.hasWinner() || !hedgeBudget.tryAcquire()) {
+            if (!race.hasWinner()) {
+                metrics.recordHedgeDenied();
+            }
+            return awaitAttempt(primaryAttempt, outcome);
+        }
+
+        LOG.info(primary.getId() + " has not answered within its p90 of " + hedgeDelayMs + "ms, hedging with "
+                + secondary.getId());
+        metrics.recordHedge();
+        CompletableFuture<String> secondaryAttempt = startAttempt(secondary, request, race, outcome);
+
+        String response = awaitAttempt(firstNonNull(primaryAttempt, secondaryAttempt), outcome);
+        if (race.isWinner(secondaryAttempt)) {
+            metrics.recordHedgeWon();
+        }
+        return response;
+    }
+
+    /**
+     * Returns how long to wait before hedging, or -1 if hedging does not apply right now
+     */
+    private long getHedgeDelayMillis(CompletionBackend primary, @Nullable CompletionBackend secondary) {
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        if (settings == null || !settings.isEnableHedging() || secondary == null) {
+            return -1;
+        }
+
+        LatencyHistogram histogram = getLatency(primary).getFirstToken();
+        if (histogram.count() < MIN_HEDGE_SAMPLES) {
+            return -1; // Not enough data to know what slow means
+        }
+        return histogram.percentile(0.90);
+    }
+
+    /**
+     * Runs one provider call on the AI executor. The attempt is cancelled with the outcome,
+     * and its deltas only reach the caller if it is the first attempt to produce output.
+     */
+    private CompletableFuture<String> startAttempt(CompletionBackend backend, CompletionRequest request, HedgeRace race,
+                                                   CompletableFuture<?> outcome) {
+        CompletableFuture<String> attempt = new CompletableFuture<>();
+        race.register(attempt);
+
+        // Also cancels the losing attempt once the winner has completed the outcome
+        outcome.whenComplete((ignored, error) -> attempt.cancel(true));
+
+        try {
+            aiExecutor.execute(() -> {
+                try {
+                    attempt.complete(callProvider(backend, request, delta -> race.forward(attempt, delta), attempt));
+                } catch (Throwable t) {
+                    attempt.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Saturated or disposed; the attempt yields nothing and the race goes on without it
+            attempt.complete(null);
+        }
+        return attempt;
+    }
+
+    /**
+     * Completes with the first non-null attempt result, or null once every attempt has finished
+     */
+    private static CompletableFuture<String> firstNonNull(CompletableFuture<String> first,
+                                                          CompletableFuture<String> second) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(2);
+        for (CompletableFuture<String> attempt : List.of(first, second)) {
+            attempt.whenComplete((response, error) -> {
+                if (response != null) {
+                    result.complete(response);
+                } else if (remaining.decrementAndGet() == 0) {
+                    result.complete(null);
+                }
+            });
+        }
+        return result;
+    }
+
+    private String awaitAttempt(CompletableFuture<String> attempt, CompletableFuture<?> outcome)
+            throws IOException, InterruptedException {
+        try {
+            return unlessCancelled(attempt.get(), outcome);
+        } catch (CancellationException e) {
+            throw new CancellationException();
+        } catch (ExecutionException e) {
+            return unlessCancelled(rethrowAttemptFailure(e), outcome);
+        }
+    }
+
+    private static String unlessCancelled(String response, CompletableFuture<?> outcome) {
+        if (outcome.isCancelled()) {
+            throw new CancellationException();
+        }
+        return response;
+    }
+
+    private static String rethrowAttemptFailure(ExecutionException e) throws IOException, InterruptedException {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause instanceof InterruptedException) {
+            throw (InterruptedException) cause;
+        }
+        if (cause instanceof CancellationException) {
+            throw (CancellationException) cause;
+        }
+        throw new IOException(cause);
+    }
+
+    /**
+     * Calls a single backend with timeouts derived from its recent latency, never running past
+     * the caller's deadline, and records how long it took to produce its first and last output.
+     * Local backends are not rate limited.
+     */
+    private String callProvider(CompletionBackend backend, CompletionRequest request, Consumer<String> tokenConsumer,
+                                CompletableFuture<?> outcome) throws IOException, InterruptedException {
+        ProviderRateLimiter rateLimiter = null;
+        if (!backend.getCapabilities().contains(CompletionBackend.Capability.LOCAL)) {
+            rateLimiter = getRateLimiter(backend);
+            if (!awaitRateLimit(backend, rateLimiter, request, outcome)) {
+                return null;
+            }
+        }
+
+        long start = System.nanoTime();
+        long deadlineNanos = request.getDeadlineNanos();
+        long remainingNanos = deadlineNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadlineNanos - start;
+        if (remainingNanos <= 0) {
+            LOG.info("Caller deadline passed before calling " + backend.getId());
             return null;
         }
 
-        String requestBody = String.format("""
-            {
-                "model": "gpt-4",
-                "messages": [
-                    {
-                        "role": "system",
-                        "content": "You are a code completion assistant. Provide clean, accurate code completions without explanations."
-                    },
-                    {
-                        "role": "user",
-                        "content": "%s"
+        ProviderLatency latency = getLatency(backend);
+        Duration cap = getRequestTimeoutCap();
+        ProviderCircuitBreaker circuitBreaker = getCircuitBreaker(backend);
+        ProviderCall call = new ProviderCall(latency, rateLimiter, circuitBreaker, start, cap, remainingNanos);
+
+        AtomicBoolean firstDelta = new AtomicBoolean(true);
+        Consumer<String> timedConsumer = delta -> {
+            if (firstDelta.compareAndSet(true, false)) {
+                latency.getFirstToken().record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            tokenConsumer.accept(delta);
+        };
+
+        String response;
+        try {
+            response = callBackend(backend, request, timedConsumer, outcome, call);
+        } catch (IOException e) {
+            if (!outcome.isCancelled()) {
+                call.recordFailure();
+            }
+            throw e;
+        } finally {
+            if (call.timedOut) {
+                latency.recordTimeout(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), call.headersReceived,
+                        !firstDelta.get());
+            }
+        }
+
+        if (response != null) {
+            latency.getTotal().record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            circuitBreaker.recordSuccess();
+        }
+        return response;
+    }
+
+    /**
+     * Waits until the provider's rate limiter admits the request. Returns false if the request is
+     * shed instead: automatic requests are never delayed, manual ones only up to their deadline
+     * and at most {@link #MAX_RATE_LIMIT_WAIT_NANOS}.
+     */
+    private boolean awaitRateLimit(CompletionBackend backend, ProviderRateLimiter rateLimiter, CompletionRequest request,
+                                   CompletableFuture<?> outcome) throws InterruptedException {
+        long estimatedTokens = estimateTokens(RequestBodyWriter.promptLength(request)) + MAX_TOKENS;
+        long start = System.nanoTime();
+        long deadlineNanos = request.getDeadlineNanos() == Long.MAX_VALUE
+                ? start + MAX_RATE_LIMIT_WAIT_NANOS
+                : start + Math.min(request.getDeadlineNanos() - start, MAX_RATE_LIMIT_WAIT_NANOS);
+
+        while (true) {
+            long wait = rateLimiter.tryAcquire(request.getPriority(), estimatedTokens);
+            if (wait == 0) {
+                return true;
+            }
+
+            if (wait == ProviderRateLimiter.SHED || System.nanoTime() + wait - deadlineNanos > 0) {
+                LOG.info("Shedding " + request.getPriority() + " completion request, " + backend.getId() + " is rate limited");
+                metrics.recordRateLimited();
+                return false;
+            }
+
+            if (outcome.isDone()) {
+                metrics.recordCancelledBeforeDispatch(estimatedTokens);
+                throw new CancellationException();
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(wait, RATE_LIMIT_POLL_NANOS));
+        }
+    }
+
+    /**
+     * Returns the backend's rate limiter with the current settings applied
+     */
+    private ProviderRateLimiter getRateLimiter(CompletionBackend backend) {
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        int requestsPerMinute = settings != null ? settings.getMaxRequestsPerMinute() : 60;
+        int tokensPerMinute = settings != null ? settings.getMaxTokensPerMinute() : 40000;
+
+        ProviderRateLimiter rateLimiter = rateLimiters.computeIfAbsent(backend.getId(),
+                id -> new ProviderRateLimiter(id, requestsPerMinute, tokensPerMinute));
+        rateLimiter.setLimits(requestsPerMinute, tokensPerMinute);
+        return rateLimiter;
+    }
+
+    /**
+     * Returns the backend's circuit breaker, created closed on first use
+     */
+    private ProviderCircuitBreaker getCircuitBreaker(CompletionBackend backend) {
+        return circuitBreakers.computeIfAbsent(backend.getId(), id -> new ProviderCircuitBreaker(
+                (oldState, newState) -> onCircuitStateChanged(id, oldState, newState)));
+    }
+
+    /**
+     * Logs and publishes a circuit breaker transition, and schedules a probe when it opens
+     */
+    private void onCircuitStateChanged(String backendId, CircuitBreakerListener.State oldState,
+                                       CircuitBreakerListener.State newState) {
+        LOG.info(backendId + " circuit breaker " + oldState + " -> " + newState);
+        if (newState == CircuitBreakerListener.State.OPEN) {
+            AppExecutorUtil.getAppScheduledExecutorService().schedule(() -> probe(backendId),
+                    circuitBreakers.get(backendId).getOpenNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        if (!disposed) {
+            ApplicationManager.getApplication().getMessageBus()
+                    .syncPublisher(CircuitBreakerListener.TOPIC)
+                    .stateChanged(backendId, oldState, newState);
+        }
+    }
+
+    /**
+     * Checks in the background whether a backend with an open breaker has recovered, using the
+     * backend's probe request, which should cost no tokens. A backend that was unregistered or
+     * cannot be probed is let through to half-open so that the next real call decides.
+     */
+    private void probe(String backendId) {
+        ProviderCircuitBreaker circuitBreaker = circuitBreakers.get(backendId);
+        if (disposed || !circuitBreaker.startProbe()) {
+            return;
+        }
+
+        CompletionBackend backend = findBackend(backendId);
+        HttpRequest.Builder probe = backend != null ? backend.newProbeRequest() : null;
+        if (probe == null) {
+            circuitBreaker.probeSucceeded();
+            return;
+        }
+
+        httpClient.sendAsync(probe.timeout(getRequestTimeoutCap()).build(), HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    // Client errors such as a rejected key still prove the endpoint is serving
+                    if (error == null && response.statusCode() < 500) {
+                        circuitBreaker.probeSucceeded();
+                    } else {
+                        circuitBreaker.probeFailed();
                     }
-                ],
-                "max_tokens": 150,
-                "temperature": 0.1,
-                "stream": false
-            }
-            """, escapeJson(prompt));
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(OPENAI_API_URL))
-                .header("Content-Type", "application/json")
-                .header("Authorization", "Bearer " + apiKey)
-                .timeout(REQUEST_TIMEOUT)
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .build();
+                });
+    }
 
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    /**
+     * Returns the latency statistics of the backend's current model
+     */
+    private ProviderLatency getLatency(CompletionBackend backend) {
+        return providerLatency.computeIfAbsent(backend.getId() + "/" + backend.getModel(),
+                name -> new ProviderLatency(name, LATENCY_WINDOW_MS));
+    }
+
+    /**
+     * Upper bound for derived timeouts, from the request timeout setting
+     */
+    private Duration getRequestTimeoutCap() {
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        return settings != null && settings.getRequestTimeout() > 0
+                ? Duration.ofMillis(settings.getRequestTimeout())
+                : REQUEST_TIMEOUT;
+    }
 
-        if (response.statusCode() == 200) {
-            return parseOpenAIResponse(response.body());
-        } else {
-            LOG.warn("OpenAI API error: " + response.statusCode() + " - " + response.body());
+    /**
+     * Makes the API call to a completion backend, streaming the response if both the settings
+     * and the backend allow it. Backends that support several candidates return them all from one
+     * call; when streamed, the first choice goes to the consumer as it arrives and the others are
+     * collected alongside it. For other backends parallel samples are taken as far as the rate limit
+     * allows without waiting, and the request is not streamed. Alternatives are ranked and
+     * remembered for {@link #getCompletionCandidates}; the best one, or the streamed one, is returned.
+     */
+    private String callBackend(CompletionBackend backend, CompletionRequest completionRequest,
+                               Consumer<String> tokenConsumer, CompletableFuture<?> outcome,
+                               ProviderCall call) throws IOException, InterruptedException {
+        if (!backend.isConfigured()) {
+            LOG.warn(backend.getDisplayName() + " backend is not configured");
             return null;
         }
+
+        int candidates = Math.min(completionRequest.getCandidates(), MAX_CANDIDATES);
+        boolean multipleChoices = candidates > 1
+                && backend.getCapabilities().contains(CompletionBackend.Capability.MULTIPLE_CANDIDATES);
+        boolean streaming = (candidates == 1 || multipleChoices) && isStreamingEnabled()
+                && backend.getCapabilities().contains(CompletionBackend.Capability.STREAMING);
+
+        HttpRequest request = backend.newCompletionRequest(completionRequest, MAX_TOKENS, streaming,
+                        multipleChoices ? candidates : 1)
+                .timeout(call.headersTimeout)
+                .build();
+
+        if (streaming) {
+            HttpResponse<Stream<String>> response = sendCancellable(request, HttpResponse.BodyHandlers.ofLines(), outcome,
+                    call);
+
+            if (response.statusCode() == 200 && !multipleChoices) {
+                return readEventStream(response.body(), backend::parseStreamEvent, tokenConsumer, outcome, call);
+            } else if (response.statusCode() == 200) {
+                // Only choice 0 streams to the consumer; the others are collected for afterwards
+                Map<Integer, StringBuilder> others = new TreeMap<>();
+                String streamed = readEventStream(response.body(), data -> {
+                    Map<Integer, String> deltas = backend.parseStreamChoices(data);
+                    deltas.forEach((index, delta) -> {
+                        if (index != 0) {
+                            others.computeIfAbsent(index, key -> new StringBuilder()).append(delta);
+                        }
+                    });
+                    return deltas.get(0);
+                }, tokenConsumer, outcome, call);
+                if (streamed == null) {
+                    return null;
+                }
+
+                List<String> choices = new ArrayList<>(others.size() + 1);
+                choices.add(streamed);
+                others.values().forEach(choice -> choices.add(choice.toString()));
+                return rememberCandidates(completionRequest, choices, streamed);
+            } else {
+                LOG.warn(backend.getDisplayName() + " API error: " + response.statusCode() + " - "
+                        + drainLines(response.body()));
+                return null;
+            }
+        }
+
+        List<CompletableFuture<String>> samples = candidates > 1 && !multipleChoices
+                ? startParallelSamples(backend, completionRequest, candidates - 1, outcome, call)
+                : List.of();
+
+        HttpResponse<InputStream> response = sendCancellable(request, HttpResponse.BodyHandlers.ofInputStream(), outcome,
+                call);
+
+        try (Reader body = new InputStreamReader(response.body(), StandardCharsets.UTF_8)) {
+            if (response.statusCode() == 200) {
+                if (candidates == 1) {
+                    return deliverWhole(parseResponse(body, backend::parseResponse), tokenConsumer);
+                }
+
+                List<String> choices = new ArrayList<>();
+                List<String> parsed = parseResponse(body, backend::parseCandidates);
+                if (parsed != null) {
+                    choices.addAll(parsed);
+                }
+                choices.addAll(collectSamples(samples, call));
+                return deliverWhole(rememberCandidates(completionRequest, choices, null), tokenConsumer);
+            } else {
+                LOG.warn(backend.getDisplayName() + " API error: " + response.statusCode() + " - " + readAll(body));
+                return null;
+            }
+        }
     }
 
     /**
-     * Makes API call to Anthropic Claude
+     * Sends extra single-candidate requests alongside the main one. Samples are only taken while
+     * the rate limiter admits them right away, so they never delay or displace other requests.
      */
-    private String callClaude(String prompt) throws IOException, InterruptedException {
-        String apiKey = System.getenv("ANTHROPIC_API_KEY");
+    private List<CompletableFuture<String>> startParallelSamples(CompletionBackend backend,
+                                                                 CompletionRequest completionRequest, int count,
+                                                                 CompletableFuture<?> outcome, ProviderCall call) {
+        long estimatedTokens = estimateTokens(RequestBodyWriter.promptLength(completionRequest)) + MAX_TOKENS;
+        List<CompletableFuture<String>> samples = new ArrayList<>(count);
 
-        if (apiKey == null || apiKey.trim().isEmpty()) {
-            LOG.warn("ANTHROPIC_API_KEY environment variable not set");
+        for (int i = 0; i < count; i++) {
+            if (call.rateLimiter != null
+                    && call.rateLimiter.tryAcquire(CompletionRequest.Priority.SPECULATIVE, estimatedTokens) != 0) {
+                break;
+            }
+
+            HttpRequest request = backend.newCompletionRequest(completionRequest, MAX_TOKENS, false, 1)
+                    .timeout(call.headersTimeout)
+                    .build();
+            metrics.recordNetworkRequest();
+            CompletableFuture<String> sample = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                    .thenApply(response -> {
+                        if (response.statusCode() != 200) {
+                            return null;
+                        }
+                        try {
+                            return backend.parseResponse(new StringReader(response.body()));
+                        } catch (IOException | RuntimeException e) {
+                            LOG.warn("Failed to parse AI sample response", e);
+                            return null;
+                        }
+                    });
+            outcome.whenComplete((ignored, error) -> sample.cancel(true));
+            samples.add(sample);
+        }
+        return samples;
+    }
+
+    /**
+     * Gathers the samples that answer before the body deadline and abandons the rest
+     */
+    private List<String> collectSamples(List<CompletableFuture<String>> samples, ProviderCall call)
+            throws InterruptedException {
+        List<String> results = new ArrayList<>(samples.size());
+        for (CompletableFuture<String> sample : samples) {
+            try {
+                String result = sample.get(Math.max(0, call.bodyDeadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (result != null) {
+                    results.add(result);
+                }
+            } catch (TimeoutException | ExecutionException | CancellationException e) {
+                sample.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Ranks the alternatives, remembers them for {@link #getCompletionCandidates} and returns the best.
+     * A completion that was already streamed to the caller stays first, ahead of the ranking.
+     */
+    @Nullable
+    private String rememberCandidates(CompletionRequest request, List<String> choices, @Nullable String streamed) {
+        List<String> ranked = new ArrayList<>(CandidateRanker.rank(choices, request.getSuffix()));
+        if (streamed != null) {
+            // Listed first in choices, so it outlives any whitespace-only duplicates
+            ranked.remove(streamed);
+            ranked.add(0, streamed);
+        }
+        if (ranked.isEmpty()) {
             return null;
         }
 
-        String requestBody = String.format("""
-            {
-                "model": "claude-3-sonnet-20240229",
-                "max_tokens": 150,
-                "messages": [
-                    {
-                        "role": "user",
-                        "content": "%s"
+        if (ranked.size() > 1) {
+            candidateSets.put(generateCacheKey(request.getCodeContext(), request.getCurrentLine()),
+                    String.join(CANDIDATE_SEPARATOR, ranked));
+        }
+        return ranked.get(0);
+    }
+
+    /**
+     * Sends the request with sendAsync so that cancelling the outcome future aborts the exchange.
+     * Records how long the response took to arrive and gives up at the body deadline.
+     */
+    private <T> HttpResponse<T> sendCancellable(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler,
+                                                CompletableFuture<?> outcome, ProviderCall call)
+            throws IOException, InterruptedException {
+        metrics.recordNetworkRequest();
+        CompletableFuture<HttpResponse<T>> exchange = httpClient.sendAsync(request, bodyHandler);
+
+        // No-op once the response has arrived; aborts the connection while it is still pending
+        outcome.whenComplete((ignored, error) -> exchange.cancel(true));
+
+        try {
+            // Streamed bodies complete at the headers; whole bodies only once fully read
+            HttpResponse<T> response = exchange.get(call.bodyDeadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+            call.latency.getHeaders().record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - call.startNanos));
+            call.headersReceived = true;
+            if (call.rateLimiter != null) {
+                call.rateLimiter.onResponse(response.statusCode(), response.headers());
+            }
+            if (response.statusCode() == 429 || response.statusCode() == 529) {
+                metrics.recordThrottled();
+            }
+            if (response.statusCode() >= 500) {
+                call.recordFailure();
+            }
+            return response;
+        } catch (TimeoutException e) {
+            exchange.cancel(true);
+            metrics.recordTimeout();
+            call.bodyTimedOut();
+            throw new HttpTimeoutException("No response from " + call.latency.getName() + " before the deadline");
+        } catch (CancellationException | ExecutionException e) {
+            // An aborted exchange may surface either way depending on how far it got
+            if (outcome.isCancelled()) {
+                metrics.recordCancelledInFlight(MAX_TOKENS);
+                throw new CancellationException();
+            }
+            if (e instanceof CancellationException) {
+                throw (CancellationException) e;
+            }
+            if (e.getCause() instanceof HttpTimeoutException) {
+                metrics.recordTimeout();
+                call.headersTimedOut();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Reads a server-sent event stream line by line and forwards each text delta
+     * to the consumer as it arrives. Returns the aggregated completion, or null
+     * if the stream did not finish before the deadline. A connection that fails
+     * mid-stream is reported as the underlying IOException.
+     */
+    private String readEventStream(Stream<String> lines, EventParser deltaParser,
+                                   Consumer<String> tokenConsumer, CompletableFuture<?> outcome,
+                                   ProviderCall call) throws IOException {
+        StringBuilder completion = new StringBuilder();
+        StringBuilder eventData = new StringBuilder();
+        AtomicInteger deltas = new AtomicInteger();
+        Consumer<String> countingConsumer = delta -> {
+            deltas.incrementAndGet();
+            tokenConsumer.accept(delta);
+        };
+
+        // Closing the line stream cancels the body subscription and releases the connection
+        outcome.whenComplete((ignored, error) -> {
+            if (outcome.isCancelled()) {
+                lines.close();
+            }
+        });
+
+        // A stalled stream would block the iterator, so the deadline closes it from outside
+        AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> watchdog = AppExecutorUtil.getAppScheduledExecutorService().schedule(() -> {
+            timedOut.set(true);
+            lines.close();
+        }, Math.max(0, call.bodyDeadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+        try (lines) {
+            Iterator<String> iterator = lines.iterator();
+            while (iterator.hasNext()) {
+                if (outcome.isCancelled() || timedOut.get()) {
+                    break;
+                }
+                String line = iterator.next();
+
+                // A blank line terminates the current event
+                if (line.isEmpty()) {
+                    if (!dispatchEvent(eventData, deltaParser, countingConsumer, completion)) {
+                        break;
+                    }
+                    continue;
+                }
+
+                // Only data fields matter; event, id, retry and comment lines are ignored
+                if (line.startsWith("data:")) {
+                    if (eventData.length() > 0) {
+                        eventData.append('\n');
                     }
-                ]
+                    eventData.append(line, line.startsWith("data: ") ? 6 : 5, line.length());
+                }
             }
-            """, escapeJson(prompt));
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(CLAUDE_API_URL))
-                .header("Content-Type", "application/json")
-                .header("x-api-key", apiKey)
-                .header("anthropic-version", "2023-06-01")
-                .timeout(REQUEST_TIMEOUT)
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .build();
+            // Flush a trailing event that was not followed by a blank line
+            if (!outcome.isCancelled() && !timedOut.get()) {
+                dispatchEvent(eventData, deltaParser, countingConsumer, completion);
+            }
+        } catch (UncheckedIOException e) {
+            // Expected when the stream is closed underneath us by a cancellation or the deadline
+            if (!outcome.isCancelled() && !timedOut.get()) {
+                throw e.getCause(); // Lets callProvider count it against the circuit breaker
+            }
+        } finally {
+            watchdog.cancel(false);
+        }
 
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (outcome.isCancelled()) {
+            metrics.recordCancelledInFlight(MAX_TOKENS - deltas.get());
+            throw new CancellationException();
+        }
 
-        if (response.statusCode() == 200) {
-            return parseClaudeResponse(response.body());
-        } else {
-            LOG.warn("Claude API error: " + response.statusCode() + " - " + response.body());
+        if (timedOut.get()) {
+            LOG.info("AI response stream did not finish before the deadline");
+            metrics.recordTimeout();
+            call.bodyTimedOut();
+            call.recordFailure();
             return null;
         }
+
+        return completion.length() > 0 ? completion.toString() : null;
     }
 
     /**
-     * Parses OpenAI API response to extract completion text
+     * Dispatches one buffered event. Returns false once the stream signals completion.
      */
-    private String parseOpenAIResponse(String responseBody) {
-        try {
-            // Simple JSON parsing (in production, use a proper JSON library)
-            int contentStart = responseBody.indexOf("\"content\":\"") + 11;
-            int contentEnd = responseBody.indexOf("\"", contentStart);
+    private boolean dispatchEvent(StringBuilder eventData, EventParser deltaParser,
+                                  Consumer<String> tokenConsumer, StringBuilder completion) {
+        if (eventData.length() == 0) {
+            return true;
+        }
+
+        String data = eventData.toString();
+        eventData.setLength(0);
+
+        // OpenAI terminates the stream with a literal [DONE] sentinel
+        if ("[DONE]".equals(data)) {
+            return false;
+        }
 
-            if (contentStart > 10 && contentEnd > contentStart) {
-                String content = responseBody.substring(contentStart, contentEnd);
-                return unescapeJson(content);
+        try {
+            String delta = deltaParser.parse(data);
+            if (delta != null && !delta.isEmpty()) {
+                completion.append(delta);
+                tokenConsumer.accept(delta);
             }
-        } catch (Exception e) {
-            LOG.warn("Failed to parse OpenAI response", e);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to parse streamed AI event: " + data, e);
         }
-        return null;
+        return true;
     }
 
     /**
-     * Parses Claude API response to extract completion text
+     * Hands a non-streamed completion to the consumer as a single delta
      */
-    private String parseClaudeResponse(String responseBody) {
-        try {
-            // Simple JSON parsing for Claude response format
-            int textStart = responseBody.indexOf("\"text\":\"") + 8;
-            int textEnd = responseBody.indexOf("\"", textStart);
+    private String deliverWhole(String completion, Consumer<String> tokenConsumer) {
+        if (completion != null && !completion.isEmpty()) {
+            tokenConsumer.accept(completion);
+        }
+        return completion;
+    }
 
-            if (textStart > 7 && textEnd > textStart) {
-                String content = responseBody.substring(textStart, textEnd);
-                return unescapeJson(content);
-            }
-        } catch (Exception e) {
-            LOG.warn("Failed to parse Claude response", e);
+    /**
+     * Reads the remaining lines of an error response for logging
+     */
+    private String drainLines(Stream<String> lines) {
+        try (lines) {
+            return lines.collect(Collectors.joining("\n"));
         }
-        return null;
     }
 
     /**
-     * Simple JSON escaping for request bodies
+     * Parses a whole response body, logging malformed JSON instead of failing the request
      */
-    private String escapeJson(String text) {
-        return text.replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r")
-                .replace("\t", "\\t");
+    private <T> T parseResponse(Reader body, ResponseParser<T> parser) throws IOException {
+        try {
+            return parser.parse(body);
+        } catch (MalformedJsonException | IllegalStateException e) {
+            LOG.warn("Failed to parse AI response", e);
+            return null;
+        }
     }
 
     /**
-     * Simple JSON unescaping for responses
+     * Reads the rest of an error response for logging
      */
-    private String unescapeJson(String text) {
-        return text.replace("\\n", "\n")
-                .replace("\\r", "\r")
-                .replace("\\t", "\t")
-                .replace("\\\"", "\"")
-                .replace("\\\\", "\\");
+    private String readAll(Reader body) throws IOException {
+        StringWriter text = new StringWriter();
+        body.transferTo(text);
+        return text.toString();
     }
 
     /**
      * Generates cache key for request caching
      */
     private String generateCacheKey(String codeContext, String currentLine) {
-        // Simple hash-based cache key
-        return String.valueOf((codeContext + currentLine).hashCode());
+        // Keys outlive the session in the disk tier, so a 32-bit hashCode would collide too often
+        return DigestUtils.sha256Hex(codeContext + '\u0000' + currentLine);
     }
 
     /**
-     * Gets configured AI provider from environment variable
+     * Rough token estimate (about four characters per token) used for savings metrics
      */
-    private AIProvider getConfiguredProvider() {
-        String provider = System.getenv("AI_PROVIDER");
-        if ("CLAUDE".equalsIgnoreCase(provider)) {
-            return AIProvider.CLAUDE;
+    private static long estimateTokens(int characters) {
+        return characters / 4;
+    }
+
+    /**
+     * Indexes a response by its line prefix so that typing through it needs no new request
+     */
+    private void rememberForPrefix(CompletionRequest request, @Nullable String response) {
+        String stableContextKey = request.getStableContextKey();
+        String linePrefix = request.getLinePrefix();
+        if (stableContextKey != null && linePrefix != null && response != null && !response.isBlank()) {
+            prefixCache.put(stableContextKey, linePrefix, response);
+        }
+    }
+
+    /**
+     * Looks the key up in memory first, then on disk. Disk hits are promoted to memory.
+     */
+    private String lookupCache(String cacheKey) {
+        String cached = responseCache.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+
+        PersistentCompletionStore store = getPersistentStore();
+        if (store == null) {
+            return null;
+        }
+
+        cached = store.get(cacheKey);
+        if (cached != null) {
+            responseCache.put(cacheKey, cached);
         }
-        return AIProvider.OPENAI; // Default
+        return cached;
+    }
+
+    /**
+     * Returns the disk cache tier under the IDE system directory, or null if it is disabled in
+     * settings or not open yet. Opening, and reopening after the size setting changed, happens on
+     * the AI executor and never on the caller's thread.
+     */
+    @Nullable
+    private PersistentCompletionStore getPersistentStore() {
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        if (settings != null && !settings.isEnablePersistentCache()) {
+            return null;
+        }
+
+        long capacity = (settings != null ? settings.getPersistentCacheSizeMb() : 16) * 1024L * 1024L;
+        synchronized (this) {
+            if (capacity != persistentStoreCapacity && !disposed) {
+                reopenPersistentStore(capacity);
+            }
+        }
+        return persistentStore;
+    }
+
+    /**
+     * Queues closing the current disk tier and opening one of the given capacity. A store whose
+     * capacity was superseded while it opened is closed again instead of being published.
+     */
+    private void reopenPersistentStore(long capacity) {
+        persistentStoreCapacity = capacity;
+        PersistentCompletionStore previous = persistentStore;
+        persistentStore = null;
+
+        persistentStoreTask = persistentStoreTask.thenRunAsync(() -> {
+            if (previous != null) {
+                previous.close();
+            }
+
+            PersistentCompletionStore store = new PersistentCompletionStore(
+                    Paths.get(PathManager.getSystemPath(), "ai-copilot", "completion-cache"),
+                    capacity, PERSISTENT_CACHE_TTL);
+            boolean opened = store.open();
+            synchronized (this) {
+                if (opened && capacity == persistentStoreCapacity && !disposed) {
+                    persistentStore = store;
+                    return;
+                }
+            }
+            store.close();
+        }, aiExecutor).exceptionally(error -> {
+            LOG.warn("Failed to open persistent completion cache", error);
+            return null;
+        });
+    }
+
+    /**
+     * Checks whether caching is enabled and applies the current cache size and TTL settings.
+     * Resizing is a no-op unless the settings changed since the last request.
+     */
+    private boolean isCachingEnabled() {
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        if (settings == null) {
+            return true;
+        }
+
+        if (!settings.isEnableCaching()) {
+            responseCache.invalidateAll();
+            return false;
+        }
+
+        responseCache.resize(settings.getCacheSize());
+        responseCache.setTimeToLive(Duration.ofMinutes(settings.getCacheTtlMinutes()));
+        return true;
+    }
+
+    /**
+     * Checks whether responses should be streamed as server-sent events
+     */
+    private boolean isStreamingEnabled() {
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        return settings == null || settings.isEnableStreaming();
+    }
+
+    /**
+     * Returns the registered completion backends, built-in ones first
+     */
+    public List<CompletionBackend> getBackends() {
+        return CompletionBackend.EP_NAME.getExtensionList();
+    }
+
+    /**
+     * Gets the configured backend: the AI_PROVIDER environment variable wins over the settings,
+     * and an unknown id falls back to the first registered backend
+     */
+    @Nullable
+    private CompletionBackend getConfiguredBackend() {
+        String backendId = System.getenv("AI_PROVIDER");
+        if (backendId == null || backendId.trim().isEmpty()) {
+            AICopilotSettings settings = AICopilotSettings.getInstance();
+            backendId = settings != null ? settings.getAIProvider() : OpenAIBackend.ID;
+        }
+
+        CompletionBackend backend = findBackend(backendId);
+        if (backend != null) {
+            return backend;
+        }
+        List<CompletionBackend> backends = getBackends();
+        return backends.isEmpty() ? null : backends.get(0);
+    }
+
+    @Nullable
+    private CompletionBackend findBackend(@Nullable String backendId) {
+        for (CompletionBackend backend : getBackends()) {
+            if (backend.getId().equalsIgnoreCase(backendId != null ? backendId.trim() : null)) {
+                return backend;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first other configured backend whose circuit breaker admits requests, used for
+     * failover and hedging
+     */
+    @Nullable
+    private CompletionBackend findAlternative(CompletionBackend backend) {
+        for (CompletionBackend candidate : getBackends()) {
+            if (candidate != backend && candidate.isConfigured() && getCircuitBreaker(candidate).allowsRequests()) {
+                return candidate;
+            }
+        }
+        return null;
     }
 
     /**
      * Checks if AI service is available and configured
      */
     public boolean isAvailable() {
-        AIProvider provider = getConfiguredProvider();
+        CompletionBackend backend = getConfiguredBackend();
+        return backend != null && backend.isConfigured();
+    }
 
-        if (provider == AIProvider.OPENAI) {
-            String apiKey = System.getenv("OPENAI_API_KEY");
-            return apiKey != null && !apiKey.trim().isEmpty();
-        } else {
-            String apiKey = System.getenv("ANTHROPIC_API_KEY");
-            return apiKey != null && !apiKey.trim().isEmpty();
-        }
+    /**
+     * Returns live request counters, including requests and tokens saved by cancellation
+     */
+    public CompletionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the number of requests waiting for the scheduler
+     */
+    public int getQueueDepth() {
+        return scheduler.getQueueDepth();
+    }
+
+    /**
+     * Returns how long requests waited in the scheduler queue before running
+     */
+    public LatencyHistogram getQueueWait() {
+        return scheduler.getQueueWait();
+    }
+
+    /**
+     * Returns the circuit breaker state of the backend with the given id
+     */
+    public CircuitBreakerListener.State getCircuitState(@NotNull String backendId) {
+        ProviderCircuitBreaker circuitBreaker = circuitBreakers.get(backendId);
+        return circuitBreaker != null ? circuitBreaker.getState() : CircuitBreakerListener.State.CLOSED;
+    }
+
+    /**
+     * Returns the rolling latency statistics of every provider and model used so far
+     */
+    public Collection<ProviderLatency> getProviderLatencies() {
+        return List.copyOf(providerLatency.values());
+    }
+
+    /**
+     * Returns hit rate, weight and eviction counters of the response cache
+     */
+    public CompletionCache.Stats getCacheStats() {
+        return responseCache.getStats();
+    }
+
+    /**
+     * Returns hit statistics for the cached response of the given request, or null if not cached
+     */
+    @Nullable
+    public CompletionCache.EntryStats getCacheEntryStats(@NotNull String codeContext, @NotNull String currentLine) {
+        return responseCache.getEntryStats(generateCacheKey(codeContext, currentLine));
     }
 
     /**
      * Clears response cache
      */
     public void clearCache() {
-        responseCache.clear();
+        responseCache.invalidateAll();
+        candidateSets.invalidateAll();
+        prefixCache.clear();
         LOG.info("AI response cache cleared");
     }
 
+    @Override
+    public void dispose() {
+        PersistentCompletionStore store;
+        synchronized (this) {
+            disposed = true;
+            store = persistentStore;
+            persistentStore = null;
+        }
+        aiExecutor.shutdownNow();
+        if (store != null) {
+            store.close();
+        }
+    }
+
     /**
-     * Available AI providers
+     * Extracts the completion from a whole response body
      */
-    public enum AIProvider {
-        OPENAI,
-        CLAUDE
+    @FunctionalInterface
+    private interface ResponseParser<T> {
+        T parse(Reader body) throws IOException;
     }
+
+    /**
+     * Extracts the text delta from the data of one server-sent event
+     */
+    @FunctionalInterface
+    private interface EventParser {
+        String parse(String data) throws IOException;
+    }
+
+    /**
+     * Decides which of the racing attempts streams to the caller: the first one to produce output
+     */
+    private static final class HedgeRace {
+        private final Consumer<String> tokenConsumer;
+        private final List<CompletableFuture<String>> attempts = new CopyOnWriteArrayList<>();
+        private CompletableFuture<String> winner;
+
+        HedgeRace(Consumer<String> tokenConsumer) {
+            this.tokenConsumer = tokenConsumer;
+        }
+
+        void register(CompletableFuture<String> attempt) {
+            attempts.add(attempt);
+        }
+
+        void forward(CompletableFuture<String> attempt, String delta) {
+            synchronized (this) {
+                if (winner == null) {
+                    winner = attempt;
+                } else if (winner != attempt) {
+                    return;
+                }
+            }
+
+            // Losers are cancelled outside the lock; cancellation closes their streams
+            for (CompletableFuture<String> other : attempts) {
+                if (other != attempt) {
+                    other.cancel(true);
+                }
+            }
+            tokenConsumer.accept(delta);
+        }
+
+        synchronized boolean hasWinner() {
+            return winner != null;
+        }
+
+        synchronized boolean isWinner(CompletableFuture<String> attempt) {
+            return winner == attempt;
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+package com.harmless004.aicopilot.services;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Orders alternative completions by local heuristics, without another model call.
+ * Candidates that differ only in whitespace are merged. A candidate ranks lower the more
+ * brackets it leaves unbalanced, when its end repeats the code right after the cursor, and
+ * slightly with its length; ties keep the order the backend returned them in.
+ */
+final class CandidateRanker {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final double MISMATCHED_BRACKET_PENALTY = 2.0;
+    private static final double UNBALANCED_BRACKET_PENALTY = 1.0;
+    private static final double SUFFIX_OVERLAP_PENALTY = 1.5;
+    private static final double LENGTH_PENALTY = 0.1;
+
+    private CandidateRanker() {
+    }
+
+    /**
+     * Returns the distinct non-blank candidates, best first
+     *
+     * @param suffix code following the cursor, or null if unknown
+     */
+    @NotNull
+    static List<String> rank(@NotNull List<String> candidates, @Nullable String suffix) {
+        Map<String, String> unique = new LinkedHashMap<>();
+        for (String candidate : candidates) {
+            if (candidate != null && !candidate.isBlank()) {
+                unique.putIfAbsent(WHITESPACE.matcher(candidate.strip()).replaceAll(" "), candidate);
+            }
+        }
+
+        String nextCode = suffix != null ? firstLine(suffix.stripLeading()) : "";
+        List<Scored> scored = new ArrayList<>(unique.size());
+        for (String candidate : unique.values()) {
+            scored.add(new Scored(candidate, score(candidate, nextCode)));
+        }
+        scored.sort(Comparator.comparingDouble((Scored s) -> s.score).reversed()); // Stable for ties
+
+        List<String> ranked = new ArrayList<>(scored.size());
+        for (Scored s : scored) {
+            ranked.add(s.candidate);
+        }
+        return ranked;
+    }
+
+    private static double score(String candidate, String nextCode) {
+        double score = -bracketPenalty(candidate);
+
+        // A candidate ending in the text that already follows the cursor would duplicate it
+        int overlap = suffixOverlap(candidate.stripTrailing(), nextCode);
+        if (overlap > 0) {
+            score -= SUFFIX_OVERLAP_PENALTY + Math.min(overlap, 40) / 10.0;
+        }
+
+        return score - LENGTH_PENALTY * Math.log1p(candidate.length());
+    }
+
+    /**
+     * Scores bracket structure, skipping string and character literals. Closing a bracket that
+     * was opened before the cursor is legitimate, so an unmatched closer costs less than a
+     * mismatched pair.
+     */
+    private static double bracketPenalty(String candidate) {
+        Deque<Character> open = new ArrayDeque<>();
+        double penalty = 0;
+        char quote = 0;
+
+        for (int i = 0; i < candidate.length(); i++) {
+            char c = candidate.charAt(i);
+            if (quote != 0) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == quote || c == '\n') {
+                    quote = 0;
+                }
+                continue;
+            }
+
+            switch (c) {
+                case '"', '\'', '`' -> quote = c;
+                case '(', '[', '{' -> open.push(c);
+                case ')', ']', '}' -> {
+                    if (open.isEmpty()) {
+                        penalty += UNBALANCED_BRACKET_PENALTY;
+                    } else if (open.pop() != opening(c)) {
+                        penalty += MISMATCHED_BRACKET_PENALTY;
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        return penalty + open.size() * UNBALANCED_BRACKET_PENALTY;
+    }
+
+    /**
+     * Length of the longest start of the following code that the candidate ends with
+     */
+    private static int suffixOverlap(String candidate, String nextCode) {
+        for (int length = Math.min(candidate.length(), nextCode.length()); length > 0; length--) {
+            if (candidate.regionMatches(candidate.length() - length, nextCode, 0, length)) {
+                return length;
+            }
+        }
+        return 0;
+    }
+
+    private static char opening(char closing) {
+        return switch (closing) {
+            case ')' -> '(';
+            case ']' -> '[';
+            default -> '{';
+        };
+    }
+
+    private static String firstLine(String text) {
+        int newline = text.indexOf('\n');
+        return (newline < 0 ? text : text.substring(0, newline)).stripTrailing();
+    }
+
+    private static final class Scored {
+        final String candidate;
+        final double score;
+
+        Scored(String candidate, double score) {
+            this.candidate = candidate;
+            this.score = score;
+        }
+    }
+}
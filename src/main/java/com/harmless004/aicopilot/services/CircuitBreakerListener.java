@@ -0,0 +1,29 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.util.messages.Topic;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Notified on the application message bus whenever a completion backend's circuit breaker changes state
+ */
+public interface CircuitBreakerListener {
+
+    Topic<CircuitBreakerListener> TOPIC = new Topic<>("AI Copilot circuit breaker", CircuitBreakerListener.class);
+
+    /**
+     * @param backendId the {@link CompletionBackend#getId() id} of the backend
+     */
+    void stateChanged(@NotNull String backendId, @NotNull State oldState, @NotNull State newState);
+
+    /**
+     * Circuit breaker states
+     */
+    enum State {
+        /** Requests flow normally */
+        CLOSED,
+        /** The backend is failing; requests fail fast or go to another backend */
+        OPEN,
+        /** A background probe is checking whether the backend has recovered */
+        HALF_OPEN
+    }
+}
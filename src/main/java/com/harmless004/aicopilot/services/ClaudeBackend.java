@@ -0,0 +1,99 @@
+package com.harmless004.aicopilot.services;
+
+import com.harmless004.aicopilot.settings.AICopilotSettings;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Anthropic Claude models, authenticated with the ANTHROPIC_API_KEY environment variable
+ */
+public final class ClaudeBackend implements CompletionBackend {
+
+    public static final String ID = "claude";
+    static final String DEFAULT_BASE_URL = "https://api.anthropic.com/v1";
+    static final String DEFAULT_MODEL = "claude-3-sonnet-20240229";
+    private static final String API_VERSION = "2023-06-01";
+
+    @NotNull
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @NotNull
+    @Override
+    public String getDisplayName() {
+        return "Claude";
+    }
+
+    @NotNull
+    @Override
+    public String getModel() {
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        return settings != null ? settings.getClaudeModel() : DEFAULT_MODEL;
+    }
+
+    @Override
+    public boolean isConfigured() {
+        String apiKey = getApiKey();
+        return apiKey != null && !apiKey.trim().isEmpty();
+    }
+
+    @NotNull
+    @Override
+    public Set<Capability> getCapabilities() {
+        return EnumSet.of(Capability.STREAMING);
+    }
+
+    @NotNull
+    @Override
+    public HttpRequest.Builder newCompletionRequest(@NotNull CompletionRequest request, int maxTokens, boolean stream,
+                                                    int candidates) {
+        return authorize(HttpRequest.newBuilder()
+                .uri(endpoint("/messages"))
+                .header("Content-Type", "application/json")
+                .POST(RequestBodyWriter.claude(getModel(), request, maxTokens, stream)));
+    }
+
+    @Nullable
+    @Override
+    public String parseStreamEvent(@NotNull String data) throws IOException {
+        return CompletionResponseParser.parseClaudeStreamEvent(data);
+    }
+
+    @Nullable
+    @Override
+    public String parseResponse(@NotNull Reader body) throws IOException {
+        return CompletionResponseParser.parseClaudeResponse(body);
+    }
+
+    @Nullable
+    @Override
+    public HttpRequest.Builder newProbeRequest() {
+        return authorize(HttpRequest.newBuilder().uri(endpoint("/models")).GET());
+    }
+
+    private HttpRequest.Builder authorize(HttpRequest.Builder builder) {
+        String apiKey = getApiKey();
+        return builder
+                .header("x-api-key", apiKey != null ? apiKey : "")
+                .header("anthropic-version", API_VERSION);
+    }
+
+    private URI endpoint(String path) {
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        String baseUrl = settings != null ? settings.getClaudeBaseUrl() : DEFAULT_BASE_URL;
+        return URI.create(baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) + path : baseUrl + path);
+    }
+
+    private static String getApiKey() {
+        return System.getenv("ANTHROPIC_API_KEY");
+    }
+}
@@ -1,14 +1,19 @@
 package com.harmless004.aicopilot.services;
 
+import com.harmless004.aicopilot.settings.AICopilotSettings;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
 import com.intellij.psi.util.PsiTreeUtil;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -18,84 +23,131 @@ import java.util.stream.Collectors;
  */
 public class CodeContextAnalyzer {
 
-    private static final int MAX_CONTEXT_LENGTH = 2000;
+    // Token budget of the assembled context and the allowance of each section, filled in this order
+    private static final int MAX_CONTEXT_TOKENS = 720;
+    private static final int CODE_TOKENS = 384;
+    private static final int SYMBOL_TOKENS = 128;
+    private static final int STRUCTURE_TOKENS = 64;
+    private static final int IMPORT_TOKENS = 96;
+    private static final int SNIPPET_TOKENS = 160;
+    private static final int CODE_PRIORITY = 0;
+    private static final int SYMBOL_PRIORITY = 1;
+    private static final int STRUCTURE_PRIORITY = 2;
+    private static final int IMPORT_PRIORITY = 3;
+    private static final int SNIPPET_PRIORITY = 4;
+    private static final int MAX_SNIPPETS = 2;
     private static final int LINES_BEFORE_CURSOR = 15;
     private static final int LINES_AFTER_CURSOR = 5;
+    private static final Key<ContextSnapshot> SNAPSHOT_KEY = Key.create("AICopilot.ContextSnapshot");
 
     /**
-     * Extracts comprehensive context from the current file and cursor position
+     * Extracts comprehensive context from the current file and cursor position.
+     * Sections read from this document alone are cached per document version, so repeated
+     * triggers on an unchanged document only redo the parts that depend on where the caret moved;
+     * referenced types and related code depend on other files and are looked up every time.
+     * The result fits a token budget in which the lines around the cursor come first, then
+     * referenced types, structure and imports.
      */
     public String extractContext(@NotNull PsiFile file, @NotNull Editor editor, int offset) {
-        StringBuilder context = new StringBuilder();
+        Document document = editor.getDocument();
+        ContextSnapshot snapshot = getSnapshot(document);
+
+        ContextBudget context = new ContextBudget(MAX_CONTEXT_TOKENS);
 
         // 1. File information
-        context.append("File: ").append(file.getName()).append("\n");
-        context.append("Language: ").append(file.getFileType().getName()).append("\n\n");
+        context.addFixed("File: " + file.getName() + "\nLanguage: " + file.getFileType().getName());
 
         // 2. Imports and dependencies
-        String imports = extractImportsAndPackages(file);
+        String imports = snapshot.getImports();
+        if (imports == null) {
+            imports = extractImportsAndPackages(document.getImmutableCharSequence());
+            snapshot.setImports(imports);
+        }
         if (!imports.isEmpty()) {
-            context.append("Dependencies:\n").append(imports).append("\n\n");
+            context.addSection("Dependencies", List.of(imports.split("\n")), IMPORT_PRIORITY, IMPORT_TOKENS);
         }
 
         // 3. Current class/function context
-        String structureContext = extractStructureContext(file, offset);
+        int line = document.getLineNumber(offset);
+        String structureContext = snapshot.getStructure(line);
+        if (structureContext == null) {
+            structureContext = extractStructureContext(file, document, offset);
+            snapshot.setStructure(line, structureContext);
+        }
         if (!structureContext.isEmpty()) {
-            context.append("Structure Context:\n").append(structureContext).append("\n\n");
+            context.addSection("Structure Context", List.of(structureContext.split("\n")),
+                    STRUCTURE_PRIORITY, STRUCTURE_TOKENS);
         }
 
-        // 4. Surrounding code with proper context
-        String codeContext = extractSurroundingCode(editor, offset);
-        context.append("Code Context:\n").append(codeContext);
+        // 4. Signatures of the types used at the cursor
+        List<String> signatures = SymbolSignatures.describeReferencedTypes(file, offset);
+        if (!signatures.isEmpty()) {
+            context.addSection("Referenced Types", signatures, SYMBOL_PRIORITY, SYMBOL_TOKENS);
+        }
 
-        // Limit and clean up context
-        String result = context.toString();
-        if (result.length() > MAX_CONTEXT_LENGTH) {
-            result = result.substring(0, MAX_CONTEXT_LENGTH) + "\n... (truncated for brevity)";
+        // 5. Similar code from other files, open ones first
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        if (settings != null && settings.isSendProjectContext()) {
+            List<SnippetRetriever.Snippet> snippets = findRelatedCode(file, document, offset);
+            for (SnippetRetriever.Snippet snippet : snippets) {
+                context.addSection("Related Code (" + snippet.getFileName() + ":" + (snippet.getStartLine() + 1) + ")",
+                        List.of(snippet.getText().split("\n")), SNIPPET_PRIORITY, SNIPPET_TOKENS / snippets.size());
+            }
         }
 
-        return result;
+        // 6. Surrounding code, kept outward from the cursor line with two lines before for each after
+        List<String> codeContext = snapshot.getCode(offset);
+        if (codeContext == null) {
+            codeContext = extractSurroundingCode(editor, offset);
+            snapshot.setCode(offset, codeContext);
+        }
+        int cursorLine = Math.min(line, LINES_BEFORE_CURSOR);
+        int cursorColumn = Math.max(0, codeContext.get(cursorLine).indexOf('█'));
+        context.addWindow("Code Context", codeContext, cursorLine, cursorColumn, 2, CODE_PRIORITY, CODE_TOKENS);
+
+        return context.build();
     }
 
     /**
-     * Extracts imports, packages, and dependencies - works for multiple languages
+     * Looks for similar code in open and recently edited files, then tops up from the project
+     * index with files not matched yet
      */
-    private String extractImportsAndPackages(@NotNull PsiFile file) {
-        List<String> dependencies = new ArrayList<>();
-        String fileText = file.getText();
-        String[] lines = fileText.split("\n");
-
-        int lineCount = 0;
-        for (String line : lines) {
-            lineCount++;
-            String trimmed = line.trim();
-
-            // Skip empty lines and comments
-            if (trimmed.isEmpty() || trimmed.startsWith("//") || trimmed.startsWith("/*")) {
-                continue;
-            }
-
-            // Java/Kotlin/Scala imports and package
-            if (trimmed.startsWith("package ") || trimmed.startsWith("import ")) {
-                dependencies.add(trimmed);
-            }
-            // Python imports
-            else if (trimmed.startsWith("from ") || (trimmed.startsWith("import ") && !trimmed.contains("java"))) {
-                dependencies.add(trimmed);
-            }
-            // JavaScript/TypeScript imports and requires
-            else if (trimmed.startsWith("import ") || trimmed.startsWith("const ") && trimmed.contains("require") ||
-                    trimmed.startsWith("let ") && trimmed.contains("require")) {
-                dependencies.add(trimmed);
+    private List<SnippetRetriever.Snippet> findRelatedCode(@NotNull PsiFile file, @NotNull Document document,
+                                                           int offset) {
+        List<SnippetRetriever.Snippet> snippets = new ArrayList<>(
+                OpenFilesMatcher.getInstance().findSimilar(document, offset, MAX_SNIPPETS));
+        if (snippets.size() < MAX_SNIPPETS) {
+            Set<VirtualFile> matched = new HashSet<>();
+            snippets.forEach(snippet -> matched.add(snippet.getFile()));
+            for (SnippetRetriever.Snippet snippet : SnippetRetriever.findSimilar(file.getProject(),
+                    file.getVirtualFile(), document, offset, MAX_SNIPPETS)) {
+                if (snippets.size() < MAX_SNIPPETS && matched.add(snippet.getFile())) {
+                    snippets.add(snippet);
+                }
             }
+        }
+        return snippets;
+    }
 
-            // Stop after 50 lines or 20 imports to avoid processing entire file
-            if (lineCount > 50 || dependencies.size() > 20) {
-                break;
-            }
+    /**
+     * Returns the cached sections of the document's current version, starting over once it changed.
+     * Stored on the document itself so the cache goes away with it.
+     */
+    private ContextSnapshot getSnapshot(Document document) {
+        long modificationStamp = document.getModificationStamp();
+        ContextSnapshot snapshot = document.getUserData(SNAPSHOT_KEY);
+        if (snapshot == null || snapshot.getModificationStamp() != modificationStamp) {
+            snapshot = new ContextSnapshot(modificationStamp);
+            document.putUserData(SNAPSHOT_KEY, snapshot);
         }
+        return snapshot;
+    }
 
-        return dependencies.stream()
+    /**
+     * Extracts imports, packages, and dependencies - works for multiple languages
+     */
+    private String extractImportsAndPackages(@NotNull CharSequence text) {
+        return CodeScanner.scan(text, 0).getDependencies().stream()
                 .distinct()
                 .limit(15)
                 .collect(Collectors.joining("\n"));
@@ -104,17 +156,18 @@ public class CodeContextAnalyzer {
     /**
      * Extracts structural context - classes, methods, functions around cursor
      */
-    private String extractStructureContext(@NotNull PsiFile file, int offset) {
+    private String extractStructureContext(@NotNull PsiFile file, @NotNull Document document, int offset) {
         List<String> structure = new ArrayList<>();
 
         try {
             PsiElement element = file.findElementAt(offset);
             if (element != null) {
+                StructureAnalyzer analyzer = StructureAnalyzer.forFile(file);
 
                 // Find containing structures using PSI tree walking
                 PsiElement current = element;
                 while (current != null && structure.size() < 5) {
-                    String elementInfo = getElementStructureInfo(current);
+                    String elementInfo = analyzer.describe(current);
                     if (elementInfo != null && !elementInfo.isEmpty()) {
                         structure.add(elementInfo);
                     }
@@ -123,11 +176,11 @@ public class CodeContextAnalyzer {
             }
         } catch (Exception e) {
             // Fallback to text-based analysis if PSI fails
-            return extractStructureFromText(file, offset);
+            return extractStructureFromText(document, offset);
         }
 
         if (structure.isEmpty()) {
-            return extractStructureFromText(file, offset);
+            return extractStructureFromText(document, offset);
         }
 
         return structure.stream()
@@ -136,133 +189,45 @@ public class CodeContextAnalyzer {
     }
 
     /**
-     * Get structure information from PSI element
-     */
-    private String getElementStructureInfo(PsiElement element) {
-        if (element == null) return null;
-
-        String elementType = element.getClass().getSimpleName();
-        String elementText = element.getText();
-
-        // Handle different types of elements
-        if (elementType.contains("Class")) {
-            return extractClassInfo(element);
-        } else if (elementType.contains("Method") || elementType.contains("Function")) {
-            return extractMethodInfo(element);
-        } else if (elementType.contains("Field") || elementType.contains("Variable")) {
-            return extractFieldInfo(element);
-        }
-
-        return null;
-    }
-
-    /**
-     * Extract class information
-     */
-    private String extractClassInfo(PsiElement element) {
-        try {
-            String text = element.getText();
-            String[] lines = text.split("\n");
-            String firstLine = lines[0].trim();
-
-            // Clean up class declaration
-            if (firstLine.contains("{")) {
-                firstLine = firstLine.substring(0, firstLine.indexOf("{")).trim();
-            }
-
-            return "Class: " + firstLine;
-        } catch (Exception e) {
-            return "Class: " + element.toString().substring(0, Math.min(50, element.toString().length()));
-        }
-    }
-
-    /**
-     * Extract method/function information
-     */
-    private String extractMethodInfo(PsiElement element) {
-        try {
-            String text = element.getText();
-            String[] lines = text.split("\n");
-            String signature = lines[0].trim();
-
-            // Clean up method signature
-            if (signature.contains("{")) {
-                signature = signature.substring(0, signature.indexOf("{")).trim();
-            }
-
-            return "Method: " + signature;
-        } catch (Exception e) {
-            return "Method: " + element.toString().substring(0, Math.min(60, element.toString().length()));
-        }
-    }
-
-    /**
-     * Extract field/variable information
-     */
-    private String extractFieldInfo(PsiElement element) {
-        try {
-            String text = element.getText().trim();
-            if (text.length() > 80) {
-                text = text.substring(0, 80) + "...";
-            }
-            return "Field: " + text;
-        } catch (Exception e) {
-            return null;
-        }
-    }
-
-    /**
-     * Fallback text-based structure extraction
+     * Fallback text-based structure extraction: the method and class enclosing the cursor, or for
+     * languages without braces the declarations among the 20 lines up to the cursor
      */
-    private String extractStructureFromText(@NotNull PsiFile file, int offset) {
+    private String extractStructureFromText(@NotNull Document document, int offset) {
         List<String> structure = new ArrayList<>();
-        String fileText = file.getText();
-        String[] lines = fileText.split("\n");
-
-        Document doc = PsiDocumentManager.getInstance(file.getProject()).getDocument(file);
-        if (doc == null) return "";
 
-        int currentLine = doc.getLineNumber(offset);
-
-        // Look backwards for class/method declarations
-        for (int i = currentLine; i >= 0 && i >= currentLine - 20; i--) {
-            if (i < lines.length) {
-                String line = lines[i].trim();
-
-                if (isClassDeclaration(line)) {
-                    structure.add("Class: " + cleanDeclaration(line));
-                } else if (isMethodDeclaration(line)) {
-                    structure.add("Method: " + cleanDeclaration(line));
-                } else if (isFunctionDeclaration(line)) {
-                    structure.add("Function: " + cleanDeclaration(line));
+        ScopeIndex index = ScopeIndexManager.getInstance().get(document);
+        if (index != null) {
+            ScopeIndex.Scope scope = index.scopeAt(document, offset);
+            for (int line : new int[]{scope.getMethodLine(), scope.getClassLine()}) {
+                if (line >= 0) {
+                    String text = document.getText(new TextRange(document.getLineStartOffset(line),
+                            document.getLineEndOffset(line))).trim();
+                    CodeScanner.Declaration.Kind kind = CodeScanner.declarationKind(text, 0, text.length());
+                    if (kind != null) {
+                        structure.add(describeDeclaration(kind, text));
+                    }
                 }
             }
+            if (!structure.isEmpty()) {
+                return String.join("\n", structure);
+            }
         }
 
-        return structure.stream().collect(Collectors.joining("\n"));
-    }
-
-    /**
-     * Check if line is a class declaration
-     */
-    private boolean isClassDeclaration(String line) {
-        return line.contains("class ") && !line.startsWith("//") && !line.startsWith("*");
-    }
+        CharSequence text = document.getImmutableCharSequence();
+        for (CodeScanner.Declaration declaration : CodeScanner.scan(text, offset).getDeclarations()) {
+            structure.add(describeDeclaration(declaration.kind, declaration.text));
+        }
 
-    /**
-     * Check if line is a method declaration
-     */
-    private boolean isMethodDeclaration(String line) {
-        return (line.contains("public ") || line.contains("private ") || line.contains("protected ")) &&
-                line.contains("(") && !line.startsWith("//");
+        return String.join("\n", structure);
     }
 
-    /**
-     * Check if line is a function declaration
-     */
-    private boolean isFunctionDeclaration(String line) {
-        return (line.startsWith("def ") || line.contains("function ")) &&
-                line.contains("(") && !line.startsWith("//");
+    private String describeDeclaration(CodeScanner.Declaration.Kind kind, String line) {
+        String label = switch (kind) {
+            case CLASS -> "Class: ";
+            case METHOD -> "Method: ";
+            case FUNCTION -> "Function: ";
+        };
+        return label + cleanDeclaration(line);
     }
 
     /**
@@ -283,9 +248,9 @@ public class CodeContextAnalyzer {
     }
 
     /**
-     * Extracts code around cursor with intelligent context
+     * Extracts code around cursor with intelligent context, one entry per line
      */
-    private String extractSurroundingCode(@NotNull Editor editor, int offset) {
+    private List<String> extractSurroundingCode(@NotNull Editor editor, int offset) {
         Document document = editor.getDocument();
         int currentLineNum = document.getLineNumber(offset);
         int totalLines = document.getLineCount();
@@ -297,7 +262,7 @@ public class CodeContextAnalyzer {
         int startLine = currentLineNum - beforeLines;
         int endLine = currentLineNum + afterLines;
 
-        StringBuilder code = new StringBuilder();
+        List<String> code = new ArrayList<>();
 
         for (int i = startLine; i <= endLine; i++) {
             if (i >= 0 && i < totalLines) {
@@ -313,14 +278,41 @@ public class CodeContextAnalyzer {
                     int cursorPos = offset - lineStart;
                     String beforeCursor = lineText.substring(0, Math.min(cursorPos, lineText.length()));
                     String afterCursor = lineText.substring(Math.min(cursorPos, lineText.length()));
-                    code.append(lineNumber).append(beforeCursor).append("█").append(afterCursor).append("\n");
+                    code.add(lineNumber + beforeCursor + "█" + afterCursor);
                 } else {
-                    code.append(lineNumber).append(lineText).append("\n");
+                    code.add(lineNumber + lineText);
                 }
             }
         }
 
-        return code.toString();
+        return code;
+    }
+
+    /**
+     * Builds a key for the code around the cursor line, excluding the line itself, so it stays
+     * the same while the user types on that line. Hashes only the same window of lines as
+     * {@link #extractSurroundingCode} and is cheap enough to compute on every keystroke.
+     */
+    public String extractStableContextKey(@NotNull Editor editor, int offset) {
+        Document document = editor.getDocument();
+        CharSequence text = document.getImmutableCharSequence();
+        int currentLineNum = document.getLineNumber(offset);
+        int startLine = Math.max(0, currentLineNum - LINES_BEFORE_CURSOR);
+        int endLine = Math.min(document.getLineCount() - 1, currentLineNum + LINES_AFTER_CURSOR);
+
+        // 64-bit FNV-1a over the lines before and after the cursor line
+        long hash = 0xcbf29ce484222325L;
+        int beforeEnd = document.getLineStartOffset(currentLineNum);
+        for (int i = document.getLineStartOffset(startLine); i < beforeEnd; i++) {
+            hash = (hash ^ text.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ '\u0000') * 0x100000001b3L;
+        int afterEnd = document.getLineEndOffset(endLine);
+        for (int i = document.getLineEndOffset(currentLineNum); i < afterEnd; i++) {
+            hash = (hash ^ text.charAt(i)) * 0x100000001b3L;
+        }
+
+        return Long.toHexString(hash);
     }
 
     /**
@@ -328,12 +320,27 @@ public class CodeContextAnalyzer {
      */
     public CodeContext analyzeCurrentContext(@NotNull PsiFile file, int offset) {
         String currentLine = getCurrentLineText(file, offset);
+        Document document = PsiDocumentManager.getInstance(file.getProject()).getDocument(file);
+        ScopeIndex index = document != null ? ScopeIndexManager.getInstance().get(document) : null;
+
+        boolean inMethod;
+        boolean inClass;
+        boolean textInComment;
+        if (index != null) {
+            ScopeIndex.Scope scope = index.scopeAt(document, offset);
+            inMethod = scope.getMethodLine() >= 0;
+            // Languages without braces only tell us that a class was declared somewhere above
+            inClass = scope.getClassLine() >= 0 || scope.getDepth() == 0 && scope.isClassBefore();
+            textInComment = scope.isInComment();
+        } else {
+            CodeScanner.Result scan = CodeScanner.scan(getText(file), offset);
+            inMethod = scan.isMethodSignatureSeen() && scan.getBraceDepth() > 0;
+            inClass = scan.isClassSeen();
+            textInComment = scan.isInComment();
+        }
 
-        boolean inComment = isInComment(file, offset);
-        boolean inMethod = isInMethod(file, offset);
-        boolean inClass = isInClass(file, offset);
-
-        CompletionContext context = determineCompletionContext(currentLine, file, offset);
+        boolean inComment = isInComment(file, offset, textInComment);
+        CompletionContext context = determineCompletionContext(currentLine, inComment);
 
         return new CodeContext(inMethod, inClass, inComment, context, currentLine);
     }
@@ -341,7 +348,7 @@ public class CodeContextAnalyzer {
     /**
      * Check if cursor is in a comment
      */
-    private boolean isInComment(@NotNull PsiFile file, int offset) {
+    private boolean isInComment(@NotNull PsiFile file, int offset, boolean textInComment) {
         try {
             PsiElement element = file.findElementAt(offset);
             while (element != null) {
@@ -354,59 +361,18 @@ public class CodeContextAnalyzer {
         } catch (Exception e) {
             // Text-based fallback
             String line = getCurrentLineText(file, offset).trim();
-            return line.startsWith("//") || line.startsWith("/*") || line.startsWith("#");
+            return textInComment || line.startsWith("#");
         }
         return false;
     }
 
-    /**
-     * Check if cursor is in a method
-     */
-    private boolean isInMethod(@NotNull PsiFile file, int offset) {
-        String textBefore = file.getText().substring(0, Math.min(offset, file.getText().length()));
-
-        // Count braces to determine if we're inside a method
-        int openBraces = 0;
-        boolean foundMethodSignature = false;
-
-        String[] lines = textBefore.split("\n");
-        for (String line : lines) {
-            String trimmed = line.trim();
-
-            // Look for method signatures
-            if (!trimmed.startsWith("//") && (
-                    (trimmed.contains("public ") || trimmed.contains("private ") ||
-                            trimmed.contains("protected ")) && trimmed.contains("(") ||
-                            trimmed.startsWith("def ") && trimmed.contains("(") ||
-                            trimmed.contains("function ") && trimmed.contains("("))) {
-                foundMethodSignature = true;
-            }
-
-            // Count braces
-            for (char c : line.toCharArray()) {
-                if (c == '{') openBraces++;
-                else if (c == '}') openBraces--;
-            }
-        }
-
-        return foundMethodSignature && openBraces > 0;
-    }
-
-    /**
-     * Check if cursor is in a class
-     */
-    private boolean isInClass(@NotNull PsiFile file, int offset) {
-        String textBefore = file.getText().substring(0, Math.min(offset, file.getText().length()));
-        return textBefore.contains("class ") && !textBefore.substring(textBefore.lastIndexOf("class ")).startsWith("// class");
-    }
-
     /**
      * Determine what type of completion is needed
      */
-    private CompletionContext determineCompletionContext(String currentLine, PsiFile file, int offset) {
+    private CompletionContext determineCompletionContext(String currentLine, boolean inComment) {
         String trimmed = currentLine.trim();
 
-        if (isInComment(file, offset)) {
+        if (inComment) {
             return CompletionContext.COMMENT;
         }
 
@@ -430,6 +396,14 @@ public class CodeContextAnalyzer {
         return CompletionContext.GENERAL_CODE;
     }
 
+    /**
+     * Returns the file's text without copying it where a document is available
+     */
+    private CharSequence getText(@NotNull PsiFile file) {
+        Document document = PsiDocumentManager.getInstance(file.getProject()).getDocument(file);
+        return document != null ? document.getImmutableCharSequence() : file.getText();
+    }
+
     /**
      * Get current line text
      */
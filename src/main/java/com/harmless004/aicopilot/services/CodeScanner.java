@@ -0,0 +1,312 @@
+package com.harmless004.aicopilot.services;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Single forward pass over source text that gathers everything the text-based context analysis
+ * needs: dependency lines, brace depth, recent declarations and comment state at an offset.
+ * <p>
+ * Works on the {@link CharSequence} directly, for example a document's immutable char sequence,
+ * so no copy of the file and no per-line strings are made; only the lines it returns are
+ * materialized. Braces inside comments and string literals are not counted.
+ */
+final class CodeScanner {
+
+    // Dependencies are looked for in the head of the file only
+    private static final int DEPENDENCY_LINES = 51;
+    private static final int MAX_DEPENDENCIES = 21;
+    private static final int DECLARATION_WINDOW_LINES = 20;
+
+    private static final int CODE = 0;
+    private static final int LINE_COMMENT = 1;
+    private static final int BLOCK_COMMENT = 2;
+    private static final int STRING = 3;
+    private static final int TEXT_BLOCK = 4;
+
+    private CodeScanner() {
+    }
+
+    /**
+     * Scans from the start of the text to the end of the line containing the offset, or through
+     * the dependency lines at the top of the file if that is further
+     */
+    @NotNull
+    static Result scan(@NotNull CharSequence text, int offset) {
+        int length = text.length();
+        offset = Math.max(0, Math.min(offset, length));
+
+        List<String> dependencies = new ArrayList<>();
+        Deque<Declaration> declarations = new ArrayDeque<>();
+        int braceDepth = 0;
+        boolean methodSignatureSeen = false;
+        boolean classSeen = false;
+        boolean inComment = false;
+        int state = CODE;
+        char quote = 0;
+
+        int line = 0;
+        int offsetLine = 0;
+        for (int lineStart = 0; lineStart <= length; line++) {
+            int lineEnd = indexOf(text, '\n', lineStart, length);
+            boolean upToOffset = lineStart <= offset;
+            boolean inDependencyLines = line < DEPENDENCY_LINES && dependencies.size() < MAX_DEPENDENCIES;
+            if (!upToOffset && !inDependencyLines) {
+                break;
+            }
+
+            int start = skipWhitespace(text, lineStart, lineEnd);
+            int end = trimEnd(text, start, lineEnd);
+            boolean startsInComment = state == BLOCK_COMMENT || state == TEXT_BLOCK;
+            boolean commentLine = startsInComment || startsWith(text, start, end, "//") || startsWith(text, start, end, "/*");
+
+            if (inDependencyLines && !commentLine && isDependency(text, start, end)) {
+                dependencies.add(text.subSequence(start, end).toString());
+            }
+
+            if (upToOffset) {
+                offsetLine = line;
+                // Only the part of the caret line before the caret counts
+                int before = Math.min(end, Math.max(start, offset));
+                if (!commentLine) {
+                    methodSignatureSeen |= isMethodSignature(text, start, before);
+                    classSeen |= indexOf(text, "class ", start, before) >= 0;
+                }
+
+                Declaration.Kind kind = startsInComment ? null : declarationKind(text, start, end);
+                if (kind != null) {
+                    declarations.addLast(new Declaration(kind, line, text.subSequence(start, end).toString()));
+                }
+                while (!declarations.isEmpty() && declarations.peekFirst().line < line - DECLARATION_WINDOW_LINES) {
+                    declarations.removeFirst();
+                }
+            }
+
+            for (int i = lineStart; i < lineEnd; i++) {
+                if (i == offset) {
+                    inComment = state == LINE_COMMENT || state == BLOCK_COMMENT;
+                }
+                char c = text.charAt(i);
+                char next = i + 1 < lineEnd ? text.charAt(i + 1) : 0;
+
+                switch (state) {
+                    case CODE -> {
+                        if (c == '/' && next == '/') {
+                            state = LINE_COMMENT;
+                        } else if (c == '/' && next == '*') {
+                            state = BLOCK_COMMENT;
+                            i++;
+                        } else if (c == '"' && next == '"' && i + 2 < lineEnd && text.charAt(i + 2) == '"') {
+                            state = TEXT_BLOCK;
+                            i += 2;
+                        } else if (c == '"' || c == '\'' || c == '`') {
+                            state = STRING;
+                            quote = c;
+                        } else if (i < offset && c == '{') {
+                            braceDepth++;
+                        } else if (i < offset && c == '}') {
+                            braceDepth--;
+                        }
+                    }
+                    case BLOCK_COMMENT -> {
+                        if (c == '*' && next == '/') {
+                            state = CODE;
+                            i++;
+                        }
+                    }
+                    case STRING -> {
+                        if (c == '\\') {
+                            i++;
+                        } else if (c == quote) {
+                            state = CODE;
+                        }
+                    }
+                    case TEXT_BLOCK -> {
+                        if (c == '\\') {
+                            i++;
+                        } else if (c == '"' && next == '"' && i + 2 < lineEnd && text.charAt(i + 2) == '"') {
+                            state = CODE;
+                            i += 2;
+                        }
+                    }
+                    default -> {
+                        // Rest of a line comment
+                    }
+                }
+            }
+            if (lineEnd == offset) {
+                inComment = state == LINE_COMMENT || state == BLOCK_COMMENT;
+            }
+
+            // Line comments end with the line; so do unterminated single-line strings
+            if (state == LINE_COMMENT || state == STRING) {
+                state = CODE;
+            }
+            lineStart = lineEnd + 1;
+        }
+
+        List<Declaration> nearestFirst = new ArrayList<>(declarations.size());
+        for (Iterator<Declaration> it = declarations.descendingIterator(); it.hasNext(); ) {
+            Declaration declaration = it.next();
+            if (declaration.line >= offsetLine - DECLARATION_WINDOW_LINES) {
+                nearestFirst.add(declaration);
+            }
+        }
+        return new Result(dependencies, nearestFirst, braceDepth, methodSignatureSeen, classSeen, inComment);
+    }
+
+    /**
+     * Package, import and require lines of Java, Kotlin, Scala, Python and JavaScript
+     */
+    private static boolean isDependency(CharSequence text, int start, int end) {
+        return startsWith(text, start, end, "package ")
+                || startsWith(text, start, end, "import ")
+                || startsWith(text, start, end, "from ")
+                || (startsWith(text, start, end, "const ") || startsWith(text, start, end, "let "))
+                && indexOf(text, "require", start, end) >= 0;
+    }
+
+    private static boolean isMethodSignature(CharSequence text, int start, int end) {
+        if (indexOf(text, "(", start, end) < 0) {
+            return false;
+        }
+        return isAccessModified(text, start, end)
+                || startsWith(text, start, end, "def ")
+                || indexOf(text, "function ", start, end) >= 0;
+    }
+
+    /**
+     * Classifies the trimmed line between start and end, or returns null if it declares nothing
+     */
+    static Declaration.Kind declarationKind(CharSequence text, int start, int end) {
+        if (startsWith(text, start, end, "//")) {
+            return null;
+        }
+        if (indexOf(text, "class ", start, end) >= 0 && !startsWith(text, start, end, "*")) {
+            return Declaration.Kind.CLASS;
+        }
+        if (indexOf(text, "(", start, end) < 0) {
+            return null;
+        }
+        if (isAccessModified(text, start, end)) {
+            return Declaration.Kind.METHOD;
+        }
+        if (startsWith(text, start, end, "def ") || indexOf(text, "function ", start, end) >= 0) {
+            return Declaration.Kind.FUNCTION;
+        }
+        return null;
+    }
+
+    private static boolean isAccessModified(CharSequence text, int start, int end) {
+        return indexOf(text, "public ", start, end) >= 0
+                || indexOf(text, "private ", start, end) >= 0
+                || indexOf(text, "protected ", start, end) >= 0;
+    }
+
+    private static int indexOf(CharSequence text, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static int indexOf(CharSequence text, String needle, int from, int to) {
+        char first = needle.charAt(0);
+        for (int i = from, last = to - needle.length(); i <= last; i++) {
+            if (text.charAt(i) == first && startsWith(text, i, to, needle)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(CharSequence text, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int skipWhitespace(CharSequence text, int from, int to) {
+        while (from < to && Character.isWhitespace(text.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    static int trimEnd(CharSequence text, int from, int to) {
+        while (to > from && Character.isWhitespace(text.charAt(to - 1))) {
+            to--;
+        }
+        return to;
+    }
+
+    /**
+     * What a scan found
+     */
+    static final class Result {
+        private final List<String> dependencies;
+        private final List<Declaration> declarations;
+        private final int braceDepth;
+        private final boolean methodSignatureSeen;
+        private final boolean classSeen;
+        private final boolean inComment;
+
+        Result(List<String> dependencies, List<Declaration> declarations, int braceDepth,
+               boolean methodSignatureSeen, boolean classSeen, boolean inComment) {
+            this.dependencies = dependencies;
+            this.declarations = declarations;
+            this.braceDepth = braceDepth;
+            this.methodSignatureSeen = methodSignatureSeen;
+            this.classSeen = classSeen;
+            this.inComment = inComment;
+        }
+
+        /** Trimmed package, import and require lines from the head of the file, in order */
+        List<String> getDependencies() { return dependencies; }
+
+        /** Declaration lines among the 20 lines up to the offset's line, nearest first */
+        List<Declaration> getDeclarations() { return declarations; }
+
+        /** Unclosed braces before the offset */
+        int getBraceDepth() { return braceDepth; }
+
+        /** Whether a method or function signature precedes the offset */
+        boolean isMethodSignatureSeen() { return methodSignatureSeen; }
+
+        /** Whether a class declaration precedes the offset */
+        boolean isClassSeen() { return classSeen; }
+
+        /** Whether the offset lies inside a comment */
+        boolean isInComment() { return inComment; }
+    }
+
+    /**
+     * A line that declares a class, method or function
+     */
+    static final class Declaration {
+        enum Kind { CLASS, METHOD, FUNCTION }
+
+        final Kind kind;
+        final int line;
+        final String text;
+
+        Declaration(Kind kind, int line, String text) {
+            this.kind = kind;
+            this.line = line;
+            this.text = text;
+        }
+    }
+}
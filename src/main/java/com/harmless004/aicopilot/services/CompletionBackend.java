@@ -0,0 +1,107 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.openapi.extensions.ExtensionPointName;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.http.HttpRequest;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A service that generates code completions, such as a hosted model API or a local model server.
+ * <p>
+ * Backends are contributed through the {@code com.harmless004.aicopilot.completionBackend}
+ * extension point. {@link AIService} takes care of caching, scheduling, rate limiting, timeouts
+ * and failover; a backend only describes how to talk to its API.
+ */
+public interface CompletionBackend {
+
+    ExtensionPointName<CompletionBackend> EP_NAME =
+            ExtensionPointName.create("com.harmless004.aicopilot.completionBackend");
+
+    /**
+     * Stable identifier, used in settings and the AI_PROVIDER environment variable
+     */
+    @NotNull
+    String getId();
+
+    @NotNull
+    String getDisplayName();
+
+    /**
+     * Model used for completions; latency statistics are kept per backend and model
+     */
+    @NotNull
+    String getModel();
+
+    /**
+     * Whether the backend has everything it needs to serve requests, such as an API key
+     */
+    boolean isConfigured();
+
+    @NotNull
+    Set<Capability> getCapabilities();
+
+    /**
+     * Builds the HTTP request for a completion; the service sets the timeout.
+     * {@code candidates} is only greater than one for backends with {@link Capability#MULTIPLE_CANDIDATES};
+     * a streamed response then interleaves the choices, see {@link #parseStreamChoices}.
+     */
+    @NotNull
+    HttpRequest.Builder newCompletionRequest(@NotNull CompletionRequest request, int maxTokens, boolean stream,
+                                             int candidates);
+
+    /**
+     * Extracts the text delta from the data of one server-sent event, or null if it carries none
+     */
+    @Nullable
+    String parseStreamEvent(@NotNull String data) throws IOException;
+
+    /**
+     * Extracts the text delta of each choice from one server-sent event of a stream for several
+     * candidates, keyed by choice index
+     */
+    @NotNull
+    default Map<Integer, String> parseStreamChoices(@NotNull String data) throws IOException {
+        String delta = parseStreamEvent(data);
+        return delta != null ? Map.of(0, delta) : Map.of();
+    }
+
+    /**
+     * Extracts the completion from a whole, non-streamed response body
+     */
+    @Nullable
+    String parseResponse(@NotNull Reader body) throws IOException;
+
+    /**
+     * Extracts every alternative from a whole response to a request for several candidates
+     */
+    @NotNull
+    default List<String> parseCandidates(@NotNull Reader body) throws IOException {
+        String completion = parseResponse(body);
+        return completion != null ? List.of(completion) : List.of();
+    }
+
+    /**
+     * Builds a cheap request used to check whether the backend has recovered after failures,
+     * or returns null if the backend cannot be probed
+     */
+    @Nullable
+    HttpRequest.Builder newProbeRequest();
+
+    /**
+     * Optional features of a backend
+     */
+    enum Capability {
+        /** Can stream the completion as server-sent events */
+        STREAMING,
+        /** Returns several alternative completions for one request */
+        MULTIPLE_CANDIDATES,
+        /** Runs on this machine: no rate limits and no per-token cost */
+        LOCAL
+    }
+}
@@ -0,0 +1,465 @@
+package com.harmless004.aicopilot.services;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded response cache using the W-TinyLFU policy.
+ * New entries land in a small LRU window; when they leave it they must beat the
+ * main region's eviction victim on estimated access frequency to be admitted.
+ * The main region is a segmented LRU (probation + protected). Capacity is measured
+ * in bytes, entries expire after a time-to-live and the cache can be resized live.
+ */
+public final class CompletionCache {
+
+    // Average completion entry budget used to turn an entry count into a byte capacity
+    static final int BYTES_PER_ENTRY = 2048;
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.80;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    private FrequencySketch sketch;
+    private int maximumEntries;
+    private long maximumWeight;
+    private long windowMaximum;
+    private long protectedMaximum;
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+    private long timeToLiveNanos;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private long expirationCount;
+    private long rejectedCount;
+
+    public CompletionCache(int maximumEntries, @NotNull Duration timeToLive) {
+        this.timeToLiveNanos = timeToLive.toNanos();
+        resize(maximumEntries);
+    }
+
+    /**
+     * Returns the cached value, or null if absent or expired. Records the access for admission.
+     */
+    @Nullable
+    public synchronized String get(@NotNull String key) {
+        sketch.increment(key);
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+
+        if (isExpired(entry, System.nanoTime())) {
+            remove(entry);
+            expirationCount++;
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        entry.hits++;
+        onAccess(entry);
+        return entry.value;
+    }
+
+    /**
+     * Inserts or replaces a value. New entries may be rejected later by the admission filter.
+     */
+    public synchronized void put(@NotNull String key, @NotNull String value) {
+        long weight = weigh(key, value);
+        if (weight > maximumWeight) {
+            return; // Would flush the whole cache for a single entry
+        }
+
+        Entry existing = entries.get(key);
+        if (existing != null) {
+            adjustWeight(existing, weight - existing.weight);
+            existing.value = value;
+            existing.weight = weight;
+            existing.writeTime = System.nanoTime();
+            onAccess(existing);
+        } else {
+            sketch.increment(key);
+            Entry entry = new Entry(key, value, weight, System.nanoTime());
+            entries.put(key, entry);
+            window.put(key, entry);
+            windowWeight += weight;
+        }
+
+        evict();
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        windowWeight = 0;
+        probationWeight = 0;
+        protectedWeight = 0;
+    }
+
+    /**
+     * Changes the capacity, evicting immediately if the cache shrank. No-op if unchanged.
+     */
+    public synchronized void resize(int maximumEntries) {
+        int entriesBound = Math.max(1, maximumEntries);
+        if (entriesBound == this.maximumEntries) {
+            return;
+        }
+
+        this.maximumEntries = entriesBound;
+        this.maximumWeight = (long) entriesBound * BYTES_PER_ENTRY;
+        this.windowMaximum = Math.max(BYTES_PER_ENTRY, (long) (maximumWeight * WINDOW_RATIO));
+        this.protectedMaximum = (long) ((maximumWeight - windowMaximum) * PROTECTED_RATIO);
+        this.sketch = new FrequencySketch(entriesBound);
+        evict();
+    }
+
+    public synchronized void setTimeToLive(@NotNull Duration timeToLive) {
+        this.timeToLiveNanos = timeToLive.toNanos();
+    }
+
+    /**
+     * Per-entry statistics, or null if the key is not cached
+     */
+    @Nullable
+    public synchronized EntryStats getEntryStats(@NotNull String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        return new EntryStats(entry.hits, entry.weight, Duration.ofNanos(System.nanoTime() - entry.writeTime),
+                sketch.frequency(key), regionOf(entry));
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(entries.size(), windowWeight + probationWeight + protectedWeight, maximumWeight,
+                hitCount, missCount, evictionCount, expirationCount, rejectedCount);
+    }
+
+    private void onAccess(Entry entry) {
+        String key = entry.key;
+        if (window.containsKey(key)) {
+            window.get(key); // Refresh LRU position
+        } else if (probation.remove(key) != null) {
+            // Second hit in the main region: promote to protected
+            probationWeight -= entry.weight;
+            protectedSegment.put(key, entry);
+            protectedWeight += entry.weight;
+            demoteProtectedOverflow();
+        } else {
+            protectedSegment.get(key);
+        }
+    }
+
+    private void demoteProtectedOverflow() {
+        while (protectedWeight > protectedMaximum && !protectedSegment.isEmpty()) {
+            Entry demoted = removeEldest(protectedSegment);
+            protectedWeight -= demoted.weight;
+            probation.put(demoted.key, demoted);
+            probationWeight += demoted.weight;
+        }
+    }
+
+    /**
+     * Moves window overflow into the main region through the TinyLFU admission filter
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        expireEntries(window, now);
+        expireEntries(probation, now);
+        expireEntries(protectedSegment, now);
+
+        while (windowWeight > windowMaximum && !window.isEmpty()) {
+            Entry candidate = removeEldest(window);
+            windowWeight -= candidate.weight;
+            admit(candidate);
+        }
+
+        demoteProtectedOverflow();
+
+        // Shrinking can leave the main region over capacity
+        long mainMaximum = maximumWeight - windowMaximum;
+        while (probationWeight + protectedWeight > mainMaximum) {
+            LinkedHashMap<String, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+            evictEntry(removeEldest(segment), segment);
+        }
+    }
+
+    private void admit(Entry candidate) {
+        long mainMaximum = maximumWeight - windowMaximum;
+        int candidateFrequency = sketch.frequency(candidate.key);
+
+        while (probationWeight + protectedWeight + candidate.weight > mainMaximum) {
+            LinkedHashMap<String, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+            if (segment.isEmpty()) {
+                break;
+            }
+
+            Entry victim = segment.values().iterator().next();
+            if (candidateFrequency <= sketch.frequency(victim.key)) {
+                // Candidate is not more popular than the victim: reject it
+                entries.remove(candidate.key);
+                rejectedCount++;
+                evictionCount++;
+                return;
+            }
+
+            segment.remove(victim.key);
+            evictEntry(victim, segment);
+        }
+
+        probation.put(candidate.key, candidate);
+        probationWeight += candidate.weight;
+    }
+
+    private void evictEntry(Entry entry, LinkedHashMap<String, Entry> segment) {
+        if (segment == probation) {
+            probationWeight -= entry.weight;
+        } else {
+            protectedWeight -= entry.weight;
+        }
+        entries.remove(entry.key);
+        evictionCount++;
+    }
+
+    private void expireEntries(LinkedHashMap<String, Entry> segment, long now) {
+        Iterator<Entry> iterator = segment.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!isExpired(entry, now)) {
+                continue;
+            }
+            iterator.remove();
+            subtractWeight(segment, entry.weight);
+            entries.remove(entry.key);
+            expirationCount++;
+        }
+    }
+
+    private void remove(Entry entry) {
+        for (LinkedHashMap<String, Entry> segment : regions()) {
+            if (segment.remove(entry.key) != null) {
+                subtractWeight(segment, entry.weight);
+                break;
+            }
+        }
+        entries.remove(entry.key);
+    }
+
+    private void adjustWeight(Entry entry, long delta) {
+        if (window.containsKey(entry.key)) {
+            windowWeight += delta;
+        } else if (probation.containsKey(entry.key)) {
+            probationWeight += delta;
+        } else {
+            protectedWeight += delta;
+        }
+    }
+
+    private void subtractWeight(LinkedHashMap<String, Entry> segment, long weight) {
+        if (segment == window) {
+            windowWeight -= weight;
+        } else if (segment == probation) {
+            probationWeight -= weight;
+        } else {
+            protectedWeight -= weight;
+        }
+    }
+
+    private String regionOf(Entry entry) {
+        if (window.containsKey(entry.key)) {
+            return "window";
+        }
+        return probation.containsKey(entry.key) ? "probation" : "protected";
+    }
+
+    @SuppressWarnings("unchecked")
+    private LinkedHashMap<String, Entry>[] regions() {
+        return new LinkedHashMap[]{window, probation, protectedSegment};
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return timeToLiveNanos > 0 && now - entry.writeTime > timeToLiveNanos;
+    }
+
+    private static Entry removeEldest(LinkedHashMap<String, Entry> segment) {
+        Iterator<Entry> iterator = segment.values().iterator();
+        Entry eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+
+    private static long weigh(String key, String value) {
+        // UTF-16 chars plus a fixed allowance for entry and map node headers
+        return 2L * (key.length() + value.length()) + ENTRY_OVERHEAD_BYTES;
+    }
+
+    private static final class Entry {
+        final String key;
+        String value;
+        long weight;
+        long writeTime;
+        long hits;
+
+        Entry(String key, String value, long weight, long writeTime) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = writeTime;
+        }
+    }
+
+    /**
+     * Count-Min sketch of 4-bit counters estimating access frequency.
+     * Counters are halved once the sample period elapses so popularity decays over time.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97cb3127, 0xb4b82e39, 0x5a9c2d47, 0x7f4a7c15};
+
+        private final byte[][] table;
+        private final int mask;
+        private final int samplePeriod;
+        private int additions;
+
+        FrequencySketch(int maximumEntries) {
+            int width = Integer.highestOneBit(Math.max(16, maximumEntries * 2) - 1) << 1;
+            this.table = new byte[DEPTH][width];
+            this.mask = width - 1;
+            this.samplePeriod = Math.max(10 * maximumEntries, 64);
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = indexOf(hash, i);
+                if (table[i][index] < MAX_COUNT) {
+                    table[i][index]++;
+                    added = true;
+                }
+            }
+
+            if (added && ++additions >= samplePeriod) {
+                age();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[i][indexOf(hash, i)]);
+            }
+            return min;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private void age() {
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (byte) (row[i] >>> 1);
+                }
+            }
+            additions /= 2;
+        }
+    }
+
+    /**
+     * Snapshot of one cached entry
+     */
+    public static final class EntryStats {
+        private final long hits;
+        private final long weightBytes;
+        private final Duration age;
+        private final int estimatedFrequency;
+        private final String region;
+
+        EntryStats(long hits, long weightBytes, Duration age, int estimatedFrequency, String region) {
+            this.hits = hits;
+            this.weightBytes = weightBytes;
+            this.age = age;
+            this.estimatedFrequency = estimatedFrequency;
+            this.region = region;
+        }
+
+        public long getHits() { return hits; }
+        public long getWeightBytes() { return weightBytes; }
+        public Duration getAge() { return age; }
+        public int getEstimatedFrequency() { return estimatedFrequency; }
+        public String getRegion() { return region; }
+    }
+
+    /**
+     * Snapshot of cache-wide counters
+     */
+    public static final class Stats {
+        private final int size;
+        private final long weightBytes;
+        private final long maximumWeightBytes;
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final long expirationCount;
+        private final long rejectedCount;
+
+        Stats(int size, long weightBytes, long maximumWeightBytes, long hitCount, long missCount,
+              long evictionCount, long expirationCount, long rejectedCount) {
+            this.size = size;
+            this.weightBytes = weightBytes;
+            this.maximumWeightBytes = maximumWeightBytes;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.expirationCount = expirationCount;
+            this.rejectedCount = rejectedCount;
+        }
+
+        public int getSize() { return size; }
+        public long getWeightBytes() { return weightBytes; }
+        public long getMaximumWeightBytes() { return maximumWeightBytes; }
+        public long getHitCount() { return hitCount; }
+        public long getMissCount() { return missCount; }
+        public long getEvictionCount() { return evictionCount; }
+        public long getExpirationCount() { return expirationCount; }
+        public long getRejectedCount() { return rejectedCount; }
+
+        public double getHitRate() {
+            long requests = hitCount + missCount;
+            return requests == 0 ? 0.0 : (double) hitCount / requests;
+        }
+
+        @Override
+        public String toString() {
+            return "CompletionCache.Stats{" +
+                    "size=" + size +
+                    ", weightBytes=" + weightBytes + "/" + maximumWeightBytes +
+                    ", hitRate=" + String.format("%.2f", getHitRate()) +
+                    ", evictions=" + evictionCount +
+                    ", expirations=" + expirationCount +
+                    ", rejected=" + rejectedCount +
+                    '}';
+        }
+    }
+}
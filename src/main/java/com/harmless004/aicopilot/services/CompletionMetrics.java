@@ -0,0 +1,273 @@
+package com.harmless004.aicopilot.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe counters describing AI completion traffic.
+ * Exposed through {@link AIService#getMetrics()} for diagnostics.
+ */
+public final class CompletionMetrics {
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong networkRequests = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong prefixHits = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private final AtomicLong hedgesDenied = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+    private final AtomicLong circuitRejected = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong queueShed = new AtomicLong();
+    private final AtomicLong speculative = new AtomicLong();
+    private final AtomicLong speculativeDenied = new AtomicLong();
+    private final AtomicLong cancelledBeforeDispatch = new AtomicLong();
+    private final AtomicLong cancelledInFlight = new AtomicLong();
+    private final AtomicLong tokensSaved = new AtomicLong();
+
+    void recordRequest() {
+        requests.incrementAndGet();
+    }
+
+    void recordNetworkRequest() {
+        networkRequests.incrementAndGet();
+    }
+
+    void recordCacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    /**
+     * Records a request that piggybacked on an identical one already in flight
+     */
+    void recordCoalesced() {
+        coalesced.incrementAndGet();
+    }
+
+    /**
+     * Records a keystroke answered from an earlier suggestion without any request
+     */
+    void recordPrefixHit() {
+        prefixHits.incrementAndGet();
+    }
+
+    void recordHedge() {
+        hedges.incrementAndGet();
+    }
+
+    /**
+     * Records a hedge whose duplicate request answered before the primary
+     */
+    void recordHedgeWon() {
+        hedgesWon.incrementAndGet();
+    }
+
+    /**
+     * Records a hedge that was skipped because the hedge budget was exhausted
+     */
+    void recordHedgeDenied() {
+        hedgesDenied.incrementAndGet();
+    }
+
+    /**
+     * Records a provider call that was given up at its derived timeout or the caller's deadline
+     */
+    void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    /**
+     * Records a request shed by the client-side rate limiter instead of being sent
+     */
+    void recordRateLimited() {
+        rateLimited.incrementAndGet();
+    }
+
+    /**
+     * Records a response telling us to slow down (HTTP 429 or 529)
+     */
+    void recordThrottled() {
+        throttled.incrementAndGet();
+    }
+
+    /**
+     * Records a request sent to the other provider because the configured one's circuit is open
+     */
+    void recordFailover() {
+        failovers.incrementAndGet();
+    }
+
+    /**
+     * Records a request failed fast because no provider with a closed circuit was available
+     */
+    void recordCircuitRejected() {
+        circuitRejected.incrementAndGet();
+    }
+
+    /**
+     * Records a pending request cancelled because a newer one came from the same editor
+     */
+    void recordSuperseded() {
+        superseded.incrementAndGet();
+    }
+
+    /**
+     * Records a request dropped or rejected because the scheduler queue was full
+     */
+    void recordQueueShed() {
+        queueShed.incrementAndGet();
+    }
+
+    /**
+     * Records a speculative prefetch sent after a suggestion was accepted
+     */
+    void recordSpeculative() {
+        speculative.incrementAndGet();
+    }
+
+    /**
+     * Records a speculative prefetch skipped by its spending caps
+     */
+    void recordSpeculativeDenied() {
+        speculativeDenied.incrementAndGet();
+    }
+
+    /**
+     * Records a request that was cancelled before anything was sent to the provider
+     */
+    void recordCancelledBeforeDispatch(long estimatedTokens) {
+        cancelledBeforeDispatch.incrementAndGet();
+        tokensSaved.addAndGet(Math.max(0, estimatedTokens));
+    }
+
+    /**
+     * Records a request whose HTTP exchange was aborted before the provider finished generating
+     */
+    void recordCancelledInFlight(long estimatedTokens) {
+        cancelledInFlight.incrementAndGet();
+        tokensSaved.addAndGet(Math.max(0, estimatedTokens));
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getNetworkRequests() {
+        return networkRequests.get();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Requests answered by sharing another caller's in-flight network call
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getPrefixHits() {
+        return prefixHits.get();
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    public long getHedgesDenied() {
+        return hedgesDenied.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    public long getCircuitRejected() {
+        return circuitRejected.get();
+    }
+
+    public long getSuperseded() {
+        return superseded.get();
+    }
+
+    public long getQueueShed() {
+        return queueShed.get();
+    }
+
+    public long getSpeculative() {
+        return speculative.get();
+    }
+
+    public long getSpeculativeDenied() {
+        return speculativeDenied.get();
+    }
+
+    public long getCancelledBeforeDispatch() {
+        return cancelledBeforeDispatch.get();
+    }
+
+    public long getCancelledInFlight() {
+        return cancelledInFlight.get();
+    }
+
+    /**
+     * Requests that never reached the provider or were aborted mid-generation
+     */
+    public long getRequestsSaved() {
+        return cancelledBeforeDispatch.get() + cancelledInFlight.get();
+    }
+
+    /**
+     * Estimated prompt and completion tokens that were not paid for thanks to cancellation
+     */
+    public long getTokensSaved() {
+        return tokensSaved.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CompletionMetrics{" +
+                "requests=" + getRequests() +
+                ", networkRequests=" + getNetworkRequests() +
+                ", cacheHits=" + getCacheHits() +
+                ", coalesced=" + getCoalesced() +
+                ", prefixHits=" + getPrefixHits() +
+                ", hedges=" + getHedges() +
+                ", hedgesWon=" + getHedgesWon() +
+                ", hedgesDenied=" + getHedgesDenied() +
+                ", timeouts=" + getTimeouts() +
+                ", rateLimited=" + getRateLimited() +
+                ", throttled=" + getThrottled() +
+                ", failovers=" + getFailovers() +
+                ", circuitRejected=" + getCircuitRejected() +
+                ", superseded=" + getSuperseded() +
+                ", queueShed=" + getQueueShed() +
+                ", speculative=" + getSpeculative() +
+                ", speculativeDenied=" + getSpeculativeDenied() +
+                ", cancelledBeforeDispatch=" + getCancelledBeforeDispatch() +
+                ", cancelledInFlight=" + getCancelledInFlight() +
+                ", tokensSaved=" + getTokensSaved() +
+                '}';
+    }
+}
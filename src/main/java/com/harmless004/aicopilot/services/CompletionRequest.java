@@ -0,0 +1,112 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.openapi.editor.Editor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Parameters of a single AI completion request.
+ * Only the code context and current line are required; the optional parts
+ * let {@link AIService} reuse earlier work.
+ */
+public final class CompletionRequest {
+
+    private final String codeContext;
+    private final String currentLine;
+    private String stableContextKey;
+    private String linePrefix;
+    private long deadlineNanos = Long.MAX_VALUE;
+    private Priority priority = Priority.AUTOMATIC;
+    private Editor editor;
+    private int candidates = 1;
+    private String suffix;
+
+    public CompletionRequest(@NotNull String codeContext, @NotNull String currentLine) {
+        this.codeContext = codeContext;
+        this.currentLine = currentLine;
+    }
+
+    /**
+     * Identifies the context that does not change while typing on the current line, and the
+     * text typed on that line so far. Enables reuse of the suggestion as the user keeps typing.
+     */
+    public CompletionRequest withLinePrefix(@NotNull String stableContextKey, @NotNull String linePrefix) {
+        this.stableContextKey = stableContextKey;
+        this.linePrefix = linePrefix;
+        return this;
+    }
+
+    /**
+     * Sets the {@link System#nanoTime()} after which the caller no longer uses the result.
+     * Network timeouts never extend past it.
+     */
+    public CompletionRequest withDeadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+        return this;
+    }
+
+    /**
+     * Marks how valuable the request is; lower priorities are shed first under load
+     */
+    public CompletionRequest withPriority(@NotNull Priority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Names the editor the request is for; a newer request from the same editor supersedes it
+     */
+    public CompletionRequest withEditor(@NotNull Editor editor) {
+        this.editor = editor;
+        return this;
+    }
+
+    /**
+     * Asks for up to this many alternative completions, ranked locally against the code after
+     * the cursor. Fetch them with {@link AIService#getCompletionCandidates}.
+     */
+    public CompletionRequest withCandidates(int candidates, @NotNull String suffix) {
+        this.candidates = Math.max(1, candidates);
+        this.suffix = suffix;
+        return this;
+    }
+
+    @NotNull
+    public String getCodeContext() { return codeContext; }
+
+    @NotNull
+    public String getCurrentLine() { return currentLine; }
+
+    @Nullable
+    public String getStableContextKey() { return stableContextKey; }
+
+    @Nullable
+    public String getLinePrefix() { return linePrefix; }
+
+    public long getDeadlineNanos() { return deadlineNanos; }
+
+    @NotNull
+    public Priority getPriority() { return priority; }
+
+    @Nullable
+    public Editor getEditor() { return editor; }
+
+    public int getCandidates() { return candidates; }
+
+    @Nullable
+    public String getSuffix() { return suffix; }
+
+    /**
+     * Request priorities, most valuable first
+     */
+    public enum Priority {
+        /** Explicitly requested by the user */
+        MANUAL,
+        /** Code generated from a comment the user just wrote */
+        COMMENT_TO_CODE,
+        /** Popup completion while typing */
+        AUTOMATIC,
+        /** Prefetch of a completion the user has not asked for yet */
+        SPECULATIVE
+    }
+}
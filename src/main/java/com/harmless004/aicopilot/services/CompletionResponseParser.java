@@ -0,0 +1,271 @@
+package com.harmless004.aicopilot.services;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts completion text from provider responses with a streaming {@link JsonReader}.
+ * Only the text itself is materialized; every other value is skipped without building
+ * a tree, and escape sequences are decoded correctly.
+ */
+final class CompletionResponseParser {
+
+    private static final Logger LOG = Logger.getInstance(CompletionResponseParser.class);
+
+    private CompletionResponseParser() {
+    }
+
+    /**
+     * Reads choices[0].message.content of an OpenAI chat completion
+     */
+    @Nullable
+    static String parseOpenAIResponse(Reader body) throws IOException {
+        try (JsonReader reader = new JsonReader(body)) {
+            List<String> choices = readOpenAIChoices(reader, "message", 1);
+            return choices.isEmpty() ? null : choices.get(0);
+        }
+    }
+
+    /**
+     * Reads choices[*].message.content of an OpenAI chat completion requested with n > 1
+     */
+    static List<String> parseOpenAICandidates(Reader body) throws IOException {
+        try (JsonReader reader = new JsonReader(body)) {
+            return readOpenAIChoices(reader, "message", Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Reads choices[0].delta.content of an OpenAI chat.completion.chunk event
+     */
+    @Nullable
+    static String parseOpenAIStreamEvent(String data) throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader(data))) {
+            List<String> choices = readOpenAIChoices(reader, "delta", 1);
+            return choices.isEmpty() ? null : choices.get(0);
+        }
+    }
+
+    /**
+     * Reads choices[*].delta.content of an OpenAI chat.completion.chunk event requested with n > 1,
+     * keyed by choices[*].index; choices without text are left out
+     */
+    static Map<Integer, String> parseOpenAIStreamChoices(String data) throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader(data))) {
+            Map<Integer, String> deltas = new HashMap<>(4);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"choices".equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                reader.beginArray();
+                for (int position = 0; reader.hasNext(); position++) {
+                    readOpenAIStreamChoice(reader, position, deltas);
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+            return deltas;
+        }
+    }
+
+    /**
+     * Reads and concatenates the text blocks of a Claude message
+     */
+    @Nullable
+    static String parseClaudeResponse(Reader body) throws IOException {
+        try (JsonReader reader = new JsonReader(body)) {
+            StringBuilder text = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"content".equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String blockText = readClaudeTextBlock(reader);
+                    if (blockText != null) {
+                        text = text == null ? new StringBuilder(blockText) : text.append(blockText);
+                    }
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+            return text == null ? null : text.toString();
+        }
+    }
+
+    /**
+     * Reads delta.text of a Claude content_block_delta event; other event types yield null
+     */
+    @Nullable
+    static String parseClaudeStreamEvent(String data) throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader(data))) {
+            String type = null;
+            String text = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "type" -> type = nextStringOrNull(reader);
+                    case "delta" -> text = readField(reader, "text");
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if ("error".equals(type)) {
+                LOG.warn("Claude stream error: " + data);
+                return null;
+            }
+            return "content_block_delta".equals(type) ? text : null;
+        }
+    }
+
+    /**
+     * Reads the text of up to {@code limit} choices; choices without text are left out
+     */
+    private static List<String> readOpenAIChoices(JsonReader reader, String messageField, int limit)
+            throws IOException {
+        List<String> texts = new ArrayList<>(Math.min(limit, 4));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"choices".equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginArray();
+            for (int read = 0; reader.hasNext(); read++) {
+                if (read >= limit) {
+                    reader.skipValue();
+                    continue;
+                }
+                String text = readNestedField(reader, messageField, "content");
+                if (text != null) {
+                    texts.add(text);
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return texts;
+    }
+
+    /**
+     * Reads one streamed choice; its position in the array stands in for a missing index
+     */
+    private static void readOpenAIStreamChoice(JsonReader reader, int position, Map<Integer, String> deltas)
+            throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+
+        int index = position;
+        String text = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "index" -> {
+                    if (reader.peek() == JsonToken.NUMBER) {
+                        index = reader.nextInt();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                case "delta" -> text = readField(reader, "content");
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (text != null) {
+            deltas.put(index, text);
+        }
+    }
+
+    private static String readClaudeTextBlock(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+
+        String type = null;
+        String text = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type" -> type = nextStringOrNull(reader);
+                case "text" -> text = nextStringOrNull(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return type == null || "text".equals(type) ? text : null;
+    }
+
+    /**
+     * Reads object.outer.inner as a string, skipping everything else in the object
+     */
+    private static String readNestedField(JsonReader reader, String outer, String inner) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+
+        String value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (outer.equals(reader.nextName())) {
+                value = readField(reader, inner);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return value;
+    }
+
+    /**
+     * Reads object.name as a string, skipping everything else in the object
+     */
+    private static String readField(JsonReader reader, String name) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+
+        String value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (name.equals(reader.nextName())) {
+                value = nextStringOrNull(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return value;
+    }
+
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.STRING) {
+            reader.skipValue();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
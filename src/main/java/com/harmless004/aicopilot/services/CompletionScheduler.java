@@ -0,0 +1,154 @@
+package com.harmless004.aicopilot.services;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs completion requests by priority instead of in arrival order.
+ * <p>
+ * At most {@code maxRunning} requests run at once; the rest wait in a queue ordered by
+ * {@link CompletionRequest.Priority} and then by arrival. The queue is bounded: when it is full,
+ * the oldest request of the lowest queued priority is shed to make room for a newer request that
+ * is at least as valuable, and a request less valuable than everything queued is rejected.
+ * A request the executor refuses, because it is saturated or shut down, is shed as well.
+ */
+final class CompletionScheduler {
+
+    private static final Comparator<Task> ORDER = Comparator
+            .comparing((Task task) -> task.priority)
+            .thenComparingLong(task -> task.sequence);
+
+    private final Executor executor;
+    private final int maxRunning;
+    private final int maxQueued;
+    private final CompletionMetrics metrics;
+    private final LatencyHistogram queueWait;
+    private final PriorityQueue<Task> queue = new PriorityQueue<>(ORDER);
+    private long nextSequence;
+    private int running;
+
+    CompletionScheduler(Executor executor, int maxRunning, int maxQueued, CompletionMetrics metrics,
+                        long latencyWindowMillis) {
+        this.executor = executor;
+        this.maxRunning = maxRunning;
+        this.maxQueued = maxQueued;
+        this.metrics = metrics;
+        this.queueWait = new LatencyHistogram(latencyWindowMillis);
+    }
+
+    /**
+     * Queues the work. A task whose lifetime future completes while queued is dropped without
+     * running; a task shed from a full queue, or rejected outright, gets {@code onShed} run instead.
+     */
+    void submit(@NotNull CompletionRequest.Priority priority, @NotNull Runnable work,
+                @NotNull CompletableFuture<?> lifetime, @NotNull Runnable onShed) {
+        Task shed;
+        synchronized (this) {
+            Task task = new Task(priority, nextSequence++, work, onShed);
+            shed = queue.size() < maxQueued ? null : leastValuable();
+
+            if (shed != null && shed.priority.compareTo(priority) < 0) {
+                shed = task; // Everything queued is worth more than the new request
+            } else {
+                if (shed != null) {
+                    queue.remove(shed);
+                }
+                queue.add(task);
+                lifetime.whenComplete((result, error) -> remove(task));
+            }
+        }
+
+        if (shed != null) {
+            metrics.recordQueueShed();
+            shed.onShed.run();
+        }
+        dispatch();
+    }
+
+    synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Time requests spent queued before they started running
+     */
+    LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    private synchronized void remove(Task task) {
+        queue.remove(task);
+    }
+
+    private Task leastValuable() {
+        Task worst = null;
+        for (Task task : queue) {
+            // Among equally valuable requests the oldest one is the most likely to be stale
+            if (worst == null || task.priority.compareTo(worst.priority) > 0
+                    || task.priority == worst.priority && task.sequence < worst.sequence) {
+                worst = task;
+            }
+        }
+        return worst;
+    }
+
+    private void dispatch() {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                if (running >= maxRunning) {
+                    return;
+                }
+                task = queue.poll();
+                if (task == null) {
+                    return;
+                }
+                running++;
+            }
+
+            queueWait.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.enqueuedNanos));
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.work.run();
+                    } finally {
+                        finished();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                metrics.recordQueueShed();
+                task.onShed.run();
+                finished();
+                return;
+            }
+        }
+    }
+
+    private void finished() {
+        synchronized (this) {
+            running--;
+        }
+        dispatch();
+    }
+
+    private static final class Task {
+        final CompletionRequest.Priority priority;
+        final long sequence;
+        final Runnable work;
+        final Runnable onShed;
+        final long enqueuedNanos = System.nanoTime();
+
+        Task(CompletionRequest.Priority priority, long sequence, Runnable work, Runnable onShed) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.work = work;
+            this.onShed = onShed;
+        }
+    }
+}
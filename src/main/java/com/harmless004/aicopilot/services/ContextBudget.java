@@ -0,0 +1,219 @@
+package com.harmless004.aicopilot.services;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Assembles prompt context from sections within a fixed token budget.
+ * <p>
+ * Every section has a priority and a token allowance. Sections are first filled in priority
+ * order up to their allowance, then whatever budget is left goes to them again in the same
+ * order, so a short import list leaves room for more code rather than going unused. Within a
+ * section, lines are taken from the top, or outward from the focus line of a window. A focus line
+ * too long for what is left is cut down around its focus column rather than dropped. Sections
+ * appear in the order they were added regardless of priority.
+ */
+final class ContextBudget {
+
+    private final int maxTokens;
+    private final List<Section> sections = new ArrayList<>();
+    private int used;
+
+    ContextBudget(int maxTokens) {
+        this.maxTokens = maxTokens;
+    }
+
+    /**
+     * Adds text that is always included, such as the file name
+     */
+    void addFixed(@NotNull String text) {
+        sections.add(new Section(null, List.of(text), 0, 0, 0, Integer.MIN_VALUE, Integer.MAX_VALUE, true, false));
+    }
+
+    /**
+     * Adds a section whose lines are kept from the top down as far as the budget allows.
+     * Lower priorities are filled first.
+     */
+    void addSection(@NotNull String title, @NotNull List<String> lines, int priority, int allowance) {
+        if (!lines.isEmpty()) {
+            sections.add(new Section(title, lines, 0, 0, 0, priority, allowance, false, false));
+        }
+    }
+
+    /**
+     * Adds a window of lines kept outward from the focus line, looking {@code beforePerAfter} lines
+     * back for every line ahead. A focus line that does not fit is shortened to the part around
+     * {@code focusColumn}, keeping the same ratio of characters before and after it.
+     */
+    void addWindow(@NotNull String title, @NotNull List<String> lines, int focusLine, int focusColumn,
+                   int beforePerAfter, int priority, int allowance) {
+        if (!lines.isEmpty()) {
+            sections.add(new Section(title, lines, focusLine, focusColumn, beforePerAfter, priority, allowance,
+                    false, true));
+        }
+    }
+
+    /**
+     * Fills the sections and returns the assembled context
+     */
+    @NotNull
+    String build() {
+        List<Section> byPriority = new ArrayList<>(sections);
+        byPriority.sort(Comparator.comparingInt(section -> section.priority));
+
+        for (Section section : byPriority) {
+            fill(section, section.allowance);
+        }
+        for (Section section : byPriority) {
+            fill(section, Integer.MAX_VALUE);
+        }
+
+        StringBuilder context = new StringBuilder();
+        for (Section section : sections) {
+            if (section.isEmpty()) {
+                continue;
+            }
+            if (context.length() > 0) {
+                context.append('\n');
+            }
+            section.appendTo(context);
+        }
+        return context.toString();
+    }
+
+    /**
+     * Tokens taken by the sections built so far
+     */
+    int getUsedTokens() {
+        return used;
+    }
+
+    private void fill(Section section, int allowance) {
+        while (section.hasNextLine()) {
+            int cost = section.costOfNextLine();
+            int available = Math.min(allowance - section.spent, maxTokens - used);
+            if (cost > available && !section.fixed) {
+                if (!section.truncatable || !section.isEmpty() || !section.truncateFocus(available)) {
+                    return;
+                }
+                cost = section.costOfNextLine();
+            }
+            section.takeNextLine(cost);
+            used += cost;
+        }
+    }
+
+    private static final class Section {
+        final String title;
+        final List<String> lines;
+        final int focusLine;
+        final int priority;
+        final int allowance;
+        final int beforePerAfter;
+        final boolean fixed;
+        final boolean truncatable;
+        final int focusColumn;
+        String focusText;
+
+        // Kept lines form the range [first, last] around the focus line
+        int first;
+        int last;
+        int spent;
+        private int takenSinceAfter;
+
+        Section(String title, List<String> lines, int focusLine, int focusColumn, int beforePerAfter, int priority,
+                int allowance, boolean fixed, boolean truncatable) {
+            this.title = title;
+            this.lines = lines;
+            this.focusLine = Math.max(0, Math.min(focusLine, lines.size() - 1));
+            this.focusText = lines.get(this.focusLine);
+            this.focusColumn = Math.max(0, Math.min(focusColumn, focusText.length()));
+            this.priority = priority;
+            this.allowance = allowance;
+            this.beforePerAfter = beforePerAfter;
+            this.fixed = fixed;
+            this.truncatable = truncatable;
+            this.first = this.focusLine;
+            this.last = this.focusLine - 1;
+        }
+
+        boolean isEmpty() {
+            return first > last;
+        }
+
+        boolean hasNextLine() {
+            return first > 0 || last < lines.size() - 1;
+        }
+
+        int costOfNextLine() {
+            return isEmpty() ? focusCost(focusText) : TokenCounter.count(lines.get(nextLine())) + 1;
+        }
+
+        private int focusCost(String text) {
+            int cost = TokenCounter.count(text) + 1; // plus the line break
+            return title != null ? cost + TokenCounter.count(title) + 2 : cost;
+        }
+
+        /**
+         * Shortens the focus line to the longest cut around the focus column that costs at most
+         * {@code available} tokens. Returns false if not even one character fits.
+         */
+        boolean truncateFocus(int available) {
+            String line = lines.get(focusLine);
+            int low = 0;
+            int high = line.length();
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (focusCost(cut(line, mid)) <= available) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (low == 0) {
+                return false;
+            }
+            focusText = cut(line, low);
+            return true;
+        }
+
+        private String cut(String line, int length) {
+            int before = Math.min(focusColumn, (int) ((long) length * beforePerAfter / (beforePerAfter + 1)));
+            int end = Math.min(line.length(), focusColumn + length - before);
+            return line.substring(Math.max(0, end - length), end);
+        }
+
+        void takeNextLine(int cost) {
+            int line = nextLine();
+            if (line < first) {
+                first = line;
+                takenSinceAfter++;
+            } else {
+                last = line;
+                takenSinceAfter = 0;
+            }
+            spent += cost;
+        }
+
+        private int nextLine() {
+            if (isEmpty()) {
+                return focusLine;
+            }
+            boolean before = first > 0
+                    && (last >= lines.size() - 1 || takenSinceAfter < beforePerAfter);
+            return before ? first - 1 : last + 1;
+        }
+
+        void appendTo(StringBuilder context) {
+            if (title != null) {
+                context.append(title).append(":\n");
+            }
+            for (int i = first; i <= last; i++) {
+                context.append(i == focusLine ? focusText : lines.get(i)).append('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.harmless004.aicopilot.services;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Context sections computed for one version of a document, reused while it stays unchanged.
+ * Imports depend only on the document, the enclosing structure on the caret line, and the
+ * cursor window on the exact caret offset, so each section is kept under its own key.
+ * Sections that depend on other files or on settings are not kept here, since a change to
+ * them does not change this document's stamp.
+ * Concurrent readers may compute a section twice; the result is the same either way.
+ */
+final class ContextSnapshot {
+
+    private final long modificationStamp;
+    private String imports;
+    private int structureLine = -1;
+    private String structure;
+    private int codeOffset = -1;
+    private List<String> code;
+
+    ContextSnapshot(long modificationStamp) {
+        this.modificationStamp = modificationStamp;
+    }
+
+    long getModificationStamp() {
+        return modificationStamp;
+    }
+
+    @Nullable
+    synchronized String getImports() {
+        return imports;
+    }
+
+    synchronized void setImports(String imports) {
+        this.imports = imports;
+    }
+
+    @Nullable
+    synchronized String getStructure(int line) {
+        return line == structureLine ? structure : null;
+    }
+
+    synchronized void setStructure(int line, String structure) {
+        this.structureLine = line;
+        this.structure = structure;
+    }
+
+    @Nullable
+    synchronized List<String> getCode(int offset) {
+        return offset == codeOffset ? code : null;
+    }
+
+    synchronized void setCode(int offset, List<String> code) {
+        this.codeOffset = offset;
+        this.code = code;
+    }
+}
@@ -0,0 +1,97 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.CaretEvent;
+import com.intellij.openapi.editor.event.CaretListener;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.editor.event.EditorEventMulticaster;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks in-flight AI requests per editor and cancels them as soon as
+ * the caret moves or the document changes, since their results would be stale.
+ */
+@Service
+public final class EditorRequestTracker implements Disposable {
+
+    private final Map<Editor, Set<CompletableFuture<?>>> inFlight = new ConcurrentHashMap<>();
+
+    public EditorRequestTracker() {
+        EditorEventMulticaster multicaster = EditorFactory.getInstance().getEventMulticaster();
+
+        multicaster.addCaretListener(new CaretListener() {
+            @Override
+            public void caretPositionChanged(@NotNull CaretEvent event) {
+                cancelRequests(event.getEditor());
+            }
+        }, this);
+
+        multicaster.addDocumentListener(new DocumentListener() {
+            @Override
+            public void documentChanged(@NotNull DocumentEvent event) {
+                cancelRequests(event.getDocument());
+            }
+        }, this);
+    }
+
+    public static EditorRequestTracker getInstance() {
+        return ApplicationManager.getApplication().getService(EditorRequestTracker.class);
+    }
+
+    /**
+     * Registers a request for the editor. The request is forgotten once it completes.
+     */
+    public void track(@NotNull Editor editor, @NotNull CompletableFuture<?> request) {
+        if (request.isDone()) {
+            return;
+        }
+
+        inFlight.computeIfAbsent(editor, e -> ConcurrentHashMap.newKeySet()).add(request);
+        request.whenComplete((ignored, error) -> untrack(editor, request));
+    }
+
+    /**
+     * Cancels every in-flight request started from the given editor
+     */
+    public void cancelRequests(@NotNull Editor editor) {
+        Set<CompletableFuture<?>> requests = inFlight.remove(editor);
+        if (requests != null) {
+            requests.forEach(request -> request.cancel(true));
+        }
+    }
+
+    /**
+     * Cancels in-flight requests of every editor showing the given document
+     */
+    public void cancelRequests(@NotNull Document document) {
+        for (Editor editor : inFlight.keySet()) {
+            if (editor.getDocument() == document) {
+                cancelRequests(editor);
+            }
+        }
+    }
+
+    private void untrack(Editor editor, CompletableFuture<?> request) {
+        inFlight.computeIfPresent(editor, (e, requests) -> {
+            requests.remove(request);
+            return requests.isEmpty() ? null : requests;
+        });
+    }
+
+    @Override
+    public void dispose() {
+        inFlight.values().forEach(requests -> requests.forEach(request -> request.cancel(true)));
+        inFlight.clear();
+    }
+}
@@ -0,0 +1,82 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Fallback for languages without a dedicated analyzer. Element kinds are guessed from PSI class
+ * names, the only language-neutral hint there is, and a declaration is described by its first
+ * line of code, read from the document rather than from the element's whole text.
+ */
+public final class GenericStructureAnalyzer implements StructureAnalyzer {
+
+    static final GenericStructureAnalyzer INSTANCE = new GenericStructureAnalyzer();
+
+    private static final int MAX_HEADER_LINES = 8; // Doc comments and annotations skipped before giving up
+    private static final int MAX_FIELD_LENGTH = 80;
+
+    @Override
+    public boolean accepts(@NotNull PsiFile file) {
+        return true;
+    }
+
+    @Override
+    @Nullable
+    public String describe(@NotNull PsiElement element) {
+        String elementType = element.getClass().getSimpleName();
+        String label;
+        if (elementType.contains("Class")) {
+            label = "Class: ";
+        } else if (elementType.contains("Method") || elementType.contains("Function")) {
+            label = "Method: ";
+        } else if (elementType.contains("Field") || elementType.contains("Variable")) {
+            label = "Field: ";
+        } else {
+            return null;
+        }
+
+        String firstLine = readFirstLine(element);
+        if (firstLine == null || firstLine.isEmpty()) {
+            return null;
+        }
+        if (label.equals("Field: ")) {
+            return label + (firstLine.length() > MAX_FIELD_LENGTH ? firstLine.substring(0, MAX_FIELD_LENGTH) + "..." : firstLine);
+        }
+        // Drop the opening brace of the body
+        int brace = firstLine.indexOf('{');
+        return label + (brace >= 0 ? firstLine.substring(0, brace).trim() : firstLine);
+    }
+
+    /**
+     * Returns the first line of the element that is not a comment or annotation
+     */
+    @Nullable
+    private static String readFirstLine(PsiElement element) {
+        PsiFile file = element.getContainingFile();
+        Document document = file != null ? PsiDocumentManager.getInstance(file.getProject()).getDocument(file) : null;
+        TextRange range = element.getTextRange();
+        if (document == null || range == null || range.getEndOffset() > document.getTextLength()) {
+            return null;
+        }
+
+        int line = document.getLineNumber(range.getStartOffset());
+        int lastLine = Math.min(document.getLineNumber(range.getEndOffset()), line + MAX_HEADER_LINES);
+        for (int start = range.getStartOffset(); line <= lastLine; line++) {
+            int end = Math.min(document.getLineEndOffset(line), range.getEndOffset());
+            String text = document.getText(new TextRange(start, end)).trim();
+            if (!text.isEmpty() && !text.startsWith("/") && !text.startsWith("*") && !text.startsWith("@")
+                    && !text.startsWith("#")) {
+                return text;
+            }
+            if (line + 1 < document.getLineCount()) {
+                start = document.getLineStartOffset(line + 1);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,26 @@
+package com.harmless004.aicopilot.services;
+
+/**
+ * Credit-based cap on hedged requests. Every primary request earns a fraction of a credit
+ * (the configured percentage, at most 100%) and every hedge spends a whole one, so hedges
+ * can never outnumber primary requests and total spend stays below double.
+ */
+final class HedgeBudget {
+
+    private static final double MAX_CREDITS = 10.0;
+
+    private double credits;
+
+    synchronized void recordPrimary(int budgetPercent) {
+        double earned = Math.max(0, Math.min(100, budgetPercent)) / 100.0;
+        credits = Math.min(MAX_CREDITS, credits + earned);
+    }
+
+    synchronized boolean tryAcquire() {
+        if (credits < 1.0) {
+            return false;
+        }
+        credits -= 1.0;
+        return true;
+    }
+}
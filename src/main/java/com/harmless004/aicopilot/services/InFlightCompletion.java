@@ -0,0 +1,130 @@
+package com.harmless004.aicopilot.services;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * One network request shared by every caller asking for the same cache key.
+ * Each caller gets its own future; the shared request is cancelled only
+ * once every caller has cancelled, so one impatient caller cannot abort the others.
+ * Callers' consumers are never invoked while the instance lock is held.
+ */
+final class InFlightCompletion {
+
+    private final CompletableFuture<String> shared = new CompletableFuture<>();
+    private final List<Subscriber> listeners = new ArrayList<>();
+    private final StringBuilder streamed = new StringBuilder();
+
+    /**
+     * Future of the underlying network request
+     */
+    @NotNull
+    CompletableFuture<String> getShared() {
+        return shared;
+    }
+
+    /**
+     * Attaches a caller. Deltas streamed before it joined are replayed first,
+     * so every caller observes the full text. Returns null if the request already finished.
+     */
+    @Nullable
+    CompletableFuture<String> subscribe(@NotNull Consumer<String> tokenConsumer) {
+        Subscriber subscriber;
+        synchronized (this) {
+            if (shared.isDone()) {
+                return null;
+            }
+            subscriber = new Subscriber(tokenConsumer, streamed.toString());
+            listeners.add(subscriber);
+        }
+        subscriber.catchUp();
+
+        CompletableFuture<String> caller = new CompletableFuture<>();
+        shared.whenComplete((result, error) -> {
+            if (error != null) {
+                caller.completeExceptionally(error);
+            } else {
+                caller.complete(result);
+            }
+        });
+        caller.whenComplete((result, error) -> {
+            if (caller.isCancelled()) {
+                unsubscribe(subscriber);
+            }
+        });
+        return caller;
+    }
+
+    /**
+     * Forwards a streamed delta to every attached caller
+     */
+    void publish(@NotNull String delta) {
+        int start;
+        List<Subscriber> snapshot;
+        synchronized (this) {
+            start = streamed.length();
+            streamed.append(delta);
+            snapshot = List.copyOf(listeners);
+        }
+
+        for (Subscriber subscriber : snapshot) {
+            subscriber.deliver(delta, start);
+        }
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        boolean abandoned;
+        synchronized (this) {
+            listeners.remove(subscriber);
+            abandoned = listeners.isEmpty();
+        }
+
+        // Nobody is waiting any more, abort the network request before anyone else can join
+        if (abandoned) {
+            shared.cancel(true);
+        }
+    }
+
+    /**
+     * One caller's consumer and how much of the streamed text it has seen. A caller that joins
+     * mid-stream can race with the publisher, so deliveries are ordered here, per caller,
+     * instead of under the shared lock.
+     */
+    private static final class Subscriber {
+        private final Consumer<String> consumer;
+        private final String replay;
+        private int delivered;
+
+        Subscriber(Consumer<String> consumer, String replay) {
+            this.consumer = consumer;
+            this.replay = replay;
+        }
+
+        /**
+         * Hands over the text streamed before this caller joined, unless already done
+         */
+        synchronized void catchUp() {
+            if (delivered < replay.length()) {
+                consumer.accept(replay.substring(delivered));
+                delivered = replay.length();
+            }
+        }
+
+        /**
+         * Hands over the part of a delta starting at the given offset that was not seen yet
+         */
+        synchronized void deliver(String delta, int start) {
+            catchUp();
+            int end = start + delta.length();
+            if (end > delivered) {
+                consumer.accept(delta.substring(delivered - start));
+                delivered = end;
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiField;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiJavaFile;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.PsiParameter;
+import com.intellij.psi.PsiTypeParameter;
+import com.intellij.psi.PsiVariable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Describes Java declarations from their PSI: names, supertypes and parameter lists are read
+ * from stubs and child elements rather than from the text of the whole class or method.
+ */
+public final class JavaStructureAnalyzer implements StructureAnalyzer {
+
+    @Override
+    public boolean accepts(@NotNull PsiFile file) {
+        return file instanceof PsiJavaFile;
+    }
+
+    @Override
+    @Nullable
+    public String describe(@NotNull PsiElement element) {
+        if (element instanceof PsiClass psiClass) {
+            // Anonymous classes and type parameters have nothing worth a line of their own
+            return psiClass.getName() != null && !(psiClass instanceof PsiTypeParameter)
+                    ? "Class: " + SymbolSignatures.describeHeader(psiClass)
+                    : null;
+        }
+        if (element instanceof PsiMethod method) {
+            return "Method: " + SymbolSignatures.describeMethod(method);
+        }
+        if (element instanceof PsiVariable variable && !(element instanceof PsiParameter)) {
+            String label = element instanceof PsiField ? "Field: " : "Variable: ";
+            return label + variable.getType().getPresentableText() + " " + variable.getName();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,92 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.kotlin.psi.KtClass;
+import org.jetbrains.kotlin.psi.KtClassOrObject;
+import org.jetbrains.kotlin.psi.KtFile;
+import org.jetbrains.kotlin.psi.KtNamedFunction;
+import org.jetbrains.kotlin.psi.KtObjectDeclaration;
+import org.jetbrains.kotlin.psi.KtParameter;
+import org.jetbrains.kotlin.psi.KtProperty;
+import org.jetbrains.kotlin.psi.KtSuperTypeListEntry;
+import org.jetbrains.kotlin.psi.KtTypeReference;
+
+import java.util.StringJoiner;
+
+/**
+ * Describes Kotlin declarations from their PSI. Only names and type references are read,
+ * never the text of a whole class or function. Registered only when the Kotlin plugin is enabled.
+ */
+public final class KotlinStructureAnalyzer implements StructureAnalyzer {
+
+    @Override
+    public boolean accepts(@NotNull PsiFile file) {
+        return file instanceof KtFile;
+    }
+
+    @Override
+    @Nullable
+    public String describe(@NotNull PsiElement element) {
+        if (element instanceof KtClassOrObject declaration) {
+            return "Class: " + describeClass(declaration);
+        }
+        if (element instanceof KtNamedFunction function && function.getName() != null) {
+            return "Function: " + describeFunction(function);
+        }
+        if (element instanceof KtProperty property) {
+            return "Field: " + (property.isVar() ? "var " : "val ") + property.getName()
+                    + typeSuffix(property.getTypeReference());
+        }
+        return null;
+    }
+
+    private static String describeClass(KtClassOrObject declaration) {
+        String kind;
+        if (declaration instanceof KtObjectDeclaration object) {
+            kind = object.isCompanion() ? "companion object" : "object";
+        } else if (declaration instanceof KtClass ktClass) {
+            kind = ktClass.isInterface() ? "interface" : ktClass.isEnum() ? "enum class"
+                    : ktClass.isData() ? "data class" : "class";
+        } else {
+            kind = "class";
+        }
+
+        StringBuilder header = new StringBuilder(kind);
+        if (declaration.getName() != null) {
+            header.append(' ').append(declaration.getName());
+        }
+        StringJoiner supertypes = new StringJoiner(", ", " : ", "").setEmptyValue("");
+        for (KtSuperTypeListEntry entry : declaration.getSuperTypeListEntries()) {
+            KtTypeReference type = entry.getTypeReference();
+            if (type != null) {
+                supertypes.add(type.getText());
+            }
+        }
+        return header.append(supertypes).toString();
+    }
+
+    private static String describeFunction(KtNamedFunction function) {
+        StringBuilder signature = new StringBuilder("fun ");
+        KtTypeReference receiver = function.getReceiverTypeReference();
+        if (receiver != null) {
+            signature.append(receiver.getText()).append('.');
+        }
+        signature.append(function.getName());
+
+        StringJoiner parameters = new StringJoiner(", ", "(", ")");
+        for (KtParameter parameter : function.getValueParameters()) {
+            parameters.add(parameter.getName() + typeSuffix(parameter.getTypeReference()));
+        }
+        return signature.append(parameters).append(typeSuffix(function.getTypeReference())).toString();
+    }
+
+    /**
+     * Type annotations are short, so reading their text is cheap
+     */
+    private static String typeSuffix(@Nullable KtTypeReference type) {
+        return type != null ? ": " + type.getText() : "";
+    }
+}
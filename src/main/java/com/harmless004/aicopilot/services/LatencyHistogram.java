@@ -0,0 +1,106 @@
+package com.harmless004.aicopilot.services;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rolling latency histogram with log-scaled buckets (about 10% wide) from 1 ms to 2 minutes.
+ * Samples are kept for two windows: percentiles always reflect between one and two windows
+ * of recent traffic, so the histogram follows provider slowdowns without forgetting instantly.
+ */
+public final class LatencyHistogram {
+
+    private static final double BUCKET_GROWTH = 1.1;
+    private static final long[] UPPER_BOUNDS_MS = createBounds(120_000);
+
+    private final long windowNanos;
+    private volatile AtomicLongArray current = new AtomicLongArray(UPPER_BOUNDS_MS.length);
+    private volatile AtomicLongArray previous = new AtomicLongArray(UPPER_BOUNDS_MS.length);
+    private volatile long windowStart = System.nanoTime();
+
+    public LatencyHistogram(long windowMillis) {
+        this.windowNanos = windowMillis * 1_000_000L;
+    }
+
+    public void record(long latencyMillis) {
+        rotateIfNeeded();
+        current.incrementAndGet(bucketOf(latencyMillis));
+    }
+
+    /**
+     * Returns the latency at the given quantile (0..1) in milliseconds, or -1 without samples
+     */
+    public long percentile(double quantile) {
+        rotateIfNeeded();
+        AtomicLongArray recent = current;
+        AtomicLongArray older = previous;
+
+        long total = 0;
+        for (int i = 0; i < UPPER_BOUNDS_MS.length; i++) {
+            total += recent.get(i) + older.get(i);
+        }
+        if (total == 0) {
+            return -1;
+        }
+
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < UPPER_BOUNDS_MS.length; i++) {
+            seen += recent.get(i) + older.get(i);
+            if (seen >= rank) {
+                return UPPER_BOUNDS_MS[i];
+            }
+        }
+        return UPPER_BOUNDS_MS[UPPER_BOUNDS_MS.length - 1];
+    }
+
+    /**
+     * Number of samples currently contributing to percentiles
+     */
+    public long count() {
+        rotateIfNeeded();
+        long total = 0;
+        for (int i = 0; i < UPPER_BOUNDS_MS.length; i++) {
+            total += current.get(i) + previous.get(i);
+        }
+        return total;
+    }
+
+    private void rotateIfNeeded() {
+        long now = System.nanoTime();
+        if (now - windowStart < windowNanos) {
+            return;
+        }
+
+        synchronized (this) {
+            if (now - windowStart < windowNanos) {
+                return;
+            }
+            // After two idle windows nothing recent is left
+            previous = now - windowStart >= 2 * windowNanos ? new AtomicLongArray(UPPER_BOUNDS_MS.length) : current;
+            current = new AtomicLongArray(UPPER_BOUNDS_MS.length);
+            windowStart = now;
+        }
+    }
+
+    private static int bucketOf(long latencyMillis) {
+        if (latencyMillis <= 1) {
+            return 0;
+        }
+        int index = (int) Math.ceil(Math.log(latencyMillis) / Math.log(BUCKET_GROWTH));
+        int bucket = Math.min(index, UPPER_BOUNDS_MS.length - 1);
+        // Rounding in the bounds table can leave the value one bucket too low
+        while (bucket < UPPER_BOUNDS_MS.length - 1 && UPPER_BOUNDS_MS[bucket] < latencyMillis) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    private static long[] createBounds(long maxMillis) {
+        int count = (int) Math.ceil(Math.log(maxMillis) / Math.log(BUCKET_GROWTH)) + 1;
+        long[] bounds = new long[count];
+        for (int i = 0; i < count; i++) {
+            bounds[i] = Math.max(1, Math.round(Math.pow(BUCKET_GROWTH, i)));
+        }
+        return bounds;
+    }
+}
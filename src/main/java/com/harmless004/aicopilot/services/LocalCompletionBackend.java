@@ -0,0 +1,66 @@
+package com.harmless004.aicopilot.services;
+
+import com.harmless004.aicopilot.settings.AICopilotSettings;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Model server on the developer's machine with an OpenAI-compatible API, such as Ollama or the
+ * llama.cpp server. Without the internet round trip small models answer in well under 100 ms.
+ */
+public final class LocalCompletionBackend extends OpenAICompatibleBackend {
+
+    public static final String ID = "local";
+    static final String DEFAULT_BASE_URL = "http://localhost:11434/v1";
+    static final String DEFAULT_MODEL = "qwen2.5-coder:1.5b";
+
+    @NotNull
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @NotNull
+    @Override
+    public String getDisplayName() {
+        return "Local model";
+    }
+
+    @NotNull
+    @Override
+    public String getModel() {
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        return settings != null ? settings.getLocalModel() : DEFAULT_MODEL;
+    }
+
+    /**
+     * Local servers need no key, so the backend is opt-in through settings
+     */
+    @Override
+    public boolean isConfigured() {
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        return settings != null && settings.isEnableLocalBackend();
+    }
+
+    @NotNull
+    @Override
+    public Set<Capability> getCapabilities() {
+        return EnumSet.of(Capability.STREAMING, Capability.LOCAL);
+    }
+
+    @NotNull
+    @Override
+    protected String getBaseUrl() {
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        return settings != null ? settings.getLocalBaseUrl() : DEFAULT_BASE_URL;
+    }
+
+    @Nullable
+    @Override
+    protected String getApiKey() {
+        return System.getenv("LOCAL_AI_API_KEY");
+    }
+}
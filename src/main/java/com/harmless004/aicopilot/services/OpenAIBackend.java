@@ -0,0 +1,62 @@
+package com.harmless004.aicopilot.services;
+
+import com.harmless004.aicopilot.settings.AICopilotSettings;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * OpenAI GPT models, authenticated with the OPENAI_API_KEY environment variable
+ */
+public final class OpenAIBackend extends OpenAICompatibleBackend {
+
+    public static final String ID = "openai";
+    static final String DEFAULT_BASE_URL = "https://api.openai.com/v1";
+    static final String DEFAULT_MODEL = "gpt-4";
+
+    @NotNull
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @NotNull
+    @Override
+    public String getDisplayName() {
+        return "OpenAI";
+    }
+
+    @NotNull
+    @Override
+    public String getModel() {
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        return settings != null ? settings.getOpenAIModel() : DEFAULT_MODEL;
+    }
+
+    @Override
+    public boolean isConfigured() {
+        String apiKey = getApiKey();
+        return apiKey != null && !apiKey.trim().isEmpty();
+    }
+
+    @NotNull
+    @Override
+    public Set<Capability> getCapabilities() {
+        return EnumSet.of(Capability.STREAMING, Capability.MULTIPLE_CANDIDATES);
+    }
+
+    @NotNull
+    @Override
+    protected String getBaseUrl() {
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        return settings != null ? settings.getOpenAIBaseUrl() : DEFAULT_BASE_URL;
+    }
+
+    @Nullable
+    @Override
+    protected String getApiKey() {
+        return System.getenv("OPENAI_API_KEY");
+    }
+}
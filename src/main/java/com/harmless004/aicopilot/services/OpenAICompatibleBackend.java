@@ -0,0 +1,82 @@
+package com.harmless004.aicopilot.services;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base for backends speaking the OpenAI chat completions API, which many servers implement
+ */
+public abstract class OpenAICompatibleBackend implements CompletionBackend {
+
+    /**
+     * Base URL up to and including the API version, without a trailing slash
+     */
+    @NotNull
+    protected abstract String getBaseUrl();
+
+    /**
+     * Bearer token, or null if the server needs none
+     */
+    @Nullable
+    protected abstract String getApiKey();
+
+    @NotNull
+    @Override
+    public HttpRequest.Builder newCompletionRequest(@NotNull CompletionRequest request, int maxTokens, boolean stream,
+                                                    int candidates) {
+        return authorize(HttpRequest.newBuilder()
+                .uri(endpoint("/chat/completions"))
+                .header("Content-Type", "application/json")
+                .POST(RequestBodyWriter.openAI(getModel(), request, maxTokens, stream, candidates)));
+    }
+
+    @Nullable
+    @Override
+    public String parseStreamEvent(@NotNull String data) throws IOException {
+        return CompletionResponseParser.parseOpenAIStreamEvent(data);
+    }
+
+    @NotNull
+    @Override
+    public Map<Integer, String> parseStreamChoices(@NotNull String data) throws IOException {
+        return CompletionResponseParser.parseOpenAIStreamChoices(data);
+    }
+
+    @Nullable
+    @Override
+    public String parseResponse(@NotNull Reader body) throws IOException {
+        return CompletionResponseParser.parseOpenAIResponse(body);
+    }
+
+    @NotNull
+    @Override
+    public List<String> parseCandidates(@NotNull Reader body) throws IOException {
+        return CompletionResponseParser.parseOpenAICandidates(body);
+    }
+
+    @Nullable
+    @Override
+    public HttpRequest.Builder newProbeRequest() {
+        return authorize(HttpRequest.newBuilder().uri(endpoint("/models")).GET());
+    }
+
+    private HttpRequest.Builder authorize(HttpRequest.Builder builder) {
+        String apiKey = getApiKey();
+        if (apiKey != null && !apiKey.trim().isEmpty()) {
+            builder.header("Authorization", "Bearer " + apiKey);
+        }
+        return builder;
+    }
+
+    private URI endpoint(String path) {
+        String baseUrl = getBaseUrl();
+        return URI.create(baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) + path : baseUrl + path);
+    }
+}
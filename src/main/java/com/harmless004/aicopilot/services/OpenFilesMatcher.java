@@ -0,0 +1,269 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.editor.event.EditorFactoryEvent;
+import com.intellij.openapi.editor.event.EditorFactoryListener;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds code resembling the code before the cursor in the files the developer has open or
+ * edited recently, entirely in memory.
+ * <p>
+ * Each tracked document is cut into sliding windows of {@link SnippetIndex#WINDOW_LINES} lines
+ * and every window is sketched as the sorted set of its identifier hashes. A changed document is
+ * sketched again in the background once it has been left alone for {@link #REBUILD_DELAY_MILLIS},
+ * and queries skip documents whose sketch is out of date, so neither typing nor querying pays
+ * for sketching. The document listener takes no locks. A query merges the cursor window's sketch
+ * with each stored one to get their Jaccard similarity, skipping windows whose size alone rules
+ * out beating the current best.
+ */
+@Service
+public final class OpenFilesMatcher implements Disposable {
+
+    private static final int MAX_DOCUMENTS = 20;
+    private static final int MAX_LINES = 10_000;
+    private static final int WINDOW_STEP = 4;
+    private static final double MIN_SIMILARITY = 0.2;
+    private static final long REBUILD_DELAY_MILLIS = 500;
+
+    private final Map<Document, Tracked> documents = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private volatile boolean disposed;
+
+    public OpenFilesMatcher() {
+        EditorFactory editorFactory = EditorFactory.getInstance();
+        for (Editor editor : editorFactory.getAllEditors()) {
+            touch(editor.getDocument());
+        }
+
+        editorFactory.getEventMulticaster().addDocumentListener(new DocumentListener() {
+            @Override
+            public void documentChanged(@NotNull DocumentEvent event) {
+                touch(event.getDocument());
+            }
+        }, this);
+
+        editorFactory.addEditorFactoryListener(new EditorFactoryListener() {
+            @Override
+            public void editorCreated(@NotNull EditorFactoryEvent event) {
+                touch(event.getEditor().getDocument());
+            }
+        }, this);
+    }
+
+    public static OpenFilesMatcher getInstance() {
+        return ApplicationManager.getApplication().getService(OpenFilesMatcher.class);
+    }
+
+    /**
+     * Returns up to {@code limit} windows from other tracked documents, most similar first.
+     * Must be called in a read action.
+     */
+    @NotNull
+    List<SnippetRetriever.Snippet> findSimilar(@NotNull Document current, int offset, int limit) {
+        if (limit <= 0) {
+            return List.of();
+        }
+
+        int cursorLine = current.getLineNumber(offset);
+        int queryStart = current.getLineStartOffset(Math.max(0, cursorLine - SnippetIndex.WINDOW_LINES + 1));
+        int[] query = SnippetIndex.identifiers(current.getImmutableCharSequence(), queryStart, offset);
+        if (query.length == 0) {
+            return List.of();
+        }
+
+        List<SnippetRetriever.Snippet> matches = new ArrayList<>();
+        for (Map.Entry<Document, Tracked> entry : documents.entrySet()) {
+            Document document = entry.getKey();
+            Sketch sketch = entry.getValue().sketch;
+            // A document edited moments ago is left out until its sketch has been rebuilt
+            if (document == current || sketch.modificationStamp != document.getModificationStamp()) {
+                continue;
+            }
+            SnippetRetriever.Snippet match = sketch.bestMatch(document, query);
+            if (match != null) {
+                matches.add(match);
+            }
+        }
+
+        matches.sort(Comparator.comparingDouble(SnippetRetriever.Snippet::getSimilarity).reversed());
+        return matches.subList(0, Math.min(limit, matches.size()));
+    }
+
+    private void touch(Document document) {
+        Tracked tracked = documents.get(document);
+        if (tracked == null) {
+            VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+            if (file == null || !SnippetIndex.isIndexable(file) || document.getLineCount() > MAX_LINES) {
+                return;
+            }
+            tracked = documents.computeIfAbsent(document, key -> new Tracked());
+            tracked.lastUsed = clock.incrementAndGet();
+            evictLeastRecentlyUsed();
+        } else {
+            tracked.lastUsed = clock.incrementAndGet();
+        }
+
+        tracked.changedAt = System.nanoTime();
+        if (tracked.rebuildScheduled.compareAndSet(false, true)) {
+            scheduleRebuild(document, tracked, REBUILD_DELAY_MILLIS);
+        }
+    }
+
+    private void evictLeastRecentlyUsed() {
+        while (documents.size() > MAX_DOCUMENTS) {
+            Map.Entry<Document, Tracked> eldest = null;
+            for (Map.Entry<Document, Tracked> entry : documents.entrySet()) {
+                if (eldest == null || entry.getValue().lastUsed < eldest.getValue().lastUsed) {
+                    eldest = entry;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            documents.remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private void scheduleRebuild(Document document, Tracked tracked, long delayMillis) {
+        AppExecutorUtil.getAppScheduledExecutorService().schedule(() -> rebuild(document, tracked),
+                delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sketches the document once it has not changed for {@link #REBUILD_DELAY_MILLIS}
+     */
+    private void rebuild(Document document, Tracked tracked) {
+        long quietMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - tracked.changedAt);
+        if (quietMillis < REBUILD_DELAY_MILLIS) {
+            scheduleRebuild(document, tracked, REBUILD_DELAY_MILLIS - quietMillis);
+            return;
+        }
+
+        // Cleared first so that a change made while sketching schedules another rebuild
+        tracked.rebuildScheduled.set(false);
+        if (disposed || documents.get(document) != tracked) {
+            return;
+        }
+        ApplicationManager.getApplication().runReadAction(() -> {
+            if (tracked.sketch.modificationStamp != document.getModificationStamp()) {
+                tracked.sketch = new Sketch(document);
+            }
+        });
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+        documents.clear();
+    }
+
+    /**
+     * A tracked document's latest sketch and when it was last opened or edited
+     */
+    private static final class Tracked {
+        final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+        volatile Sketch sketch = Sketch.EMPTY;
+        volatile long lastUsed;
+        volatile long changedAt;
+    }
+
+    /**
+     * Identifier sets of the windows of one document version
+     */
+    private static final class Sketch {
+        static final Sketch EMPTY = new Sketch();
+
+        final long modificationStamp;
+        final int[][] windows;
+
+        private Sketch() {
+            modificationStamp = -1;
+            windows = new int[0][];
+        }
+
+        Sketch(Document document) {
+            modificationStamp = document.getModificationStamp();
+            CharSequence text = document.getImmutableCharSequence();
+            int lineCount = document.getLineCount();
+            int windowCount = lineCount == 0 ? 0
+                    : (Math.max(0, lineCount - SnippetIndex.WINDOW_LINES) + WINDOW_STEP - 1) / WINDOW_STEP + 1;
+
+            windows = new int[windowCount][];
+            for (int window = 0; window < windowCount; window++) {
+                int startLine = window * WINDOW_STEP;
+                int endLine = Math.min(lineCount, startLine + SnippetIndex.WINDOW_LINES) - 1;
+                windows[window] = SnippetIndex.identifiers(text, document.getLineStartOffset(startLine),
+                        document.getLineEndOffset(endLine));
+            }
+        }
+
+        SnippetRetriever.Snippet bestMatch(Document document, int[] query) {
+            int bestWindow = -1;
+            double bestSimilarity = MIN_SIMILARITY;
+            for (int window = 0; window < windows.length; window++) {
+                int[] sketch = windows[window];
+                // Jaccard similarity cannot exceed the ratio of the smaller set to the larger one
+                if ((double) Math.min(sketch.length, query.length) / Math.max(sketch.length, query.length) < bestSimilarity) {
+                    continue;
+                }
+
+                int shared = intersectionSize(sketch, query);
+                double similarity = (double) shared / (sketch.length + query.length - shared);
+                if (similarity > bestSimilarity || similarity == bestSimilarity && bestWindow < 0) {
+                    bestWindow = window;
+                    bestSimilarity = similarity;
+                }
+            }
+            if (bestWindow < 0) {
+                return null;
+            }
+
+            VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+            if (file == null) {
+                return null;
+            }
+            int startLine = bestWindow * WINDOW_STEP;
+            int endLine = Math.min(document.getLineCount(), startLine + SnippetIndex.WINDOW_LINES) - 1;
+            String text = document.getText(new TextRange(document.getLineStartOffset(startLine),
+                    document.getLineEndOffset(endLine)));
+            return new SnippetRetriever.Snippet(file, startLine, text, bestSimilarity);
+        }
+
+        private static int intersectionSize(int[] a, int[] b) {
+            int shared = 0;
+            for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    shared++;
+                    i++;
+                    j++;
+                }
+            }
+            return shared;
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Disk tier of the completion cache that survives IDE restarts.
+ * <p>
+ * Completions are appended to a memory-mapped log of CRC-protected records. A memory-mapped
+ * open-addressing index maps key hashes to log offsets, so opening the store only maps both
+ * files and replays records appended after the last index commit: startup cost does not grow
+ * with the number of cached entries. When the log or index fills up, live records are compacted
+ * in place, dropping expired and then the oldest entries until half the capacity is free.
+ * <p>
+ * Writes are left to the OS to flush, except on {@link #close()}; compaction runs under the same
+ * lock as lookups, so it must not wait for the disk.
+ */
+public final class PersistentCompletionStore implements Closeable {
+
+    private static final Logger LOG = Logger.getInstance(PersistentCompletionStore.class);
+
+    private static final int VERSION = 1;
+    private static final int LOG_MAGIC = 0x41434C47;    // "ACLG"
+    private static final int INDEX_MAGIC = 0x41434958;  // "ACIX"
+    private static final int RECORD_MAGIC = 0x52454331; // "REC1"
+
+    // Log: [magic][version][reserved] followed by records
+    private static final int LOG_HEADER_BYTES = 16;
+    // Record: [magic][keyLength][valueLength][writeTimeMillis][key][value][crc32]
+    private static final int RECORD_HEADER_BYTES = 20;
+    private static final int RECORD_TRAILER_BYTES = 4;
+
+    // Index: [magic][version][slotCount][compacting][committedTail:long][liveCount] then slots
+    private static final int INDEX_HEADER_BYTES = 64;
+    private static final int SLOT_BYTES = 16; // [keyHash:long][offset:long]
+    private static final int OFFSET_SLOT_COUNT = 8;
+    private static final int OFFSET_COMPACTING = 12;
+    private static final int OFFSET_TAIL = 16;
+    private static final int OFFSET_LIVE_COUNT = 24;
+    private static final double MAX_LOAD_FACTOR = 0.5;
+
+    private final Path directory;
+    private final long capacity;
+    private final int slotCount;
+    private final long timeToLiveMillis;
+
+    private FileChannel logChannel;
+    private FileChannel indexChannel;
+    private MappedByteBuffer log;
+    private MappedByteBuffer index;
+    private long tail;
+    private int liveCount;
+    private boolean opened;
+    private boolean disabled;
+
+    public PersistentCompletionStore(@NotNull Path directory, long capacityBytes, @NotNull Duration timeToLive) {
+        this.directory = directory;
+        this.capacity = Math.min(Integer.MAX_VALUE, Math.max(capacityBytes, 64 * 1024));
+        this.slotCount = Integer.highestOneBit((int) Math.max(1024, this.capacity / 256));
+        this.timeToLiveMillis = timeToLive.toMillis();
+    }
+
+    /**
+     * Maps and recovers the files now instead of on first use, so that callers can do it off the
+     * request path. Returns false if the disk tier is unavailable.
+     */
+    public synchronized boolean open() {
+        return ensureOpen();
+    }
+
+    /**
+     * Returns the stored completion for the key, or null if absent, expired or corrupt
+     */
+    @Nullable
+    public synchronized String get(@NotNull String key) {
+        if (!ensureOpen()) {
+            return null;
+        }
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes);
+        int slot = findSlot(hash);
+        if (readSlotHash(slot) == 0) {
+            return null;
+        }
+
+        long offset = index.getLong(slotPosition(slot) + 8);
+        if (!isValidRecord(offset) || !keyMatches(offset, keyBytes)) {
+            return null;
+        }
+
+        if (isExpired(log.getLong((int) offset + 12), System.currentTimeMillis())) {
+            return null;
+        }
+
+        int keyLength = log.getInt((int) offset + 4);
+        int valueLength = log.getInt((int) offset + 8);
+        byte[] value = new byte[valueLength];
+        log.get((int) offset + RECORD_HEADER_BYTES + keyLength, value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Appends the completion to the log and points the index at it
+     */
+    public synchronized void put(@NotNull String key, @NotNull String value) {
+        if (!ensureOpen()) {
+            return;
+        }
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        long recordSize = (long) RECORD_HEADER_BYTES + keyBytes.length + valueBytes.length + RECORD_TRAILER_BYTES;
+        if (recordSize > (capacity - LOG_HEADER_BYTES) / 4) {
+            return; // Not worth persisting
+        }
+
+        if (tail + recordSize > capacity || liveCount + 1 > slotCount * MAX_LOAD_FACTOR) {
+            compact();
+            if (tail + recordSize > capacity) {
+                return;
+            }
+        }
+
+        // Record first, index second: a crash in between is repaired by the tail replay on open
+        long offset = tail;
+        writeRecord(offset, keyBytes, valueBytes, System.currentTimeMillis());
+        tail += recordSize;
+        indexRecord(hash(keyBytes), offset);
+        commitHeader();
+    }
+
+    /**
+     * Flushes both mapped files and releases the channels
+     */
+    @Override
+    public synchronized void close() {
+        if (!opened) {
+            return;
+        }
+
+        try {
+            log.force();
+            index.force();
+            logChannel.close();
+            indexChannel.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close persistent completion cache", e);
+        } finally {
+            opened = false;
+            disabled = true;
+        }
+    }
+
+    /**
+     * Maps the files on first use. A failure disables the disk tier instead of failing completions.
+     */
+    private boolean ensureOpen() {
+        if (opened) {
+            return true;
+        }
+        if (disabled) {
+            return false;
+        }
+
+        try {
+            Files.createDirectories(directory);
+            logChannel = FileChannel.open(directory.resolve("completions.log"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            indexChannel = FileChannel.open(directory.resolve("completions.idx"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    INDEX_HEADER_BYTES + (long) slotCount * SLOT_BYTES);
+            opened = true;
+            recover();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Persistent completion cache unavailable, continuing without it", e);
+            opened = false;
+            disabled = true;
+            return false;
+        }
+    }
+
+    /**
+     * Validates headers and replays records appended after the last committed tail.
+     * Anything inconsistent, including an interrupted compaction, resets the store.
+     */
+    private void recover() {
+        boolean headersValid = log.getInt(0) == LOG_MAGIC && log.getInt(4) == VERSION
+                && index.getInt(0) == INDEX_MAGIC && index.getInt(4) == VERSION
+                && index.getInt(OFFSET_SLOT_COUNT) == slotCount
+                && index.getInt(OFFSET_COMPACTING) == 0;
+        long committedTail = index.getLong(OFFSET_TAIL);
+
+        if (!headersValid || committedTail < LOG_HEADER_BYTES || committedTail > capacity) {
+            reset();
+            return;
+        }
+
+        tail = committedTail;
+        liveCount = index.getInt(OFFSET_LIVE_COUNT);
+
+        // Replay records that reached the log but not the index before a crash
+        int replayed = 0;
+        while (isValidRecord(tail) && liveCount + 1 <= slotCount * MAX_LOAD_FACTOR) {
+            indexRecord(readKeyHash(tail), tail);
+            tail += recordSize(tail);
+            replayed++;
+        }
+
+        if (replayed > 0) {
+            LOG.info("Recovered " + replayed + " completion cache records after unclean shutdown");
+        }
+        commitHeader();
+    }
+
+    private void reset() {
+        for (int position = 0; position < index.capacity(); position += 8) {
+            index.putLong(position, 0L);
+        }
+        log.putInt(0, LOG_MAGIC);
+        log.putInt(4, VERSION);
+        log.putInt(LOG_HEADER_BYTES, 0); // No first record
+
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(4, VERSION);
+        index.putInt(OFFSET_SLOT_COUNT, slotCount);
+        index.putInt(OFFSET_COMPACTING, 0);
+
+        tail = LOG_HEADER_BYTES;
+        liveCount = 0;
+        commitHeader();
+    }
+
+    /**
+     * Slides live records to the start of the log and rebuilds the index.
+     * Expired records are dropped, then the oldest ones until at most half the capacity is used.
+     * Nothing is forced to disk: a process crash midway leaves the compacting flag set in the
+     * mapping and the store is reset on next open, and should pages be lost in an OS crash, lookups
+     * still check each record's magic, checksum and key before returning it.
+     */
+    private void compact() {
+        long now = System.currentTimeMillis();
+        List<long[]> live = new ArrayList<>(); // {offset, size, writeTime}
+
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (readSlotHash(slot) == 0) {
+                continue;
+            }
+            long offset = index.getLong(slotPosition(slot) + 8);
+            if (isValidRecord(offset) && !isExpired(log.getLong((int) offset + 12), now)) {
+                live.add(new long[]{offset, recordSize(offset), log.getLong((int) offset + 12)});
+            }
+        }
+
+        // Keep the newest records within the size and load budgets
+        live.sort(Comparator.comparingLong((long[] record) -> record[2]).reversed());
+        long budget = (capacity - LOG_HEADER_BYTES) / 2;
+        int maxEntries = (int) (slotCount * MAX_LOAD_FACTOR / 2);
+        List<long[]> kept = new ArrayList<>();
+        long keptBytes = 0;
+        for (long[] record : live) {
+            if (keptBytes + record[1] > budget || kept.size() >= maxEntries) {
+                break;
+            }
+            kept.add(record);
+            keptBytes += record[1];
+        }
+        kept.sort(Comparator.comparingLong(record -> record[0]));
+
+        // A crash from here on leaves the flag set and the store is reset on next open
+        index.putInt(OFFSET_COMPACTING, 1);
+        for (int position = INDEX_HEADER_BYTES; position < index.capacity(); position += 8) {
+            index.putLong(position, 0L);
+        }
+        liveCount = 0;
+
+        long destination = LOG_HEADER_BYTES;
+        for (long[] record : kept) {
+            int size = (int) record[1];
+            if (record[0] != destination) {
+                byte[] bytes = new byte[size];
+                log.get((int) record[0], bytes);
+                log.put((int) destination, bytes);
+            }
+            indexRecord(readKeyHash(destination), destination);
+            destination += size;
+        }
+
+        tail = destination;
+        if (tail + 4 <= capacity) {
+            log.putInt((int) tail, 0); // Stop replay at the new tail
+        }
+        index.putInt(OFFSET_COMPACTING, 0);
+        commitHeader();
+
+        LOG.info("Compacted persistent completion cache: kept " + kept.size() + " of " + live.size() + " records");
+    }
+
+    private void writeRecord(long offset, byte[] key, byte[] value, long writeTime) {
+        int position = (int) offset;
+        int payloadEnd = position + RECORD_HEADER_BYTES + key.length + value.length;
+
+        log.putInt(position + 4, key.length);
+        log.putInt(position + 8, value.length);
+        log.putLong(position + 12, writeTime);
+        log.put(position + RECORD_HEADER_BYTES, key);
+        log.put(position + RECORD_HEADER_BYTES + key.length, value);
+        log.putInt(payloadEnd, checksum(position, payloadEnd));
+
+        // Terminate replay after this record, then publish it by writing its magic last
+        if (payloadEnd + RECORD_TRAILER_BYTES + 4 <= capacity) {
+            log.putInt(payloadEnd + RECORD_TRAILER_BYTES, 0);
+        }
+        log.putInt(position, RECORD_MAGIC);
+    }
+
+    private boolean isValidRecord(long offset) {
+        if (offset < LOG_HEADER_BYTES || offset + RECORD_HEADER_BYTES + RECORD_TRAILER_BYTES > capacity) {
+            return false;
+        }
+
+        int position = (int) offset;
+        if (log.getInt(position) != RECORD_MAGIC) {
+            return false;
+        }
+
+        int keyLength = log.getInt(position + 4);
+        int valueLength = log.getInt(position + 8);
+        if (keyLength < 0 || valueLength < 0
+                || offset + RECORD_HEADER_BYTES + (long) keyLength + valueLength + RECORD_TRAILER_BYTES > capacity) {
+            return false;
+        }
+
+        int payloadEnd = position + RECORD_HEADER_BYTES + keyLength + valueLength;
+        return log.getInt(payloadEnd) == checksum(position, payloadEnd);
+    }
+
+    private int checksum(int recordStart, int payloadEnd) {
+        CRC32 crc = new CRC32();
+        ByteBuffer payload = log.duplicate();
+        payload.position(recordStart + 4).limit(payloadEnd);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private boolean keyMatches(long offset, byte[] key) {
+        if (log.getInt((int) offset + 4) != key.length) {
+            return false;
+        }
+        byte[] stored = new byte[key.length];
+        log.get((int) offset + RECORD_HEADER_BYTES, stored);
+        return Arrays.equals(stored, key);
+    }
+
+    private long recordSize(long offset) {
+        return RECORD_HEADER_BYTES + (long) log.getInt((int) offset + 4) + log.getInt((int) offset + 8)
+                + RECORD_TRAILER_BYTES;
+    }
+
+    private long readKeyHash(long offset) {
+        byte[] key = new byte[log.getInt((int) offset + 4)];
+        log.get((int) offset + RECORD_HEADER_BYTES, key);
+        return hash(key);
+    }
+
+    private void indexRecord(long hash, long offset) {
+        int slot = findSlot(hash);
+        int position = slotPosition(slot);
+        if (index.getLong(position) == 0) {
+            liveCount++;
+        }
+        index.putLong(position + 8, offset);
+        index.putLong(position, hash);
+    }
+
+    /**
+     * Linear probing: returns the slot holding the hash, or the first empty slot
+     */
+    private int findSlot(long hash) {
+        int mask = slotCount - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (true) {
+            long stored = readSlotHash(slot);
+            if (stored == 0 || stored == hash) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private long readSlotHash(int slot) {
+        return index.getLong(slotPosition(slot));
+    }
+
+    private static int slotPosition(int slot) {
+        return INDEX_HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private void commitHeader() {
+        index.putInt(OFFSET_LIVE_COUNT, liveCount);
+        index.putLong(OFFSET_TAIL, tail);
+    }
+
+    private boolean isExpired(long writeTime, long now) {
+        return timeToLiveMillis > 0 && now - writeTime > timeToLiveMillis;
+    }
+
+    /**
+     * 64-bit FNV-1a; zero is reserved for empty index slots
+     */
+    private static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
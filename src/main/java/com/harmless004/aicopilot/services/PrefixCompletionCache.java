@@ -0,0 +1,160 @@
+package com.harmless004.aicopilot.services;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reuses earlier suggestions while the user keeps typing into them.
+ * <p>
+ * For every stable context (the code around the cursor line, which does not change while
+ * typing on that line) a radix trie holds the texts "line prefix + suggestion" seen so far.
+ * When the current line prefix walks down the trie, the rest of the matching suggestion is
+ * returned without any network call.
+ */
+public final class PrefixCompletionCache {
+
+    private static final int MAX_CONTEXTS = 256;
+    private static final int MAX_SUGGESTIONS_PER_CONTEXT = 32;
+
+    private final LinkedHashMap<String, Trie> tries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Trie> eldest) {
+            return size() > MAX_CONTEXTS;
+        }
+    };
+
+    /**
+     * Records that the suggestion was returned for the line prefix in the given context
+     */
+    public synchronized void put(@NotNull String stableContextKey, @NotNull String linePrefix,
+                                 @NotNull String suggestion) {
+        if (suggestion.isEmpty()) {
+            return;
+        }
+
+        Trie trie = tries.get(stableContextKey);
+        if (trie == null || trie.size >= MAX_SUGGESTIONS_PER_CONTEXT) {
+            trie = new Trie();
+            tries.put(stableContextKey, trie);
+        }
+        trie.insert(linePrefix + suggestion, linePrefix.length());
+    }
+
+    /**
+     * Returns the not yet typed remainder of an earlier suggestion, or null if none matches
+     */
+    @Nullable
+    public synchronized String lookup(@NotNull String stableContextKey, @NotNull String linePrefix) {
+        Trie trie = tries.get(stableContextKey);
+        return trie == null ? null : trie.continuation(linePrefix);
+    }
+
+    public synchronized void clear() {
+        tries.clear();
+    }
+
+    /**
+     * Radix trie whose nodes remember the most recent full text passing through them
+     */
+    private static final class Trie {
+        private final Node root = new Node();
+        private int size;
+
+        void insert(String text, int prefixLength) {
+            size++;
+            Node node = root;
+            int depth = 0;
+            node.remember(text, prefixLength);
+
+            while (depth < text.length()) {
+                char next = text.charAt(depth);
+                Edge edge = node.children.get(next);
+
+                if (edge == null) {
+                    Node leaf = new Node();
+                    leaf.remember(text, prefixLength);
+                    node.children.put(next, new Edge(text.substring(depth), leaf));
+                    return;
+                }
+
+                int common = commonPrefixLength(edge.label, text, depth);
+                if (common < edge.label.length()) {
+                    // Split the edge at the point where the texts diverge
+                    Node middle = new Node();
+                    middle.latest = edge.target.latest;
+                    middle.latestPrefixLength = edge.target.latestPrefixLength;
+                    middle.children.put(edge.label.charAt(common),
+                            new Edge(edge.label.substring(common), edge.target));
+                    edge.label = edge.label.substring(0, common);
+                    edge.target = middle;
+                }
+
+                node = edge.target;
+                depth += common;
+                node.remember(text, prefixLength);
+            }
+        }
+
+        String continuation(String linePrefix) {
+            Node node = root;
+            int depth = 0;
+
+            while (depth < linePrefix.length()) {
+                Edge edge = node.children.get(linePrefix.charAt(depth));
+                if (edge == null) {
+                    return null;
+                }
+
+                int common = commonPrefixLength(edge.label, linePrefix, depth);
+                if (depth + common < linePrefix.length() && common < edge.label.length()) {
+                    return null; // Typed text diverges from every stored suggestion
+                }
+
+                node = edge.target;
+                depth += common;
+            }
+
+            String latest = node.latest;
+            // Only offer it once the user has typed at least up to where the suggestion started
+            if (latest == null || linePrefix.length() < node.latestPrefixLength
+                    || latest.length() <= linePrefix.length()) {
+                return null;
+            }
+            return latest.substring(linePrefix.length());
+        }
+
+        private static int commonPrefixLength(String label, String text, int offset) {
+            int max = Math.min(label.length(), text.length() - offset);
+            int i = 0;
+            while (i < max && label.charAt(i) == text.charAt(offset + i)) {
+                i++;
+            }
+            return i;
+        }
+    }
+
+    private static final class Node {
+        final Map<Character, Edge> children = new HashMap<>(4);
+        String latest;
+        int latestPrefixLength;
+
+        void remember(String text, int prefixLength) {
+            latest = text;
+            latestPrefixLength = prefixLength;
+        }
+    }
+
+    private static final class Edge {
+        String label;
+        Node target;
+
+        Edge(String label, Node target) {
+            this.label = label;
+            this.target = target;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.harmless004.aicopilot.services;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+
+/**
+ * Timeouts, rate limiter and circuit breaker of a single provider call, fixed when the call starts,
+ * and how far the call got. Calls to local backends have no rate limiter.
+ * <p>
+ * Each timeout is the provider's latency-derived budget or the caller's remaining deadline,
+ * whichever is shorter. Only running out of the provider's own budget says something about the
+ * provider, so a timeout set by the caller's deadline, for example after the request waited in
+ * the queue or for the rate limiter, is not counted against the circuit breaker.
+ */
+final class ProviderCall {
+    final ProviderLatency latency;
+    @Nullable
+    final ProviderRateLimiter rateLimiter;
+    final ProviderCircuitBreaker circuitBreaker;
+    final long startNanos;
+    final Duration headersTimeout;
+    final long bodyDeadlineNanos;
+    private final boolean headersCappedByDeadline;
+    private final boolean bodyCappedByDeadline;
+    volatile boolean headersReceived;
+    volatile boolean timedOut;
+    private volatile boolean deadlineReached;
+
+    /**
+     * @param remainingNanos time left until the caller's deadline, or {@link Long#MAX_VALUE} for none
+     */
+    ProviderCall(ProviderLatency latency, @Nullable ProviderRateLimiter rateLimiter,
+                 ProviderCircuitBreaker circuitBreaker, long startNanos, Duration timeoutCap, long remainingNanos) {
+        this.latency = latency;
+        this.rateLimiter = rateLimiter;
+        this.circuitBreaker = circuitBreaker;
+        this.startNanos = startNanos;
+
+        long headersBudget = latency.headersTimeout(timeoutCap).toNanos();
+        long totalBudget = latency.totalTimeout(timeoutCap).toNanos();
+        this.headersCappedByDeadline = remainingNanos < headersBudget;
+        this.bodyCappedByDeadline = remainingNanos < totalBudget;
+        this.headersTimeout = Duration.ofNanos(Math.min(headersBudget, remainingNanos));
+        this.bodyDeadlineNanos = startNanos + Math.min(totalBudget, remainingNanos);
+    }
+
+    /**
+     * The response headers did not arrive within {@link #headersTimeout}
+     */
+    void headersTimedOut() {
+        timedOut = true;
+        deadlineReached = headersCappedByDeadline;
+    }
+
+    /**
+     * The response was not complete at {@link #bodyDeadlineNanos}
+     */
+    void bodyTimedOut() {
+        timedOut = true;
+        deadlineReached = bodyCappedByDeadline;
+    }
+
+    /**
+     * Counts a failed call against the provider's circuit breaker, unless it only ran out of the
+     * caller's deadline
+     */
+    void recordFailure() {
+        if (!deadlineReached) {
+            circuitBreaker.recordFailure();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.harmless004.aicopilot.services;
+
+import com.harmless004.aicopilot.services.CircuitBreakerListener.State;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Closed/open/half-open circuit breaker for one provider.
+ * <p>
+ * Opens after several consecutive failures, or when at least half of the recent calls failed.
+ * While open every request fails fast. Recovery is checked by background probes only: a probe
+ * moves the breaker to half-open, and its result closes the breaker or reopens it for twice
+ * as long.
+ */
+final class ProviderCircuitBreaker {
+
+    private static final int WINDOW = 20;
+    private static final int MIN_CALLS = 10;
+    private static final double FAILURE_RATIO = 0.5;
+    private static final int CONSECUTIVE_FAILURES = 5;
+    private static final long BASE_OPEN_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long MAX_OPEN_NANOS = TimeUnit.MINUTES.toNanos(2);
+
+    private final BiConsumer<State, State> transitionListener;
+    private final boolean[] failed = new boolean[WINDOW];
+    private int calls;
+    private int next;
+    private int failures;
+    private int consecutiveFailures;
+    private State state = State.CLOSED;
+    private long openNanos = BASE_OPEN_NANOS;
+
+    /**
+     * @param transitionListener called with the old and new state after every transition, outside the lock
+     */
+    ProviderCircuitBreaker(BiConsumer<State, State> transitionListener) {
+        this.transitionListener = transitionListener;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized boolean allowsRequests() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * How long the breaker stays open before the next probe
+     */
+    synchronized long getOpenNanos() {
+        return openNanos;
+    }
+
+    void recordSuccess() {
+        synchronized (this) {
+            if (state != State.CLOSED) {
+                return; // Late result of a call started before the breaker opened
+            }
+            consecutiveFailures = 0;
+            record(false);
+        }
+    }
+
+    void recordFailure() {
+        synchronized (this) {
+            if (state != State.CLOSED) {
+                return;
+            }
+            consecutiveFailures++;
+            record(true);
+
+            boolean tripped = consecutiveFailures >= CONSECUTIVE_FAILURES
+                    || calls >= MIN_CALLS && failures >= calls * FAILURE_RATIO;
+            if (!tripped) {
+                return;
+            }
+            state = State.OPEN;
+        }
+        transitionListener.accept(State.CLOSED, State.OPEN);
+    }
+
+    /**
+     * Moves an open breaker to half-open. Returns false if no probe is due.
+     */
+    boolean startProbe() {
+        synchronized (this) {
+            if (state != State.OPEN) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+        }
+        transitionListener.accept(State.OPEN, State.HALF_OPEN);
+        return true;
+    }
+
+    void probeSucceeded() {
+        synchronized (this) {
+            if (state != State.HALF_OPEN) {
+                return;
+            }
+            state = State.CLOSED;
+            openNanos = BASE_OPEN_NANOS;
+            reset();
+        }
+        transitionListener.accept(State.HALF_OPEN, State.CLOSED);
+    }
+
+    void probeFailed() {
+        synchronized (this) {
+            if (state != State.HALF_OPEN) {
+                return;
+            }
+            state = State.OPEN;
+            openNanos = Math.min(MAX_OPEN_NANOS, openNanos * 2);
+        }
+        transitionListener.accept(State.HALF_OPEN, State.OPEN);
+    }
+
+    private void record(boolean failure) {
+        if (calls == WINDOW) {
+            if (failed[next]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        failed[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % WINDOW;
+    }
+
+    private void reset() {
+        calls = 0;
+        next = 0;
+        failures = 0;
+        consecutiveFailures = 0;
+    }
+}
@@ -0,0 +1,114 @@
+package com.harmless004.aicopilot.services;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+
+/**
+ * Live latency statistics of one provider and model, and the timeouts derived from them.
+ * Timeouts are the observed p99 with headroom, never below a floor and never above the
+ * configured cap, so fast providers get tight bounds and slow ones are not cut off early.
+ */
+public final class ProviderLatency {
+
+    private static final int MIN_SAMPLES = 20;
+    private static final long MIN_TIMEOUT_MS = 500;
+    private static final double HEADROOM = 2.0;
+
+    private final String name;
+    private final LatencyHistogram firstToken;
+    private final LatencyHistogram headers;
+    private final LatencyHistogram total;
+
+    public ProviderLatency(@NotNull String name, long windowMillis) {
+        this.name = name;
+        this.firstToken = new LatencyHistogram(windowMillis);
+        this.headers = new LatencyHistogram(windowMillis);
+        this.total = new LatencyHistogram(windowMillis);
+    }
+
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Time from sending the request until the first completion text arrived
+     */
+    @NotNull
+    public LatencyHistogram getFirstToken() {
+        return firstToken;
+    }
+
+    /**
+     * Time from sending the request until the response headers arrived, including connection setup
+     */
+    @NotNull
+    public LatencyHistogram getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Time from sending the request until the full completion was read
+     */
+    @NotNull
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    /**
+     * Records a call that timed out after the given time. Its samples are censored, the real
+     * latency was at least this long, but leaving them out would bias the percentiles toward
+     * fast calls and keep the derived timeouts too tight for a slowing provider.
+     */
+    public void recordTimeout(long elapsedMillis, boolean headersReceived, boolean firstTokenReceived) {
+        if (!headersReceived) {
+            headers.record(elapsedMillis);
+        }
+        if (!firstTokenReceived) {
+            firstToken.record(elapsedMillis);
+        }
+        total.record(elapsedMillis);
+    }
+
+    /**
+     * Timeout for connecting and receiving response headers
+     */
+    @NotNull
+    public Duration headersTimeout(@NotNull Duration cap) {
+        return derive(headers, cap);
+    }
+
+    /**
+     * Timeout for the whole exchange including the streamed body
+     */
+    @NotNull
+    public Duration totalTimeout(@NotNull Duration cap) {
+        return derive(total, cap);
+    }
+
+    private static Duration derive(LatencyHistogram histogram, Duration cap) {
+        long capMillis = cap.toMillis();
+        if (histogram.count() < MIN_SAMPLES) {
+            return cap;
+        }
+        long derived = (long) (histogram.percentile(0.99) * HEADROOM);
+        return Duration.ofMillis(Math.max(Math.min(MIN_TIMEOUT_MS, capMillis), Math.min(derived, capMillis)));
+    }
+
+    @Override
+    public String toString() {
+        return name + "{" +
+                "firstToken=" + describe(firstToken) +
+                ", headers=" + describe(headers) +
+                ", total=" + describe(total) +
+                '}';
+    }
+
+    private static String describe(LatencyHistogram histogram) {
+        return "p50=" + histogram.percentile(0.50) + "ms" +
+                " p90=" + histogram.percentile(0.90) + "ms" +
+                " p99=" + histogram.percentile(0.99) + "ms" +
+                " n=" + histogram.count();
+    }
+}
@@ -0,0 +1,267 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Client-side rate limit of one provider: a token bucket for requests per minute and one
+ * for tokens per minute, kept in sync with the provider's rate limit headers.
+ * <p>
+ * Automatic requests may not dip into the last quarter of either bucket, speculative ones not
+ * into the last half, and both are shed while the provider asks us to back off, so explicitly
+ * requested completions still get through when the team is close to its limits.
+ */
+final class ProviderRateLimiter {
+
+    private static final Logger LOG = Logger.getInstance(ProviderRateLimiter.class);
+
+    /** Returned by {@link #tryAcquire} when the request should be dropped */
+    static final long SHED = -1;
+
+    private static final double AUTOMATIC_RESERVE = 0.25;
+    private static final double SPECULATIVE_RESERVE = 0.5;
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+
+    private final String name;
+    private final Bucket requests = new Bucket();
+    private final Bucket tokens = new Bucket();
+    private int configuredRequestsPerMinute;
+    private int configuredTokensPerMinute;
+    private long blockedUntil = System.nanoTime();
+    private int consecutiveThrottles;
+
+    ProviderRateLimiter(String name, int requestsPerMinute, int tokensPerMinute) {
+        this.name = name;
+        setLimits(requestsPerMinute, tokensPerMinute);
+    }
+
+    /**
+     * Applies the configured per-minute limits; a no-op unless they changed
+     */
+    synchronized void setLimits(int requestsPerMinute, int tokensPerMinute) {
+        if (requestsPerMinute == configuredRequestsPerMinute && tokensPerMinute == configuredTokensPerMinute) {
+            return;
+        }
+        configuredRequestsPerMinute = requestsPerMinute;
+        configuredTokensPerMinute = tokensPerMinute;
+        long now = System.nanoTime();
+        requests.setCapacity(Math.max(1, requestsPerMinute), now);
+        tokens.setCapacity(Math.max(1, tokensPerMinute), now);
+    }
+
+    /**
+     * Takes one request and the estimated tokens from the buckets.
+     * Returns 0 if granted, the nanoseconds to wait before trying again, or {@link #SHED}.
+     * Only manual requests are asked to wait; automatic ones are shed right away.
+     */
+    synchronized long tryAcquire(CompletionRequest.Priority priority, long estimatedTokens) {
+        long now = System.nanoTime();
+        boolean manual = priority == CompletionRequest.Priority.MANUAL;
+
+        if (now - blockedUntil < 0) {
+            return manual ? blockedUntil - now : SHED;
+        }
+
+        requests.refill(now);
+        tokens.refill(now);
+
+        double reserve = manual ? 0
+                : priority == CompletionRequest.Priority.SPECULATIVE ? SPECULATIVE_RESERVE : AUTOMATIC_RESERVE;
+        // A single oversized request must still be able to pass once the bucket is full
+        double tokenCost = Math.min(estimatedTokens, tokens.capacity * (1 - reserve));
+        if (requests.canTake(1, reserve) && tokens.canTake(tokenCost, reserve)) {
+            requests.level -= 1;
+            tokens.level -= tokenCost;
+            return 0;
+        }
+
+        if (!manual) {
+            return SHED;
+        }
+        return Math.max(1, Math.max(requests.nanosUntil(1), tokens.nanosUntil(tokenCost)));
+    }
+
+    /**
+     * Learns the provider's limits and back-off requests from a response.
+     * Understands Retry-After and both the OpenAI x-ratelimit-* and Anthropic
+     * anthropic-ratelimit-* header families.
+     */
+    synchronized void onResponse(int statusCode, HttpHeaders headers) {
+        long now = System.nanoTime();
+
+        syncBucket(requests, configuredRequestsPerMinute, now, headers,
+                "x-ratelimit-limit-requests", "x-ratelimit-remaining-requests", "x-ratelimit-reset-requests",
+                "anthropic-ratelimit-requests-limit", "anthropic-ratelimit-requests-remaining",
+                "anthropic-ratelimit-requests-reset");
+        syncBucket(tokens, configuredTokensPerMinute, now, headers,
+                "x-ratelimit-limit-tokens", "x-ratelimit-remaining-tokens", "x-ratelimit-reset-tokens",
+                "anthropic-ratelimit-tokens-limit", "anthropic-ratelimit-tokens-remaining",
+                "anthropic-ratelimit-tokens-reset");
+
+        boolean throttled = statusCode == 429 || statusCode == 529;
+        if (!throttled && statusCode != 503) {
+            consecutiveThrottles = 0;
+            return;
+        }
+
+        OptionalLong retryAfter = parseRetryAfter(headers.firstValue("retry-after").orElse(null));
+        long backoff;
+        if (retryAfter.isPresent()) {
+            backoff = retryAfter.getAsLong();
+        } else if (throttled) {
+            // No hint from the provider: back off exponentially
+            backoff = Math.min(MAX_BACKOFF_NANOS, MIN_BACKOFF_NANOS << Math.min(consecutiveThrottles, 6));
+        } else {
+            return;
+        }
+        consecutiveThrottles++;
+        blockUntil(now + backoff);
+        LOG.info(name + " asked to back off for " + TimeUnit.NANOSECONDS.toMillis(backoff) + "ms");
+    }
+
+    private void syncBucket(Bucket bucket, int configuredPerMinute, long now, HttpHeaders headers,
+                            String openAILimit, String openAIRemaining, String openAIReset,
+                            String anthropicLimit, String anthropicRemaining, String anthropicReset) {
+        OptionalLong limit = parseLong(headers.firstValue(openAILimit).or(() -> headers.firstValue(anthropicLimit)).orElse(null));
+        if (limit.isPresent() && limit.getAsLong() > 0) {
+            bucket.setCapacity(Math.min(Math.max(1, configuredPerMinute), limit.getAsLong()), now);
+        }
+
+        OptionalLong remaining = parseLong(headers.firstValue(openAIRemaining)
+                .or(() -> headers.firstValue(anthropicRemaining)).orElse(null));
+        if (remaining.isEmpty()) {
+            return;
+        }
+        bucket.refill(now);
+        bucket.level = Math.min(bucket.level, remaining.getAsLong());
+
+        if (remaining.getAsLong() == 0) {
+            OptionalLong reset = parseDuration(headers.firstValue(openAIReset).orElse(null));
+            if (reset.isEmpty()) {
+                reset = parseTimestamp(headers.firstValue(anthropicReset).orElse(null));
+            }
+            if (reset.isPresent()) {
+                blockUntil(now + reset.getAsLong());
+            }
+        }
+    }
+
+    private void blockUntil(long until) {
+        if (until - blockedUntil > 0) {
+            blockedUntil = until;
+        }
+    }
+
+    private static OptionalLong parseLong(String value) {
+        if (value == null) {
+            return OptionalLong.empty();
+        }
+        try {
+            return OptionalLong.of(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return OptionalLong.empty();
+        }
+    }
+
+    /**
+     * Parses Retry-After as delay seconds or an HTTP date, in nanoseconds from now
+     */
+    private static OptionalLong parseRetryAfter(String value) {
+        if (value == null) {
+            return OptionalLong.empty();
+        }
+        try {
+            double seconds = Double.parseDouble(value.trim());
+            return OptionalLong.of((long) (Math.max(0, seconds) * 1e9));
+        } catch (NumberFormatException e) {
+            try {
+                Instant at = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                return OptionalLong.of(Math.max(0, Duration.between(Instant.now(), at).toNanos()));
+            } catch (DateTimeParseException ignored) {
+                return OptionalLong.empty();
+            }
+        }
+    }
+
+    /**
+     * Parses OpenAI reset durations such as "20ms", "1s" or "6m0s", in nanoseconds
+     */
+    private static OptionalLong parseDuration(String value) {
+        if (value == null) {
+            return OptionalLong.empty();
+        }
+        Matcher matcher = DURATION_PART.matcher(value);
+        double nanos = 0;
+        boolean found = false;
+        while (matcher.find()) {
+            found = true;
+            double amount = Double.parseDouble(matcher.group(1));
+            nanos += switch (matcher.group(2)) {
+                case "h" -> amount * 3600e9;
+                case "m" -> amount * 60e9;
+                case "s" -> amount * 1e9;
+                default -> amount * 1e6;
+            };
+        }
+        return found ? OptionalLong.of((long) nanos) : OptionalLong.empty();
+    }
+
+    /**
+     * Parses Anthropic RFC 3339 reset timestamps, in nanoseconds from now
+     */
+    private static OptionalLong parseTimestamp(String value) {
+        if (value == null) {
+            return OptionalLong.empty();
+        }
+        try {
+            Instant at = Instant.parse(value.trim());
+            return OptionalLong.of(Math.max(0, Duration.between(Instant.now(), at).toNanos()));
+        } catch (DateTimeParseException e) {
+            return OptionalLong.empty();
+        }
+    }
+
+    /**
+     * Token bucket that refills its whole capacity once per minute
+     */
+    private static final class Bucket {
+        private static final double NANOS_PER_MINUTE = 60e9;
+
+        double capacity;
+        double level;
+        long lastRefill;
+
+        void setCapacity(double newCapacity, long now) {
+            refill(now);
+            // A fresh bucket starts full; a resized one keeps its level within the new capacity
+            level = capacity == 0 ? newCapacity : Math.min(level, newCapacity);
+            capacity = newCapacity;
+        }
+
+        void refill(long now) {
+            level = Math.min(capacity, level + (now - lastRefill) * capacity / NANOS_PER_MINUTE);
+            lastRefill = now;
+        }
+
+        boolean canTake(double amount, double reserve) {
+            return level - amount >= capacity * reserve;
+        }
+
+        long nanosUntil(double amount) {
+            double missing = amount - level;
+            return missing <= 0 ? 0 : (long) Math.ceil(missing * NANOS_PER_MINUTE / capacity);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.harmless004.aicopilot.services;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes provider request bodies in a single pass.
+ * The prompt is escaped and UTF-8 encoded straight from the request's code context into one
+ * byte buffer, which is handed to the HTTP client without copying. Constant parts of the
+ * prompt and the JSON envelopes are encoded once and shared by all requests.
+ */
+final class RequestBodyWriter {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final String PROMPT_HEADER_TEXT =
+            "Complete the following code. Provide only the completion, no explanations:\n\nContext:\n";
+    private static final String PROMPT_LINE_TEXT = "\n\nCurrent line to complete:\n";
+    private static final String PROMPT_FOOTER_TEXT = "\n\nCompletion:";
+
+    // Prompt fragments, already escaped for use inside a JSON string
+    private static final byte[] PROMPT_HEADER = encodeEscaped(PROMPT_HEADER_TEXT);
+    private static final byte[] PROMPT_LINE = encodeEscaped(PROMPT_LINE_TEXT);
+    private static final byte[] PROMPT_FOOTER = encodeEscaped(PROMPT_FOOTER_TEXT);
+
+    // JSON envelope fragments
+    private static final byte[] MODEL_START = encode("{\"model\":\"");
+    private static final byte[] OPENAI_MESSAGES = encode("\",\"messages\":[{\"role\":\"system\",\"content\":"
+            + "\"You are a code completion assistant. Provide clean, accurate code completions without explanations.\"},"
+            + "{\"role\":\"user\",\"content\":\"");
+    private static final byte[] OPENAI_MAX_TOKENS = encode("\"}],\"max_tokens\":");
+    private static final byte[] OPENAI_CHOICES = encode(",\"n\":");
+    private static final byte[] OPENAI_STREAM = encode(",\"temperature\":0.1,\"stream\":");
+    private static final byte[] CLAUDE_MAX_TOKENS = encode("\",\"max_tokens\":");
+    private static final byte[] CLAUDE_STREAM = encode(",\"stream\":");
+    private static final byte[] CLAUDE_MESSAGES = encode(",\"messages\":[{\"role\":\"user\",\"content\":\"");
+    private static final byte[] CLAUDE_END = encode("\"}]}");
+    private static final byte[] TRUE = encode("true");
+    private static final byte[] FALSE = encode("false");
+    private static final byte[] OBJECT_END = encode("}");
+    private static final int ENVELOPE_RESERVE = 512;
+
+    private byte[] buffer;
+    private int size;
+
+    private RequestBodyWriter(int expectedPromptLength) {
+        // Most code is ASCII with few escapes, so this rarely grows
+        buffer = new byte[expectedPromptLength + expectedPromptLength / 8 + ENVELOPE_RESERVE];
+    }
+
+    /**
+     * Body of an OpenAI chat completion request asking for the given number of choices
+     */
+    static HttpRequest.BodyPublisher openAI(@NotNull String model, @NotNull CompletionRequest request,
+                                            int maxTokens, boolean stream, int choices) {
+        RequestBodyWriter writer = new RequestBodyWriter(promptLength(request));
+        writer.write(MODEL_START);
+        writer.writeEscaped(model);
+        writer.write(OPENAI_MESSAGES);
+        writer.writePrompt(request);
+        writer.write(OPENAI_MAX_TOKENS);
+        writer.writeInt(maxTokens);
+        if (choices > 1) {
+            writer.write(OPENAI_CHOICES);
+            writer.writeInt(choices);
+        }
+        writer.write(OPENAI_STREAM);
+        writer.write(stream ? TRUE : FALSE);
+        writer.write(OBJECT_END);
+        return writer.toPublisher();
+    }
+
+    /**
+     * Body of an Anthropic messages request
+     */
+    static HttpRequest.BodyPublisher claude(@NotNull String model, @NotNull CompletionRequest request,
+                                            int maxTokens, boolean stream) {
+        RequestBodyWriter writer = new RequestBodyWriter(promptLength(request));
+        writer.write(MODEL_START);
+        writer.writeEscaped(model);
+        writer.write(CLAUDE_MAX_TOKENS);
+        writer.writeInt(maxTokens);
+        writer.write(CLAUDE_STREAM);
+        writer.write(stream ? TRUE : FALSE);
+        writer.write(CLAUDE_MESSAGES);
+        writer.writePrompt(request);
+        writer.write(CLAUDE_END);
+        return writer.toPublisher();
+    }
+
+    /**
+     * Length in characters of the prompt built for the request
+     */
+    static int promptLength(@NotNull CompletionRequest request) {
+        return PROMPT_HEADER_TEXT.length() + request.getCodeContext().length()
+                + PROMPT_LINE_TEXT.length() + request.getCurrentLine().length()
+                + PROMPT_FOOTER_TEXT.length();
+    }
+
+    private void writePrompt(CompletionRequest request) {
+        write(PROMPT_HEADER);
+        writeEscaped(request.getCodeContext());
+        write(PROMPT_LINE);
+        writeEscaped(request.getCurrentLine());
+        write(PROMPT_FOOTER);
+    }
+
+    private HttpRequest.BodyPublisher toPublisher() {
+        return HttpRequest.BodyPublishers.ofByteArray(buffer, 0, size);
+    }
+
+    private void write(byte[] fragment) {
+        ensureCapacity(fragment.length);
+        System.arraycopy(fragment, 0, buffer, size, fragment.length);
+        size += fragment.length;
+    }
+
+    private void writeInt(int value) {
+        write(Integer.toString(value).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Writes the text as the contents of a JSON string, encoding it as UTF-8 on the fly
+     */
+    private void writeEscaped(CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            ensureCapacity(6); // Longest output for one char is a six-byte control character escape
+
+            if (c >= 0x20 && c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    buffer[size++] = '\\';
+                }
+                buffer[size++] = (byte) c;
+            } else if (c < 0x20) {
+                writeControl(c);
+            } else if (c < 0x800) {
+                buffer[size++] = (byte) (0xC0 | (c >> 6));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer[size++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer[size++] = '?'; // Unpaired surrogate, same replacement as String.getBytes
+            } else {
+                buffer[size++] = (byte) (0xE0 | (c >> 12));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void writeControl(char c) {
+        buffer[size++] = '\\';
+        switch (c) {
+            case '\n' -> buffer[size++] = 'n';
+            case '\r' -> buffer[size++] = 'r';
+            case '\t' -> buffer[size++] = 't';
+            case '\b' -> buffer[size++] = 'b';
+            case '\f' -> buffer[size++] = 'f';
+            default -> {
+                buffer[size++] = 'u';
+                buffer[size++] = '0';
+                buffer[size++] = '0';
+                buffer[size++] = HEX[c >> 4];
+                buffer[size++] = HEX[c & 0xF];
+            }
+        }
+    }
+
+    private void ensureCapacity(int additional) {
+        if (size + additional > buffer.length) {
+            byte[] grown = new byte[Math.max(size + additional, buffer.length + (buffer.length >> 1))];
+            System.arraycopy(buffer, 0, grown, 0, size);
+            buffer = grown;
+        }
+    }
+
+    private static byte[] encode(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encodeEscaped(String text) {
+        RequestBodyWriter writer = new RequestBodyWriter(text.length());
+        writer.writeEscaped(text);
+        byte[] encoded = new byte[writer.size];
+        System.arraycopy(writer.buffer, 0, encoded, 0, writer.size);
+        return encoded;
+    }
+}
@@ -0,0 +1,463 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.openapi.editor.Document;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Brace structure of one document, kept up to date from document changes so that scope queries
+ * do not rescan the file.
+ * <p>
+ * Each line records its net brace change, the lowest depth it reaches, the lexer state at its
+ * end and whether it declares a class or method. A segment tree over the lines answers the
+ * depth at any line and finds the line that opened an enclosing block in logarithmic time.
+ * Edits are only recorded as they happen and applied on the next query: the changed lines are
+ * relexed, plus following lines for as long as an opened or closed comment changes their lexer state.
+ */
+final class ScopeIndex {
+
+    /** Larger documents are not indexed; at about 13 bytes per line this bounds one index to a few MB */
+    static final int MAX_LINES = 200_000;
+
+    private static final byte CODE = 0;
+    private static final byte BLOCK_COMMENT = 1;
+    private static final byte TEXT_BLOCK = 2;
+
+    private static final byte OTHER = 0;
+    private static final byte CLASS = 1;
+    private static final byte METHOD = 2;
+    private static final byte BRACE_ONLY = 3; // An opening brace on its own line belongs to the line before
+
+    private int lineCount;
+    private int[] delta;
+    private int[] minDepth; // Relative to the depth at the start of the line, never positive
+    private byte[] endState;
+    private byte[] kind;
+
+    // Segment tree over lines: brace sum, lowest prefix depth and class declaration count
+    private int treeSize;
+    private int[] treeSum;
+    private int[] treeMin;
+    private int[] treeClasses;
+
+    // Lines changed since the last catch-up, written by the document listener without taking the lock
+    private final AtomicReference<Change> pending = new AtomicReference<>();
+
+    ScopeIndex(@NotNull Document document) {
+        rebuild(document);
+    }
+
+    synchronized int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Records a change that has already been made to the document, to be applied by the next
+     * {@link #catchUp}. Cheap and lock-free, so it can run in the document listener on every keystroke;
+     * changes recorded in between are merged into one range of lines to relex.
+     */
+    void changed(@NotNull Document document, int offset, @NotNull CharSequence oldFragment,
+                 @NotNull CharSequence newFragment) {
+        int startLine = document.getLineNumber(offset);
+        Change change = new Change(startLine, startLine + countLineBreaks(oldFragment),
+                startLine + countLineBreaks(newFragment));
+        pending.accumulateAndGet(change, Change::merge);
+    }
+
+    /**
+     * Makes the next {@link #catchUp} rebuild the whole index, for example after the text was replaced
+     */
+    void invalidate() {
+        pending.set(Change.REBUILD);
+    }
+
+    /**
+     * Applies the changes recorded since the last call. Returns false if the document outgrew
+     * {@link #MAX_LINES} and the index should be dropped.
+     */
+    synchronized boolean catchUp(@NotNull Document document) {
+        Change change = pending.getAndSet(null);
+        if (change == null) {
+            return true;
+        }
+
+        int newLineCount = document.getLineCount();
+        if (newLineCount > MAX_LINES) {
+            return false;
+        }
+        if (change == Change.REBUILD || lineCount + change.addedLines() - change.removedLines() != newLineCount) {
+            rebuild(document); // Out of sync, for example after a bulk update
+            return true;
+        }
+
+        int startLine = change.startLine;
+        int lastChanged = change.newEndLine;
+        if (change.addedLines() != change.removedLines()) {
+            // The old last changed line moves along with the tail, so its end state can still be compared
+            ensureCapacity(newLineCount);
+            int from = change.oldEndLine;
+            int tail = lineCount - from;
+            System.arraycopy(delta, from, delta, lastChanged, tail);
+            System.arraycopy(minDepth, from, minDepth, lastChanged, tail);
+            System.arraycopy(endState, from, endState, lastChanged, tail);
+            System.arraycopy(kind, from, kind, lastChanged, tail);
+            lineCount = newLineCount;
+        }
+
+        CharSequence text = document.getImmutableCharSequence();
+        LineLexer lexer = new LineLexer();
+        int line = startLine;
+        while (line < lineCount) {
+            byte previousEnd = endState[line];
+            lexLine(document, text, line, lexer);
+            line++;
+            if (line > lastChanged && endState[line - 1] == previousEnd) {
+                break;
+            }
+        }
+
+        if (change.addedLines() != change.removedLines() || treeSize < lineCount) {
+            buildTree();
+        } else {
+            for (int changed = startLine; changed < line; changed++) {
+                updateLeaf(changed);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the blocks enclosing the offset: the innermost method and class, the brace depth and
+     * whether the offset lies in a comment
+     */
+    @NotNull
+    synchronized Scope scopeAt(@NotNull Document document, int offset) {
+        if (lineCount == 0) {
+            return new Scope(0, -1, -1, false, false);
+        }
+        offset = Math.max(0, Math.min(offset, document.getTextLength()));
+        int line = Math.min(document.getLineNumber(offset), lineCount - 1);
+        CharSequence text = document.getImmutableCharSequence();
+
+        LineLexer lexer = new LineLexer();
+        lexer.lex(text, document.getLineStartOffset(line), offset, startState(line));
+        int lineStartDepth = prefixSum(line);
+        int depth = lineStartDepth + lexer.depth;
+
+        int methodLine = -1;
+        int classLine = -1;
+        for (int level = depth; level > 0 && (methodLine < 0 || classLine < 0); level--) {
+            // The block at this level was opened on the last line that dipped below it
+            int opening = lineStartDepth + lexer.minDepth < level ? line : findLastBelow(line, level);
+            if (opening < 0) {
+                break;
+            }
+
+            int header = kind[opening] == BRACE_ONLY && opening > 0 ? opening - 1 : opening;
+            if (kind[header] == METHOD && methodLine < 0 && classLine < 0) {
+                methodLine = header;
+            } else if (kind[header] == CLASS && classLine < 0) {
+                classLine = header;
+            }
+        }
+
+        boolean classBefore = classLine >= 0 || classesBefore(line + 1) > 0;
+        return new Scope(depth, methodLine, classLine, classBefore, lexer.inComment());
+    }
+
+    private void rebuild(Document document) {
+        lineCount = document.getLineCount();
+        delta = new int[Math.max(16, lineCount)];
+        minDepth = new int[delta.length];
+        endState = new byte[delta.length];
+        kind = new byte[delta.length];
+
+        CharSequence text = document.getImmutableCharSequence();
+        LineLexer lexer = new LineLexer();
+        for (int line = 0; line < lineCount; line++) {
+            lexLine(document, text, line, lexer);
+        }
+        buildTree();
+    }
+
+    private void lexLine(Document document, CharSequence text, int line, LineLexer lexer) {
+        int start = document.getLineStartOffset(line);
+        int end = document.getLineEndOffset(line);
+        byte state = startState(line);
+        lexer.lex(text, start, end, state);
+
+        delta[line] = lexer.depth;
+        minDepth[line] = lexer.minDepth;
+        endState[line] = lexer.state == TEXT_BLOCK || lexer.state == BLOCK_COMMENT ? lexer.state : CODE;
+        kind[line] = state == CODE ? classify(text, start, end) : OTHER;
+    }
+
+    private static byte classify(CharSequence text, int start, int end) {
+        int trimmedStart = CodeScanner.skipWhitespace(text, start, end);
+        int trimmedEnd = CodeScanner.trimEnd(text, trimmedStart, end);
+        if (trimmedEnd - trimmedStart == 1 && text.charAt(trimmedStart) == '{') {
+            return BRACE_ONLY;
+        }
+
+        CodeScanner.Declaration.Kind declaration = CodeScanner.declarationKind(text, trimmedStart, trimmedEnd);
+        if (declaration == null) {
+            return OTHER;
+        }
+        return declaration == CodeScanner.Declaration.Kind.CLASS ? CLASS : METHOD;
+    }
+
+    private byte startState(int line) {
+        return line > 0 ? endState[line - 1] : CODE;
+    }
+
+    private void ensureCapacity(int lines) {
+        if (lines <= delta.length) {
+            return;
+        }
+        int capacity = Math.max(lines, delta.length + (delta.length >> 1));
+        delta = Arrays.copyOf(delta, capacity);
+        minDepth = Arrays.copyOf(minDepth, capacity);
+        endState = Arrays.copyOf(endState, capacity);
+        kind = Arrays.copyOf(kind, capacity);
+    }
+
+    private void buildTree() {
+        treeSize = Integer.highestOneBit(Math.max(1, lineCount - 1)) << 1;
+        treeSum = new int[2 * treeSize];
+        treeMin = new int[2 * treeSize];
+        treeClasses = new int[2 * treeSize];
+        for (int line = 0; line < lineCount; line++) {
+            setLeaf(line);
+        }
+        for (int node = treeSize - 1; node > 0; node--) {
+            combine(node);
+        }
+    }
+
+    private void updateLeaf(int line) {
+        setLeaf(line);
+        for (int node = (treeSize + line) >> 1; node > 0; node >>= 1) {
+            combine(node);
+        }
+    }
+
+    private void setLeaf(int line) {
+        int leaf = treeSize + line;
+        treeSum[leaf] = delta[line];
+        treeMin[leaf] = minDepth[line];
+        treeClasses[leaf] = kind[line] == CLASS ? 1 : 0;
+    }
+
+    private void combine(int node) {
+        int left = 2 * node;
+        int right = left + 1;
+        treeSum[node] = treeSum[left] + treeSum[right];
+        treeMin[node] = Math.min(treeMin[left], treeSum[left] + treeMin[right]);
+        treeClasses[node] = treeClasses[left] + treeClasses[right];
+    }
+
+    /**
+     * Depth at the start of the line: the brace sum of all lines before it
+     */
+    private int prefixSum(int line) {
+        int sum = 0;
+        for (int lo = treeSize, hi = treeSize + line; lo < hi; lo >>= 1, hi >>= 1) {
+            if ((lo & 1) == 1) {
+                sum += treeSum[lo++];
+            }
+            if ((hi & 1) == 1) {
+                sum += treeSum[--hi];
+            }
+        }
+        return sum;
+    }
+
+    private int classesBefore(int line) {
+        int count = 0;
+        for (int lo = treeSize, hi = treeSize + Math.min(line, lineCount); lo < hi; lo >>= 1, hi >>= 1) {
+            if ((lo & 1) == 1) {
+                count += treeClasses[lo++];
+            }
+            if ((hi & 1) == 1) {
+                count += treeClasses[--hi];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the last line before {@code limit} whose depth drops below {@code level}, or -1
+     */
+    private int findLastBelow(int limit, int level) {
+        return findLastBelow(1, 0, treeSize, 0, limit, level);
+    }
+
+    private int findLastBelow(int node, int lo, int hi, int depthBefore, int limit, int level) {
+        if (lo >= limit || depthBefore + treeMin[node] >= level) {
+            return -1;
+        }
+        if (hi - lo == 1) {
+            return lo;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        int found = findLastBelow(2 * node + 1, mid, hi, depthBefore + treeSum[2 * node], limit, level);
+        return found >= 0 ? found : findLastBelow(2 * node, lo, mid, depthBefore, limit, level);
+    }
+
+    private static int countLineBreaks(CharSequence fragment) {
+        int count = 0;
+        for (int i = 0; i < fragment.length(); i++) {
+            if (fragment.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Lines {@code startLine..oldEndLine} of the indexed text that became {@code startLine..newEndLine}
+     */
+    private static final class Change {
+        static final Change REBUILD = new Change(0, 0, 0);
+
+        final int startLine;
+        final int oldEndLine;
+        final int newEndLine;
+
+        Change(int startLine, int oldEndLine, int newEndLine) {
+            this.startLine = startLine;
+            this.oldEndLine = oldEndLine;
+            this.newEndLine = newEndLine;
+        }
+
+        int removedLines() { return oldEndLine - startLine; }
+
+        int addedLines() { return newEndLine - startLine; }
+
+        /**
+         * One change covering both, given the next one in line numbers of the text after the previous
+         */
+        static Change merge(Change previous, Change next) {
+            if (previous == null) {
+                return next;
+            }
+            if (previous == REBUILD || next == REBUILD) {
+                return REBUILD;
+            }
+            int end = Math.max(previous.newEndLine, next.oldEndLine);
+            return new Change(Math.min(previous.startLine, next.startLine),
+                    end - previous.addedLines() + previous.removedLines(),
+                    end + next.addedLines() - next.removedLines());
+        }
+    }
+
+    /**
+     * Braces and comment state of one line, or of a line up to an offset
+     */
+    private static final class LineLexer {
+        private static final byte LINE_COMMENT = 3;
+        private static final byte STRING = 4;
+
+        int depth;
+        int minDepth;
+        byte state;
+        private char quote;
+
+        void lex(CharSequence text, int start, int end, byte startState) {
+            depth = 0;
+            minDepth = 0;
+            state = startState;
+
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                boolean tripleQuote = c == '"' && i + 2 < end && text.charAt(i + 1) == '"' && text.charAt(i + 2) == '"';
+                char next = i + 1 < end ? text.charAt(i + 1) : 0;
+
+                switch (state) {
+                    case CODE -> {
+                        if (c == '/' && next == '/') {
+                            state = LINE_COMMENT;
+                        } else if (c == '/' && next == '*') {
+                            state = BLOCK_COMMENT;
+                            i++;
+                        } else if (tripleQuote) {
+                            state = TEXT_BLOCK;
+                            i += 2;
+                        } else if (c == '"' || c == '\'' || c == '`') {
+                            state = STRING;
+                            quote = c;
+                        } else if (c == '{') {
+                            depth++;
+                        } else if (c == '}') {
+                            minDepth = Math.min(minDepth, --depth);
+                        }
+                    }
+                    case BLOCK_COMMENT -> {
+                        if (c == '*' && next == '/') {
+                            state = CODE;
+                            i++;
+                        }
+                    }
+                    case STRING -> {
+                        if (c == '\\') {
+                            i++;
+                        } else if (c == quote) {
+                            state = CODE;
+                        }
+                    }
+                    case TEXT_BLOCK -> {
+                        if (c == '\\') {
+                            i++;
+                        } else if (tripleQuote) {
+                            state = CODE;
+                            i += 2;
+                        }
+                    }
+                    default -> {
+                        // Rest of a line comment
+                    }
+                }
+            }
+        }
+
+        boolean inComment() {
+            return state == LINE_COMMENT || state == BLOCK_COMMENT;
+        }
+    }
+
+    /**
+     * Blocks around an offset; lines are -1 when there is no such block
+     */
+    static final class Scope {
+        private final int depth;
+        private final int methodLine;
+        private final int classLine;
+        private final boolean classBefore;
+        private final boolean inComment;
+
+        Scope(int depth, int methodLine, int classLine, boolean classBefore, boolean inComment) {
+            this.depth = depth;
+            this.methodLine = methodLine;
+            this.classLine = classLine;
+            this.classBefore = classBefore;
+            this.inComment = inComment;
+        }
+
+        /** Unclosed braces before the offset */
+        int getDepth() { return depth; }
+
+        /** Declaration line of the innermost enclosing method, inside the innermost class */
+        int getMethodLine() { return methodLine; }
+
+        /** Declaration line of the innermost enclosing class */
+        int getClassLine() { return classLine; }
+
+        /** Whether a class is declared on or before the offset's line, for languages without braces */
+        boolean isClassBefore() { return classBefore; }
+
+        boolean isInComment() { return inComment; }
+    }
+}
@@ -0,0 +1,139 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.editor.event.EditorFactoryEvent;
+import com.intellij.openapi.editor.event.EditorFactoryListener;
+import com.intellij.openapi.util.Key;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps a {@link ScopeIndex} for recently analyzed documents and drops it when the last editor
+ * showing the document is released. Document changes are only recorded on the index, which the
+ * document listener finds through the document's user data without locking; they are applied when
+ * the index is next asked for, off the EDT.
+ * The least recently used indexes are evicted once all indexes together cover too many lines.
+ */
+@Service
+public final class ScopeIndexManager implements Disposable {
+
+    private static final int MAX_TOTAL_LINES = 500_000;
+    private static final Key<ScopeIndex> INDEX_KEY = Key.create("AICopilot.ScopeIndex");
+
+    private final Map<Document, ScopeIndex> indexes = new LinkedHashMap<>(16, 0.75f, true);
+
+    public ScopeIndexManager() {
+        EditorFactory editorFactory = EditorFactory.getInstance();
+
+        editorFactory.getEventMulticaster().addDocumentListener(new DocumentListener() {
+            @Override
+            public void documentChanged(@NotNull DocumentEvent event) {
+                ScopeIndex index = event.getDocument().getUserData(INDEX_KEY);
+                if (index == null) {
+                    return;
+                }
+                if (event.isWholeTextReplaced()) {
+                    index.invalidate();
+                } else {
+                    index.changed(event.getDocument(), event.getOffset(), event.getOldFragment(), event.getNewFragment());
+                }
+            }
+        }, this);
+
+        editorFactory.addEditorFactoryListener(new EditorFactoryListener() {
+            @Override
+            public void editorReleased(@NotNull EditorFactoryEvent event) {
+                Editor released = event.getEditor();
+                Document document = released.getDocument();
+                for (Editor editor : EditorFactory.getInstance().getEditors(document)) {
+                    if (editor != released) {
+                        return;
+                    }
+                }
+                remove(document);
+            }
+        }, this);
+    }
+
+    public static ScopeIndexManager getInstance() {
+        return ApplicationManager.getApplication().getService(ScopeIndexManager.class);
+    }
+
+    /**
+     * Returns the document's index brought up to date, building it on first use, or null if the
+     * document is too large. Must be called in a read action.
+     */
+    @Nullable
+    ScopeIndex get(@NotNull Document document) {
+        ScopeIndex index = document.getUserData(INDEX_KEY);
+        if (index == null) {
+            if (document.getLineCount() > ScopeIndex.MAX_LINES) {
+                return null;
+            }
+            // Built outside the lock so one large document does not hold up queries on others
+            index = add(document, new ScopeIndex(document));
+        } else {
+            touch(document);
+        }
+
+        if (!index.catchUp(document)) {
+            remove(document);
+            return null;
+        }
+        return index;
+    }
+
+    private synchronized ScopeIndex add(Document document, ScopeIndex built) {
+        ScopeIndex index = indexes.get(document);
+        if (index != null) {
+            return index; // Built concurrently by another query
+        }
+        indexes.put(document, built);
+        document.putUserData(INDEX_KEY, built);
+        evictOverflow(built);
+        return built;
+    }
+
+    private synchronized void touch(Document document) {
+        indexes.get(document);
+    }
+
+    private synchronized void remove(Document document) {
+        if (indexes.remove(document) != null) {
+            document.putUserData(INDEX_KEY, null);
+        }
+    }
+
+    private void evictOverflow(ScopeIndex keep) {
+        int totalLines = 0;
+        for (ScopeIndex index : indexes.values()) {
+            totalLines += index.getLineCount();
+        }
+        Iterator<Map.Entry<Document, ScopeIndex>> eldest = indexes.entrySet().iterator();
+        while (totalLines > MAX_TOTAL_LINES && eldest.hasNext()) {
+            Map.Entry<Document, ScopeIndex> entry = eldest.next();
+            if (entry.getValue() != keep) {
+                totalLines -= entry.getValue().getLineCount();
+                entry.getKey().putUserData(INDEX_KEY, null);
+                eldest.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void dispose() {
+        indexes.keySet().forEach(document -> document.putUserData(INDEX_KEY, null));
+        indexes.clear();
+    }
+}
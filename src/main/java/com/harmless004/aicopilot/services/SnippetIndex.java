@@ -0,0 +1,231 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.indexing.DataIndexer;
+import com.intellij.util.indexing.FileBasedIndex;
+import com.intellij.util.indexing.FileBasedIndexExtension;
+import com.intellij.util.indexing.FileContent;
+import com.intellij.util.indexing.ID;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Project-wide index of identifier bigram fingerprints over fixed-size windows of source lines.
+ * <p>
+ * Every file is cut into windows of {@link #WINDOW_LINES} lines, starting every
+ * {@link #WINDOW_STEP} lines. The index maps each hashed pair of consecutive identifiers to the
+ * windows containing it, together with the number of distinct pairs in each window, which is
+ * all {@link SnippetRetriever} needs to rank windows by Jaccard similarity. The platform keeps
+ * the index up to date as files change, re-indexing only the changed files.
+ */
+public final class SnippetIndex extends FileBasedIndexExtension<Integer, int[]> {
+
+    public static final ID<Integer, int[]> NAME = ID.create("com.harmless004.aicopilot.snippets");
+
+    static final int WINDOW_LINES = 12;
+    static final int WINDOW_STEP = WINDOW_LINES / 2;
+
+    private static final int MAX_FILE_LENGTH = 256 * 1024;
+
+    @Override
+    public @NotNull ID<Integer, int[]> getName() {
+        return NAME;
+    }
+
+    @Override
+    public @NotNull DataIndexer<Integer, int[], FileContent> getIndexer() {
+        return content -> index(content.getContentAsText());
+    }
+
+    @Override
+    public @NotNull KeyDescriptor<Integer> getKeyDescriptor() {
+        return EnumeratorIntegerDescriptor.INSTANCE;
+    }
+
+    @Override
+    public @NotNull DataExternalizer<int[]> getValueExternalizer() {
+        return new DataExternalizer<>() {
+            @Override
+            public void save(@NotNull DataOutput out, int[] value) throws IOException {
+                DataInputOutputUtil.writeINT(out, value.length);
+                for (int entry : value) {
+                    DataInputOutputUtil.writeINT(out, entry);
+                }
+            }
+
+            @Override
+            public int[] read(@NotNull DataInput in) throws IOException {
+                int[] value = new int[DataInputOutputUtil.readINT(in)];
+                for (int i = 0; i < value.length; i++) {
+                    value[i] = DataInputOutputUtil.readINT(in);
+                }
+                return value;
+            }
+        };
+    }
+
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+    @Override
+    public @NotNull FileBasedIndex.InputFilter getInputFilter() {
+        return SnippetIndex::isIndexable;
+    }
+
+    @Override
+    public boolean dependsOnFileContent() {
+        return true;
+    }
+
+    static boolean isIndexable(@NotNull VirtualFile file) {
+        return !file.isDirectory() && !file.getFileType().isBinary() && file.getLength() <= MAX_FILE_LENGTH;
+    }
+
+    /**
+     * Maps each fingerprint to pairs of window number and that window's fingerprint count
+     */
+    static Map<Integer, int[]> index(@NotNull CharSequence text) {
+        Map<Integer, int[]> postings = new HashMap<>();
+        int[] lineStarts = lineStarts(text);
+
+        for (int window = 0, line = 0; line < lineStarts.length; window++, line += WINDOW_STEP) {
+            int end = line + WINDOW_LINES < lineStarts.length ? lineStarts[line + WINDOW_LINES] : text.length();
+            int[] fingerprints = fingerprints(text, lineStarts[line], end);
+            for (int fingerprint : fingerprints) {
+                int[] entries = postings.get(fingerprint);
+                // The first slot holds the number of ints in use
+                if (entries == null) {
+                    entries = new int[5];
+                    entries[0] = 1;
+                } else if (entries[0] + 2 > entries.length) {
+                    entries = Arrays.copyOf(entries, entries.length * 2 + 1);
+                }
+                entries[entries[0]++] = window;
+                entries[entries[0]++] = fingerprints.length;
+                postings.put(fingerprint, entries);
+            }
+            if (line + WINDOW_LINES >= lineStarts.length) {
+                break;
+            }
+        }
+
+        postings.replaceAll((fingerprint, entries) -> Arrays.copyOfRange(entries, 1, entries[0]));
+        return postings;
+    }
+
+    /**
+     * Distinct hashes of consecutive identifier pairs in the range, in order of first appearance
+     */
+    static int[] fingerprints(@NotNull CharSequence text, int start, int end) {
+        int[] result = new int[16];
+        int count = 0;
+        int previous = 0;
+        boolean hasPrevious = false;
+
+        int i = start;
+        while (i < end) {
+            char c = text.charAt(i);
+            if (!Character.isJavaIdentifierStart(c)) {
+                i++;
+                continue;
+            }
+
+            int hash = 0;
+            while (i < end && Character.isJavaIdentifierPart(text.charAt(i))) {
+                hash = 31 * hash + text.charAt(i++);
+            }
+            if (hasPrevious) {
+                int fingerprint = mix(previous * 0x9E3779B9 + hash);
+                if (indexOf(result, count, fingerprint) < 0) {
+                    if (count == result.length) {
+                        result = Arrays.copyOf(result, count * 2);
+                    }
+                    result[count++] = fingerprint;
+                }
+            }
+            previous = hash;
+            hasPrevious = true;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Sorted distinct hashes of the identifiers in the range
+     */
+    static int[] identifiers(@NotNull CharSequence text, int start, int end) {
+        int[] result = new int[32];
+        int count = 0;
+
+        int i = start;
+        while (i < end) {
+            if (!Character.isJavaIdentifierStart(text.charAt(i))) {
+                i++;
+                continue;
+            }
+
+            int hash = 0;
+            while (i < end && Character.isJavaIdentifierPart(text.charAt(i))) {
+                hash = 31 * hash + text.charAt(i++);
+            }
+            if (count == result.length) {
+                result = Arrays.copyOf(result, count * 2);
+            }
+            result[count++] = mix(hash);
+        }
+
+        Arrays.sort(result, 0, count);
+        int distinct = 0;
+        for (int j = 0; j < count; j++) {
+            if (distinct == 0 || result[j] != result[distinct - 1]) {
+                result[distinct++] = result[j];
+            }
+        }
+        return Arrays.copyOf(result, distinct);
+    }
+
+    /**
+     * Offsets at which each line of the text starts
+     */
+    static int[] lineStarts(@NotNull CharSequence text) {
+        int[] starts = new int[64];
+        int count = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = i + 1;
+            }
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    private static int indexOf(int[] values, int count, int value) {
+        // Windows hold around a hundred pairs at most, so a linear scan is cheaper than hashing
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+}
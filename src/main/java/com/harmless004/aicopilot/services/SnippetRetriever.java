@@ -0,0 +1,188 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.IndexNotReadyException;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.indexing.FileBasedIndex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds code elsewhere in the project that resembles the code before the cursor, using
+ * {@link SnippetIndex}.
+ * <p>
+ * The query is the window of lines ending at the cursor. Only its fingerprints nearest the
+ * cursor are looked up, and fingerprints found in too many files are skipped as noise, which
+ * keeps a lookup to a bounded number of postings however large the project is. Windows are
+ * ranked by Jaccard similarity of their fingerprint sets, keeping the best window per file.
+ */
+final class SnippetRetriever {
+
+    private static final Logger LOG = Logger.getInstance(SnippetRetriever.class);
+
+    private static final int MAX_QUERY_FINGERPRINTS = 48;
+    private static final int MAX_FILES_PER_FINGERPRINT = 200;
+    private static final double MIN_SIMILARITY = 0.15;
+
+    private SnippetRetriever() {
+    }
+
+    /**
+     * Returns up to {@code limit} snippets from other files, most similar first. Must be called
+     * in a read action.
+     */
+    @NotNull
+    static List<Snippet> findSimilar(@NotNull Project project, @Nullable VirtualFile currentFile,
+                                     @NotNull Document document, int offset, int limit) {
+        if (limit <= 0 || DumbService.isDumb(project)) {
+            return List.of();
+        }
+
+        int cursorLine = document.getLineNumber(offset);
+        int queryStart = document.getLineStartOffset(Math.max(0, cursorLine - SnippetIndex.WINDOW_LINES + 1));
+        int[] query = SnippetIndex.fingerprints(document.getImmutableCharSequence(), queryStart, offset);
+        if (query.length == 0) {
+            return List.of();
+        }
+        if (query.length > MAX_QUERY_FINGERPRINTS) {
+            query = Arrays.copyOfRange(query, query.length - MAX_QUERY_FINGERPRINTS, query.length);
+        }
+
+        try {
+            Map<VirtualFile, Map<Integer, int[]>> hits = collectHits(project, currentFile, query);
+            return load(rank(hits, query.length, limit));
+        } catch (IndexNotReadyException e) {
+            return List.of();
+        } catch (RuntimeException e) {
+            LOG.warn("Snippet lookup failed", e);
+            return List.of();
+        }
+    }
+
+    /**
+     * Counts, per file and window, how many query fingerprints the window shares, alongside the
+     * window's own fingerprint count
+     */
+    private static Map<VirtualFile, Map<Integer, int[]>> collectHits(Project project, VirtualFile currentFile,
+                                                                       int[] query) {
+        FileBasedIndex index = FileBasedIndex.getInstance();
+        GlobalSearchScope scope = GlobalSearchScope.projectScope(project);
+        Map<VirtualFile, Map<Integer, int[]>> hits = new HashMap<>();
+
+        for (int fingerprint : query) {
+            List<VirtualFile> files = new ArrayList<>();
+            List<int[]> postings = new ArrayList<>();
+            boolean selective = index.processValues(SnippetIndex.NAME, fingerprint, null, (file, entries) -> {
+                if (!file.equals(currentFile)) {
+                    files.add(file);
+                    postings.add(entries);
+                }
+                return files.size() <= MAX_FILES_PER_FINGERPRINT;
+            }, scope);
+            if (!selective) {
+                continue; // Common boilerplate such as "public static" says nothing about similarity
+            }
+
+            for (int i = 0; i < files.size(); i++) {
+                Map<Integer, int[]> windows = hits.computeIfAbsent(files.get(i), file -> new HashMap<>());
+                int[] entries = postings.get(i);
+                for (int j = 0; j + 1 < entries.length; j += 2) {
+                    int size = entries[j + 1];
+                    windows.computeIfAbsent(entries[j], window -> new int[]{0, size})[0]++;
+                }
+            }
+        }
+        return hits;
+    }
+
+    private static List<Match> rank(Map<VirtualFile, Map<Integer, int[]>> hits, int querySize, int limit) {
+        List<Match> matches = new ArrayList<>();
+        hits.forEach((file, windows) -> {
+            Match best = null;
+            for (Map.Entry<Integer, int[]> window : windows.entrySet()) {
+                int shared = window.getValue()[0];
+                double similarity = (double) shared / (querySize + window.getValue()[1] - shared);
+                if (similarity >= MIN_SIMILARITY && (best == null || similarity > best.similarity)) {
+                    best = new Match(file, window.getKey(), similarity);
+                }
+            }
+            if (best != null) {
+                matches.add(best);
+            }
+        });
+
+        matches.sort(Comparator.comparingDouble((Match match) -> match.similarity).reversed());
+        return matches.subList(0, Math.min(limit, matches.size()));
+    }
+
+    private static List<Snippet> load(List<Match> matches) {
+        List<Snippet> snippets = new ArrayList<>(matches.size());
+        for (Match match : matches) {
+            Document document = match.file.isValid() ? FileDocumentManager.getInstance().getDocument(match.file) : null;
+            int startLine = match.window * SnippetIndex.WINDOW_STEP;
+            if (document == null || startLine >= document.getLineCount()) {
+                continue; // Gone or shrunk since it was indexed
+            }
+
+            int endLine = Math.min(document.getLineCount(), startLine + SnippetIndex.WINDOW_LINES) - 1;
+            String text = document.getText(new TextRange(document.getLineStartOffset(startLine),
+                    document.getLineEndOffset(endLine)));
+            snippets.add(new Snippet(match.file, startLine, text, match.similarity));
+        }
+        return snippets;
+    }
+
+    private static final class Match {
+        final VirtualFile file;
+        final int window;
+        final double similarity;
+
+        Match(VirtualFile file, int window, double similarity) {
+            this.file = file;
+            this.window = window;
+            this.similarity = similarity;
+        }
+    }
+
+    /**
+     * Lines of another file that resemble the code before the cursor
+     */
+    static final class Snippet {
+        private final VirtualFile file;
+        private final int startLine;
+        private final String text;
+        private final double similarity;
+
+        Snippet(VirtualFile file, int startLine, String text, double similarity) {
+            this.file = file;
+            this.startLine = startLine;
+            this.text = text;
+            this.similarity = similarity;
+        }
+
+        VirtualFile getFile() { return file; }
+
+        String getFileName() { return file.getName(); }
+
+        /** Zero-based line of the file the snippet starts at */
+        int getStartLine() { return startLine; }
+
+        String getText() { return text; }
+
+        /** Jaccard similarity of the snippet's identifier pairs to the query's, between 0 and 1 */
+        double getSimilarity() { return similarity; }
+    }
+}
@@ -0,0 +1,110 @@
+package com.harmless004.aicopilot.services;
+
+import com.harmless004.aicopilot.settings.AICopilotSettings;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests the next completion in the background as soon as a suggestion is accepted, so that
+ * it is already cached or in flight when the user triggers completion again.
+ * <p>
+ * Spending is capped: prefetches run at {@link CompletionRequest.Priority#SPECULATIVE}, the first
+ * priority to be shed by the scheduler and the rate limiter, only while no other request is
+ * queued, and at most {@code maxSpeculativeRequestsPerMinute} times a minute.
+ */
+@Service
+public final class SpeculativePrefetcher {
+
+    private static final Logger LOG = Logger.getInstance(SpeculativePrefetcher.class);
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final CodeContextAnalyzer contextAnalyzer = new CodeContextAnalyzer();
+    private final Deque<Long> recentPrefetches = new ArrayDeque<>();
+
+    public static SpeculativePrefetcher getInstance() {
+        return ApplicationManager.getApplication().getService(SpeculativePrefetcher.class);
+    }
+
+    /**
+     * Prefetches the completion at the caret. Call on the EDT once the accepted suggestion is in
+     * the document and the caret sits after it.
+     */
+    public void onSuggestionAccepted(@NotNull Project project, @NotNull Editor editor) {
+        AICopilotSettings settings = AICopilotSettings.getInstance();
+        AIService aiService = ApplicationManager.getApplication().getService(AIService.class);
+        if (settings == null || !settings.isEnableSpeculativePrefetch() || !aiService.isAvailable()) {
+            return;
+        }
+
+        // The context is built from PSI as well, so it must match the document a later trigger sees
+        Document document = editor.getDocument();
+        PsiDocumentManager psiDocumentManager = PsiDocumentManager.getInstance(project);
+        psiDocumentManager.commitDocument(document);
+        PsiFile file = psiDocumentManager.getPsiFile(document);
+        if (file == null) {
+            return;
+        }
+
+        int offset = editor.getCaretModel().getOffset();
+        long modificationStamp = document.getModificationStamp();
+
+        ApplicationManager.getApplication().executeOnPooledThread(() -> ApplicationManager.getApplication().runReadAction(() -> {
+            // Once the user has typed on, their own next trigger is the better request
+            if (editor.isDisposed() || document.getModificationStamp() != modificationStamp) {
+                return;
+            }
+
+            if (aiService.getQueueDepth() > 0 || !tryAcquire(settings.getMaxSpeculativeRequestsPerMinute())) {
+                aiService.getMetrics().recordSpeculativeDenied();
+                return;
+            }
+
+            // No editor: the next keystroke's own request must not supersede the prefetch, nor the other way round
+            CompletionRequest request = new CompletionRequest(contextAnalyzer.extractContext(file, editor, offset),
+                    getCurrentLine(document, offset))
+                    .withLinePrefix(contextAnalyzer.extractStableContextKey(editor, offset), getLinePrefix(document, offset))
+                    .withPriority(CompletionRequest.Priority.SPECULATIVE);
+
+            aiService.getMetrics().recordSpeculative();
+            LOG.info("Prefetching completion after accepted suggestion");
+            aiService.getCompletion(request); // Result lands in the response and prefix caches
+        }));
+    }
+
+    /**
+     * Takes a slot from the sliding one-minute window, or returns false if all are used
+     */
+    private synchronized boolean tryAcquire(int maxPerMinute) {
+        long now = System.nanoTime();
+        while (!recentPrefetches.isEmpty() && now - recentPrefetches.peekFirst() > WINDOW_NANOS) {
+            recentPrefetches.removeFirst();
+        }
+
+        if (recentPrefetches.size() >= maxPerMinute) {
+            return false;
+        }
+        recentPrefetches.addLast(now);
+        return true;
+    }
+
+    private static String getCurrentLine(Document document, int offset) {
+        int lineNumber = document.getLineNumber(offset);
+        return document.getText(new TextRange(document.getLineStartOffset(lineNumber), document.getLineEndOffset(lineNumber)));
+    }
+
+    private static String getLinePrefix(Document document, int offset) {
+        return document.getText(new TextRange(document.getLineStartOffset(document.getLineNumber(offset)), offset));
+    }
+}
@@ -0,0 +1,44 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.openapi.extensions.ExtensionPointName;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Describes the declarations enclosing the cursor for one language, such as the class and
+ * method the user is typing in.
+ * <p>
+ * Analyzers are contributed through the {@code com.harmless004.aicopilot.structureAnalyzer}
+ * extension point; the first one that accepts a file is used, and
+ * {@link GenericStructureAnalyzer} handles languages nobody else knows.
+ */
+public interface StructureAnalyzer {
+
+    ExtensionPointName<StructureAnalyzer> EP_NAME =
+            ExtensionPointName.create("com.harmless004.aicopilot.structureAnalyzer");
+
+    boolean accepts(@NotNull PsiFile file);
+
+    /**
+     * Returns a one-line description such as {@code Method: void run()} if the element is a
+     * declaration worth showing, or null. Called for every ancestor of the cursor, so it should
+     * not materialize the text of large elements.
+     */
+    @Nullable
+    String describe(@NotNull PsiElement element);
+
+    /**
+     * Returns the analyzer for the file's language, falling back to the generic one
+     */
+    @NotNull
+    static StructureAnalyzer forFile(@NotNull PsiFile file) {
+        for (StructureAnalyzer analyzer : EP_NAME.getExtensionList()) {
+            if (analyzer.accepts(file)) {
+                return analyzer;
+            }
+        }
+        return GenericStructureAnalyzer.INSTANCE;
+    }
+}
@@ -0,0 +1,214 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.psi.PsiCallExpression;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiClassType;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiExpression;
+import com.intellij.psi.PsiField;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiJavaFile;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.PsiModifier;
+import com.intellij.psi.PsiParameter;
+import com.intellij.psi.PsiReferenceExpression;
+import com.intellij.psi.PsiStatement;
+import com.intellij.psi.PsiType;
+import com.intellij.psi.PsiTypeParameter;
+import com.intellij.psi.PsiVariable;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.psi.util.PsiTreeUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+
+/**
+ * Describes the types used around the caret as compact member signatures, so the model can
+ * see the API of {@code foo} after {@code foo.} or of the method being called.
+ * <p>
+ * The types come from PSI: the qualifier before the caret, the class of the enclosing call's
+ * method and its parameter types, and the declared types of variables in the current
+ * statement. Each class's signatures are cached on the class itself until the next PSI
+ * change, so repeated completions against the same types are a lookup.
+ */
+final class SymbolSignatures {
+
+    private static final int MAX_TYPES = 3;
+    private static final int MAX_MEMBERS = 24;
+
+    private SymbolSignatures() {
+    }
+
+    /**
+     * Returns signature lines of the types referenced near the offset, or nothing outside Java files
+     */
+    @NotNull
+    static List<String> describeReferencedTypes(@NotNull PsiFile file, int offset) {
+        if (!(file instanceof PsiJavaFile) || offset <= 0) {
+            return List.of();
+        }
+
+        try {
+            Set<PsiClass> classes = findReferencedClasses(file, offset);
+            List<String> lines = new ArrayList<>();
+            for (PsiClass psiClass : classes) {
+                lines.addAll(getSignatures(psiClass));
+            }
+            return lines;
+        } catch (ProcessCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            return List.of(); // Incomplete code can trip up resolution; the context works without it
+        }
+    }
+
+    private static Set<PsiClass> findReferencedClasses(PsiFile file, int offset) {
+        Set<PsiClass> classes = new LinkedHashSet<>();
+        PsiElement leaf = file.findElementAt(offset - 1);
+        if (leaf == null) {
+            return classes;
+        }
+
+        // The qualifier of "foo." or "foo.ba" before the caret
+        PsiReferenceExpression reference = PsiTreeUtil.getParentOfType(leaf, PsiReferenceExpression.class, false);
+        if (reference != null) {
+            addQualifierClass(reference.getQualifierExpression(), file, classes);
+        }
+
+        // The method being called and the types it takes
+        PsiCallExpression call = PsiTreeUtil.getParentOfType(leaf, PsiCallExpression.class);
+        PsiMethod method = call != null ? call.resolveMethod() : null;
+        if (method != null) {
+            addClass(method.getContainingClass(), file, classes);
+            for (PsiParameter parameter : method.getParameterList().getParameters()) {
+                addClass(resolveClass(parameter.getType()), file, classes);
+            }
+        }
+
+        // Variables used in the current statement
+        PsiStatement statement = PsiTreeUtil.getParentOfType(leaf, PsiStatement.class);
+        if (statement != null) {
+            for (PsiReferenceExpression used : PsiTreeUtil.findChildrenOfType(statement, PsiReferenceExpression.class)) {
+                if (classes.size() >= MAX_TYPES) {
+                    break;
+                }
+                if (used.resolve() instanceof PsiVariable variable) {
+                    addClass(resolveClass(variable.getType()), file, classes);
+                }
+            }
+        }
+        return classes;
+    }
+
+    private static void addQualifierClass(@Nullable PsiExpression qualifier, PsiFile file, Set<PsiClass> classes) {
+        if (qualifier == null) {
+            return;
+        }
+        // A class name qualifies a static access; anything else is an expression with a type
+        if (qualifier instanceof PsiReferenceExpression reference && reference.resolve() instanceof PsiClass psiClass) {
+            addClass(psiClass, file, classes);
+        } else {
+            addClass(resolveClass(qualifier.getType()), file, classes);
+        }
+    }
+
+    private static void addClass(@Nullable PsiClass psiClass, PsiFile file, Set<PsiClass> classes) {
+        if (psiClass == null || psiClass instanceof PsiTypeParameter || classes.size() >= MAX_TYPES) {
+            return;
+        }
+        String qualifiedName = psiClass.getQualifiedName();
+        // The model knows java.lang by heart, and the current file is already in the context
+        if (qualifiedName == null || qualifiedName.startsWith("java.lang.") || psiClass.getContainingFile() == file) {
+            return;
+        }
+        classes.add(psiClass);
+    }
+
+    @Nullable
+    private static PsiClass resolveClass(@Nullable PsiType type) {
+        return type instanceof PsiClassType classType ? classType.resolve() : null;
+    }
+
+    private static List<String> getSignatures(PsiClass psiClass) {
+        return CachedValuesManager.getCachedValue(psiClass, () -> CachedValueProvider.Result.create(
+                describe(psiClass), PsiModificationTracker.getInstance(psiClass.getProject())));
+    }
+
+    /**
+     * Renders the class header and its non-private members, methods first
+     */
+    private static List<String> describe(PsiClass psiClass) {
+        List<String> lines = new ArrayList<>();
+        lines.add(describeHeader(psiClass));
+
+        for (PsiMethod method : psiClass.getMethods()) {
+            if (lines.size() > MAX_MEMBERS) {
+                break;
+            }
+            if (!method.hasModifierProperty(PsiModifier.PRIVATE)) {
+                lines.add("  " + describeMethod(method));
+            }
+        }
+        for (PsiField field : psiClass.getFields()) {
+            if (lines.size() > MAX_MEMBERS) {
+                break;
+            }
+            if (!field.hasModifierProperty(PsiModifier.PRIVATE)) {
+                String modifiers = field.hasModifierProperty(PsiModifier.STATIC) ? "static " : "";
+                lines.add("  " + modifiers + field.getType().getPresentableText() + " " + field.getName());
+            }
+        }
+        return List.copyOf(lines);
+    }
+
+    /**
+     * Renders a class as its kind, name and supertypes, such as {@code class Foo extends Bar}
+     */
+    static String describeHeader(@NotNull PsiClass psiClass) {
+        String kind = psiClass.isInterface() ? "interface" : psiClass.isEnum() ? "enum" : "class";
+        StringBuilder header = new StringBuilder(kind).append(' ').append(psiClass.getName());
+        appendTypes(header, " extends ", psiClass.getExtendsListTypes());
+        appendTypes(header, " implements ", psiClass.getImplementsListTypes());
+        return header.toString();
+    }
+
+    private static void appendTypes(StringBuilder header, String keyword, PsiClassType[] types) {
+        if (types.length == 0) {
+            return;
+        }
+        StringJoiner names = new StringJoiner(", ", keyword, "");
+        for (PsiClassType type : types) {
+            names.add(type.getPresentableText());
+        }
+        header.append(names);
+    }
+
+    /**
+     * Renders a method as its return type, name and parameters, without reading its body
+     */
+    static String describeMethod(@NotNull PsiMethod method) {
+        StringBuilder signature = new StringBuilder();
+        if (method.hasModifierProperty(PsiModifier.STATIC)) {
+            signature.append("static ");
+        }
+        PsiType returnType = method.getReturnType();
+        if (returnType != null) {
+            signature.append(returnType.getPresentableText()).append(' ');
+        }
+        signature.append(method.getName());
+
+        StringJoiner parameters = new StringJoiner(", ", "(", ")");
+        for (PsiParameter parameter : method.getParameterList().getParameters()) {
+            parameters.add(parameter.getType().getPresentableText() + " " + parameter.getName());
+        }
+        return signature.append(parameters).toString();
+    }
+}
@@ -0,0 +1,125 @@
+package com.harmless004.aicopilot.services;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Estimates how many tokens byte-pair encoders such as cl100k make of code, without shipping
+ * their merge tables.
+ * <p>
+ * Text is split into pieces that approximate the encoder's pre-tokenizer (words with one leading
+ * character, digit groups of up to three, punctuation runs, whitespace runs), and each piece
+ * is charged what the merges typically leave of it: one token per camel-case word part plus
+ * one for every further eight letters, one per punctuation pair and one per indentation run.
+ * The split differs from the real one in places, for example for non-Latin scripts and unusual
+ * Unicode punctuation, so counts are estimates that err on the high side for typical code.
+ */
+final class TokenCounter {
+
+    private static final int LETTERS_PER_TOKEN = 8;
+    private static final int DIGITS_PER_TOKEN = 3;
+    private static final int PUNCTUATION_PER_TOKEN = 2;
+    private static final int SPACES_PER_TOKEN = 16;
+
+    private TokenCounter() {
+    }
+
+    static int count(@NotNull CharSequence text) {
+        int tokens = 0;
+        int length = text.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = text.charAt(i);
+            int next = i + 1 < length ? text.charAt(i + 1) : -1;
+
+            int contraction = c == '\'' ? contractionLength(text, i + 1, length) : 0;
+            if (contraction > 0) {
+                i += 1 + contraction;
+                tokens++;
+            } else if (Character.isLetter(c) || !isLineBreak(c) && !Character.isLetterOrDigit(c)
+                    && next >= 0 && Character.isLetter(next)) {
+                // A word, absorbing one leading non-letter such as a space or underscore
+                int end = i + 1;
+                while (end < length && Character.isLetter(text.charAt(end))) {
+                    end++;
+                }
+                tokens += countWord(text, Character.isLetter(c) ? i : i + 1, end);
+                i = end;
+            } else if (Character.isDigit(c)) {
+                int end = i + 1;
+                while (end < length && Character.isDigit(text.charAt(end))) {
+                    end++;
+                }
+                tokens += (end - i + DIGITS_PER_TOKEN - 1) / DIGITS_PER_TOKEN;
+                i = end;
+            } else if (Character.isWhitespace(c)) {
+                int end = i;
+                boolean lineBreak = false;
+                while (end < length && Character.isWhitespace(text.charAt(end))) {
+                    lineBreak |= isLineBreak(text.charAt(end));
+                    end++;
+                }
+                // A single space before punctuation is merged into the punctuation piece
+                if (end - i == 1 && c == ' ' && end < length && isPunctuation(text.charAt(end))) {
+                    i = end;
+                    continue;
+                }
+                tokens += lineBreak ? 1 + (end - i) / SPACES_PER_TOKEN : (end - i + SPACES_PER_TOKEN - 1) / SPACES_PER_TOKEN;
+                i = end;
+            } else {
+                int end = i + 1;
+                while (end < length && isPunctuation(text.charAt(end))) {
+                    end++;
+                }
+                tokens += (end - i + PUNCTUATION_PER_TOKEN - 1) / PUNCTUATION_PER_TOKEN;
+                i = end;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Charges one token per camel-case part plus one for every further {@link #LETTERS_PER_TOKEN} letters
+     */
+    private static int countWord(CharSequence text, int start, int end) {
+        int tokens = 0;
+        int partStart = start;
+        for (int i = start + 1; i <= end; i++) {
+            boolean boundary = i == end
+                    || Character.isUpperCase(text.charAt(i)) && Character.isLowerCase(text.charAt(i - 1));
+            if (boundary) {
+                tokens += 1 + (i - partStart - 1) / LETTERS_PER_TOKEN;
+                partStart = i;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Length of an English contraction suffix such as 's or 'll starting at i, or 0
+     */
+    private static int contractionLength(CharSequence text, int i, int length) {
+        if (i + 1 < length) {
+            char a = Character.toLowerCase(text.charAt(i));
+            char b = Character.toLowerCase(text.charAt(i + 1));
+            if (a == 'l' && b == 'l' || a == 'v' && b == 'e' || a == 'r' && b == 'e') {
+                return 2;
+            }
+        }
+        if (i < length) {
+            char c = Character.toLowerCase(text.charAt(i));
+            if (c == 's' || c == 'd' || c == 'm' || c == 't') {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean isPunctuation(char c) {
+        return !Character.isLetterOrDigit(c) && !Character.isWhitespace(c);
+    }
+
+    private static boolean isLineBreak(char c) {
+        return c == '\n' || c == '\r';
+    }
+}
@@ -7,10 +7,14 @@ import com.intellij.openapi.components.Service;
 import com.intellij.openapi.components.State;
 import com.intellij.openapi.components.Storage;
 import com.intellij.util.xmlb.XmlSerializerUtil;
-import com.harmless004.aicopilot.services.AIService;
+import com.harmless004.aicopilot.services.ClaudeBackend;
+import com.harmless004.aicopilot.services.LocalCompletionBackend;
+import com.harmless004.aicopilot.services.OpenAIBackend;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Locale;
+
 /**
  * Persistent settings for the AI Copilot plugin
  */
@@ -22,9 +26,16 @@ import org.jetbrains.annotations.Nullable;
 public final class AICopilotSettings implements PersistentStateComponent<AICopilotSettings> {
 
     // AI Provider Settings
-    public AIService.AIProvider aiProvider = AIService.AIProvider.OPENAI;
+    public String aiProvider = OpenAIBackend.ID; // completion backend id
     public String openAIApiKey = "";
     public String claudeApiKey = "";
+    public String openAIBaseUrl = "https://api.openai.com/v1";
+    public String openAIModel = "gpt-4";
+    public String claudeBaseUrl = "https://api.anthropic.com/v1";
+    public String claudeModel = "claude-3-sonnet-20240229";
+    public boolean enableLocalBackend = false;
+    public String localBaseUrl = "http://localhost:11434/v1"; // any OpenAI-compatible server
+    public String localModel = "qwen2.5-coder:1.5b";
 
     // Completion Settings
     public boolean enableAutoCompletion = true;
@@ -32,6 +43,10 @@ public final class AICopilotSettings implements PersistentStateComponent<AICopil
     public boolean enableCodeCompletion = true;
     public int completionDelay = 300; // milliseconds
     public int maxCompletionLength = 150; // tokens
+    public boolean enableStreaming = true;
+    public int maxCandidates = 3; // alternatives offered per popup completion, 1 for a single suggestion
+    public boolean enableSpeculativePrefetch = true;
+    public int maxSpeculativeRequestsPerMinute = 6;
 
     // UI Settings
     public boolean showInlinePreview = true;
@@ -40,8 +55,15 @@ public final class AICopilotSettings implements PersistentStateComponent<AICopil
 
     // Performance Settings
     public boolean enableCaching = true;
-    public int cacheSize = 100;
+    public int cacheSize = 100; // entries, each budgeted at 2 KB
+    public int cacheTtlMinutes = 30;
+    public boolean enablePersistentCache = true;
+    public int persistentCacheSizeMb = 16;
     public int requestTimeout = 5000; // milliseconds
+    public boolean enableHedging = false;
+    public int hedgeBudgetPercent = 10; // hedged requests per 100 primary requests, at most 100
+    public int maxRequestsPerMinute = 60; // per provider, lowered further by provider rate limit headers
+    public int maxTokensPerMinute = 40000; // per provider, prompt plus completion tokens
 
     // Privacy Settings
     public boolean sendFileContext = true;
@@ -64,11 +86,11 @@ public final class AICopilotSettings implements PersistentStateComponent<AICopil
     }
 
     // Getters and setters
-    public AIService.AIProvider getAIProvider() {
+    public String getAIProvider() {
         return aiProvider;
     }
 
-    public void setAIProvider(AIService.AIProvider aiProvider) {
+    public void setAIProvider(String aiProvider) {
         this.aiProvider = aiProvider;
     }
 
@@ -88,6 +110,62 @@ public final class AICopilotSettings implements PersistentStateComponent<AICopil
         this.claudeApiKey = claudeApiKey;
     }
 
+    public String getOpenAIBaseUrl() {
+        return openAIBaseUrl;
+    }
+
+    public void setOpenAIBaseUrl(String openAIBaseUrl) {
+        this.openAIBaseUrl = openAIBaseUrl;
+    }
+
+    public String getOpenAIModel() {
+        return openAIModel;
+    }
+
+    public void setOpenAIModel(String openAIModel) {
+        this.openAIModel = openAIModel;
+    }
+
+    public String getClaudeBaseUrl() {
+        return claudeBaseUrl;
+    }
+
+    public void setClaudeBaseUrl(String claudeBaseUrl) {
+        this.claudeBaseUrl = claudeBaseUrl;
+    }
+
+    public String getClaudeModel() {
+        return claudeModel;
+    }
+
+    public void setClaudeModel(String claudeModel) {
+        this.claudeModel = claudeModel;
+    }
+
+    public boolean isEnableLocalBackend() {
+        return enableLocalBackend;
+    }
+
+    public void setEnableLocalBackend(boolean enableLocalBackend) {
+        this.enableLocalBackend = enableLocalBackend;
+    }
+
+    public String getLocalBaseUrl() {
+        return localBaseUrl;
+    }
+
+    public void setLocalBaseUrl(String localBaseUrl) {
+        this.localBaseUrl = localBaseUrl;
+    }
+
+    public String getLocalModel() {
+        return localModel;
+    }
+
+    public void setLocalModel(String localModel) {
+        this.localModel = localModel;
+    }
+
     public boolean isEnableAutoCompletion() {
         return enableAutoCompletion;
     }
@@ -128,6 +206,38 @@ public final class AICopilotSettings implements PersistentStateComponent<AICopil
         this.maxCompletionLength = maxCompletionLength;
     }
 
+    public boolean isEnableStreaming() {
+        return enableStreaming;
+    }
+
+    public void setEnableStreaming(boolean enableStreaming) {
+        this.enableStreaming = enableStreaming;
+    }
+
+    public int getMaxCandidates() {
+        return maxCandidates;
+    }
+
+    public void setMaxCandidates(int maxCandidates) {
+        this.maxCandidates = maxCandidates;
+    }
+
+    public boolean isEnableSpeculativePrefetch() {
+        return enableSpeculativePrefetch;
+    }
+
+    public void setEnableSpeculativePrefetch(boolean enableSpeculativePrefetch) {
+        this.enableSpeculativePrefetch = enableSpeculativePrefetch;
+    }
+
+    public int getMaxSpeculativeRequestsPerMinute() {
+        return maxSpeculativeRequestsPerMinute;
+    }
+
+    public void setMaxSpeculativeRequestsPerMinute(int maxSpeculativeRequestsPerMinute) {
+        this.maxSpeculativeRequestsPerMinute = maxSpeculativeRequestsPerMinute;
+    }
+
     public boolean isShowInlinePreview() {
         return showInlinePreview;
     }
@@ -168,6 +278,30 @@ public final class AICopilotSettings implements PersistentStateComponent<AICopil
         this.cacheSize = cacheSize;
     }
 
+    public int getCacheTtlMinutes() {
+        return cacheTtlMinutes;
+    }
+
+    public void setCacheTtlMinutes(int cacheTtlMinutes) {
+        this.cacheTtlMinutes = cacheTtlMinutes;
+    }
+
+    public boolean isEnablePersistentCache() {
+        return enablePersistentCache;
+    }
+
+    public void setEnablePersistentCache(boolean enablePersistentCache) {
+        this.enablePersistentCache = enablePersistentCache;
+    }
+
+    public int getPersistentCacheSizeMb() {
+        return persistentCacheSizeMb;
+    }
+
+    public void setPersistentCacheSizeMb(int persistentCacheSizeMb) {
+        this.persistentCacheSizeMb = persistentCacheSizeMb;
+    }
+
     public int getRequestTimeout() {
         return requestTimeout;
     }
@@ -176,6 +310,38 @@ public final class AICopilotSettings implements PersistentStateComponent<AICopil
         this.requestTimeout = requestTimeout;
     }
 
+    public boolean isEnableHedging() {
+        return enableHedging;
+    }
+
+    public void setEnableHedging(boolean enableHedging) {
+        this.enableHedging = enableHedging;
+    }
+
+    public int getHedgeBudgetPercent() {
+        return hedgeBudgetPercent;
+    }
+
+    public void setHedgeBudgetPercent(int hedgeBudgetPercent) {
+        this.hedgeBudgetPercent = hedgeBudgetPercent;
+    }
+
+    public int getMaxRequestsPerMinute() {
+        return maxRequestsPerMinute;
+    }
+
+    public void setMaxRequestsPerMinute(int maxRequestsPerMinute) {
+        this.maxRequestsPerMinute = maxRequestsPerMinute;
+    }
+
+    public int getMaxTokensPerMinute() {
+        return maxTokensPerMinute;
+    }
+
+    public void setMaxTokensPerMinute(int maxTokensPerMinute) {
+        this.maxTokensPerMinute = maxTokensPerMinute;
+    }
+
     public boolean isSendFileContext() {
         return sendFileContext;
     }
@@ -204,9 +370,11 @@ public final class AICopilotSettings implements PersistentStateComponent<AICopil
      * Validates current settings
      */
     public boolean isConfigurationValid() {
-        return switch (aiProvider) {
-            case OPENAI -> openAIApiKey != null && !openAIApiKey.trim().isEmpty();
-            case CLAUDE -> claudeApiKey != null && !claudeApiKey.trim().isEmpty();
+        String provider = aiProvider != null ? aiProvider.toLowerCase(Locale.ROOT) : OpenAIBackend.ID;
+        return switch (provider) {
+            case ClaudeBackend.ID -> claudeApiKey != null && !claudeApiKey.trim().isEmpty();
+            case LocalCompletionBackend.ID -> enableLocalBackend && localBaseUrl != null && !localBaseUrl.trim().isEmpty();
+            default -> openAIApiKey != null && !openAIApiKey.trim().isEmpty();
         };
     }
 
@@ -214,20 +382,38 @@ public final class AICopilotSettings implements PersistentStateComponent<AICopil
      * Resets settings to defaults
      */
     public void resetToDefaults() {
-        aiProvider = AIService.AIProvider.OPENAI;
+        aiProvider = OpenAIBackend.ID;
         openAIApiKey = "";
         claudeApiKey = "";
+        openAIBaseUrl = "https://api.openai.com/v1";
+        openAIModel = "gpt-4";
+        claudeBaseUrl = "https://api.anthropic.com/v1";
+        claudeModel = "claude-3-sonnet-20240229";
+        enableLocalBackend = false;
+        localBaseUrl = "http://localhost:11434/v1";
+        localModel = "qwen2.5-coder:1.5b";
         enableAutoCompletion = true;
         enableCommentCompletion = true;
         enableCodeCompletion = true;
         completionDelay = 300;
         maxCompletionLength = 150;
+        enableStreaming = true;
+        maxCandidates = 3;
+        enableSpeculativePrefetch = true;
+        maxSpeculativeRequestsPerMinute = 6;
         showInlinePreview = true;
         showAIBadge = true;
         enableSuggestionSounds = false;
         enableCaching = true;
         cacheSize = 100;
+        cacheTtlMinutes = 30;
+        enablePersistentCache = true;
+        persistentCacheSizeMb = 16;
         requestTimeout = 5000;
+        enableHedging = false;
+        hedgeBudgetPercent = 10;
+        maxRequestsPerMinute = 60;
+        maxTokensPerMinute = 40000;
         sendFileContext = true;
         sendProjectContext = false;
         logRequests = false;
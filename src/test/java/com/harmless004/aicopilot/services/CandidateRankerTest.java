@@ -0,0 +1,59 @@
+package com.harmless004.aicopilot.services;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CandidateRankerTest {
+
+    @Test
+    public void mergesCandidatesThatDifferOnlyInWhitespace() {
+        List<String> ranked = CandidateRanker.rank(List.of("foo(a, b);", "foo(a,  b);\n", "  "), null);
+
+        assertEquals(List.of("foo(a, b);"), ranked);
+    }
+
+    @Test
+    public void dropsNullAndBlankCandidates() {
+        assertEquals(List.of(), CandidateRanker.rank(Arrays.asList(null, "", " \n"), null));
+    }
+
+    @Test
+    public void prefersBalancedBrackets() {
+        List<String> ranked = CandidateRanker.rank(List.of("call(a, (b);", "call(a, b);"), null);
+
+        assertEquals("call(a, b);", ranked.get(0));
+    }
+
+    @Test
+    public void mismatchedPairsRankBelowUnmatchedClosers() {
+        // Closing a bracket opened before the cursor is legitimate, a crossed pair is not
+        List<String> ranked = CandidateRanker.rank(List.of("a[b)", "b)"), null);
+
+        assertEquals("b)", ranked.get(0));
+    }
+
+    @Test
+    public void bracketsInsideLiteralsAreIgnored() {
+        List<String> ranked = CandidateRanker.rank(List.of("log(\"(\" + x);", "log(x;"), null);
+
+        assertEquals("log(\"(\" + x);", ranked.get(0));
+    }
+
+    @Test
+    public void penalizesRepeatingTheCodeAfterTheCursor() {
+        List<String> ranked = CandidateRanker.rank(List.of("next = cur.next", "next = cur.prev"), "  .next;\n}");
+
+        assertEquals("next = cur.prev", ranked.get(0));
+    }
+
+    @Test
+    public void tiesKeepTheBackendOrder() {
+        List<String> ranked = CandidateRanker.rank(List.of("alpha", "gamma", "delta"), null);
+
+        assertEquals(List.of("alpha", "gamma", "delta"), ranked);
+    }
+}
@@ -0,0 +1,103 @@
+package com.harmless004.aicopilot.services;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CodeScannerTest {
+
+    private static final String SOURCE = String.join("\n",
+            "package com.example;",
+            "",
+            "import java.util.List;",
+            "// import commented.Out;",
+            "import java.util.Map;",
+            "",
+            "public class Example {",
+            "    private String brace = \"{\";",
+            "    /* { not a brace */",
+            "    public int compute(int a) {",
+            "        int b = a * 2; // trailing {",
+            "        return b;",
+            "    }",
+            "}");
+
+    @Test
+    public void collectsDependenciesFromTheHeadSkippingComments() {
+        CodeScanner.Result result = CodeScanner.scan(SOURCE, 0);
+
+        assertEquals(List.of("package com.example;", "import java.util.List;", "import java.util.Map;"),
+                result.getDependencies());
+    }
+
+    @Test
+    public void countsBracesOutsideLiteralsAndComments() {
+        CodeScanner.Result result = CodeScanner.scan(SOURCE, SOURCE.indexOf("return b;"));
+
+        assertEquals(2, result.getBraceDepth());
+        assertTrue(result.isClassSeen());
+        assertTrue(result.isMethodSignatureSeen());
+        assertFalse(result.isInComment());
+    }
+
+    @Test
+    public void listsNearbyDeclarationsNearestFirst() {
+        List<CodeScanner.Declaration> declarations =
+                CodeScanner.scan(SOURCE, SOURCE.indexOf("return b;")).getDeclarations();
+
+        assertEquals(2, declarations.size());
+        assertEquals(CodeScanner.Declaration.Kind.METHOD, declarations.get(0).kind);
+        assertEquals("public int compute(int a) {", declarations.get(0).text);
+        assertEquals(CodeScanner.Declaration.Kind.CLASS, declarations.get(1).kind);
+        assertEquals(6, declarations.get(1).line);
+    }
+
+    @Test
+    public void detectsCommentsAtTheOffset() {
+        assertTrue(CodeScanner.scan(SOURCE, SOURCE.indexOf("not a brace")).isInComment());
+        assertTrue(CodeScanner.scan(SOURCE, SOURCE.indexOf("trailing")).isInComment());
+        assertFalse(CodeScanner.scan(SOURCE, SOURCE.indexOf("int b")).isInComment());
+    }
+
+    @Test
+    public void textBlocksHideBraces() {
+        String text = "void f() {\n    String s = \"\"\"\n        { {\n        \"\"\";\n    x\n}";
+
+        assertEquals(1, CodeScanner.scan(text, text.indexOf("x")).getBraceDepth());
+    }
+
+    @Test
+    public void classifiesDeclarations() {
+        assertEquals(CodeScanner.Declaration.Kind.FUNCTION, kindOf("def handler(event):"));
+        assertEquals(CodeScanner.Declaration.Kind.FUNCTION, kindOf("export function load(url) {"));
+        assertEquals(CodeScanner.Declaration.Kind.CLASS, kindOf("data class Point(val x: Int)"));
+        assertNull(kindOf("// public void commented() {"));
+        assertNull(kindOf("call(a, b);"));
+    }
+
+    @Test
+    public void declarationsFurtherThanTheWindowAreDropped() {
+        StringBuilder text = new StringBuilder("public void far() {\n");
+        for (int i = 0; i < 30; i++) {
+            text.append("    step();\n");
+        }
+        text.append("    x");
+
+        assertTrue(CodeScanner.scan(text, text.length()).getDeclarations().isEmpty());
+    }
+
+    @Test
+    public void offsetsOutsideTheTextAreClamped() {
+        assertEquals(0, CodeScanner.scan("{ }", 100).getBraceDepth());
+        assertEquals(0, CodeScanner.scan("", -5).getBraceDepth());
+    }
+
+    private static CodeScanner.Declaration.Kind kindOf(String line) {
+        return CodeScanner.declarationKind(line, 0, line.length());
+    }
+}
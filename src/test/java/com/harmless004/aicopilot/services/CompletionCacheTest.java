@@ -0,0 +1,97 @@
+package com.harmless004.aicopilot.services;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompletionCacheTest {
+
+    @Test
+    public void returnsStoredValue() {
+        CompletionCache cache = new CompletionCache(10, Duration.ofMinutes(1));
+        cache.put("key", "value");
+
+        assertEquals("value", cache.get("key"));
+        assertNull(cache.get("other"));
+        assertEquals(1, cache.getStats().getHitCount());
+        assertEquals(1, cache.getStats().getMissCount());
+    }
+
+    @Test
+    public void expiredEntriesAreMisses() throws InterruptedException {
+        CompletionCache cache = new CompletionCache(10, Duration.ofMillis(1));
+        cache.put("key", "value");
+        Thread.sleep(5);
+
+        assertNull(cache.get("key"));
+        assertEquals(1, cache.getStats().getExpirationCount());
+    }
+
+    @Test
+    public void staysWithinItsByteCapacity() {
+        CompletionCache cache = new CompletionCache(8, Duration.ZERO);
+        String value = "x".repeat(CompletionCache.BYTES_PER_ENTRY / 4);
+        for (int i = 0; i < 200; i++) {
+            cache.put("key" + i, value);
+        }
+
+        CompletionCache.Stats stats = cache.getStats();
+        assertTrue(stats.getWeightBytes() <= stats.getMaximumWeightBytes());
+        assertTrue(stats.getEvictionCount() + stats.getRejectedCount() > 0);
+    }
+
+    @Test
+    public void frequentlyUsedEntrySurvivesAScan() {
+        CompletionCache cache = new CompletionCache(16, Duration.ZERO);
+        String value = "x".repeat(CompletionCache.BYTES_PER_ENTRY / 4);
+        cache.put("hot", value);
+        for (int i = 0; i < 20; i++) {
+            assertNotNull(cache.get("hot"));
+        }
+
+        // One-off keys must not flush an entry with a high estimated frequency; the scan is kept
+        // shorter than the sketch's sample period so that the hot entry's count does not decay
+        for (int i = 0; i < 100; i++) {
+            cache.put("scan" + i, value);
+        }
+        assertEquals(value, cache.get("hot"));
+    }
+
+    @Test
+    public void shrinkingEvictsImmediately() {
+        CompletionCache cache = new CompletionCache(64, Duration.ZERO);
+        String value = "x".repeat(CompletionCache.BYTES_PER_ENTRY / 4);
+        for (int i = 0; i < 64; i++) {
+            cache.put("key" + i, value);
+        }
+
+        cache.resize(2);
+        CompletionCache.Stats stats = cache.getStats();
+        assertTrue(stats.getWeightBytes() <= 2L * CompletionCache.BYTES_PER_ENTRY);
+    }
+
+    @Test
+    public void oversizedValueIsNotCached() {
+        CompletionCache cache = new CompletionCache(1, Duration.ZERO);
+        cache.put("key", "x".repeat(4 * CompletionCache.BYTES_PER_ENTRY));
+
+        assertNull(cache.get("key"));
+        assertEquals(0, cache.getStats().getSize());
+    }
+
+    @Test
+    public void invalidateAllEmptiesTheCache() {
+        CompletionCache cache = new CompletionCache(10, Duration.ZERO);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.invalidateAll();
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getStats().getWeightBytes());
+    }
+}
@@ -0,0 +1,133 @@
+package com.harmless004.aicopilot.services;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Floods the platform-thread fallback executor, on its own and behind the scheduler the way
+ * AIService uses it, and checks that the thread count stays flat and nothing is lost.
+ */
+public class CompletionExecutorLoadTest {
+
+    private static final int THREADS = 12;
+    private static final int QUEUED = 12;
+    private static final int REQUESTS = 500;
+    private static final String THREAD_PREFIX = "AI Copilot completion ";
+
+    private final ExecutorService executor = AIService.createBoundedExecutor(THREADS, QUEUED);
+
+    @After
+    public void tearDown() throws InterruptedException {
+        // Workers of this executor must be gone before the next test counts threads
+        executor.shutdownNow();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void overflowIsRejectedInsteadOfQueuedWithoutBound() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        int rejected = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            try {
+                executor.execute(() -> awaitQuietly(release));
+            } catch (RejectedExecutionException e) {
+                rejected++;
+            }
+        }
+
+        assertEquals(REQUESTS - THREADS - QUEUED, rejected);
+        assertTrue(countWorkerThreads() <= THREADS);
+        release.countDown();
+    }
+
+    @Test
+    public void threadCountStaysFlatBehindTheScheduler() throws InterruptedException {
+        CompletionMetrics metrics = new CompletionMetrics();
+        CompletionScheduler scheduler = new CompletionScheduler(executor, 4, 32, metrics, 60_000);
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger shed = new AtomicInteger();
+        AtomicInteger peakThreads = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(REQUESTS);
+
+        // Hundreds of callers submitting at once, each request occupying a worker for a while
+        Thread[] callers = new Thread[50];
+        for (int c = 0; c < callers.length; c++) {
+            callers[c] = new Thread(() -> {
+                for (int i = 0; i < REQUESTS / callers.length; i++) {
+                    CompletableFuture<String> lifetime = new CompletableFuture<>();
+                    scheduler.submit(CompletionRequest.Priority.AUTOMATIC, () -> {
+                        peakThreads.accumulateAndGet(countWorkerThreads(), Math::max);
+                        sleepQuietly(2);
+                        completed.incrementAndGet();
+                        lifetime.complete("done");
+                        done.countDown();
+                    }, lifetime, () -> {
+                        shed.incrementAndGet();
+                        lifetime.complete(null);
+                        done.countDown();
+                    });
+                }
+            });
+            callers[c].start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+
+        assertTrue("every request must finish or be shed", done.await(30, TimeUnit.SECONDS));
+        assertEquals(REQUESTS, completed.get() + shed.get());
+        assertEquals(shed.get(), metrics.getQueueShed());
+        assertTrue("peak of " + peakThreads.get() + " worker threads", peakThreads.get() <= THREADS);
+    }
+
+    @Test
+    public void submissionsAfterShutdownAreShedNotThrown() {
+        CompletionScheduler scheduler = new CompletionScheduler(executor, 4, 32, new CompletionMetrics(), 60_000);
+        executor.shutdownNow();
+
+        AtomicInteger shed = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            scheduler.submit(CompletionRequest.Priority.MANUAL, () -> { }, new CompletableFuture<>(),
+                    shed::incrementAndGet);
+        }
+
+        assertEquals(10, shed.get());
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    private static int countWorkerThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(THREAD_PREFIX) && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
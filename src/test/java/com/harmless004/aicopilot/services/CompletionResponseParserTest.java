@@ -0,0 +1,162 @@
+package com.harmless004.aicopilot.services;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class CompletionResponseParserTest {
+
+    @Test
+    public void escapedQuotesDoNotTruncateTheCompletion() throws IOException {
+        // The former indexOf-based parser stopped at the first quote of the content
+        String body = "{\"choices\":[{\"message\":{\"role\":\"assistant\","
+                + "\"content\":\"System.out.println(\\\"a \\\\\\\"quoted\\\\\\\" word\\\");\"}}]}";
+
+        assertEquals("System.out.println(\"a \\\"quoted\\\" word\");",
+                CompletionResponseParser.parseOpenAIResponse(new StringReader(body)));
+    }
+
+    @Test
+    public void decodesUnicodeAndControlEscapes() throws IOException {
+        String body = "{\"content\":[{\"type\":\"text\",\"text\":\"caf\\u00e9\\n\\tx = \\\"\\ud83d\\ude00\\\";\"}]}";
+
+        assertEquals("caf\u00e9\n\tx = \"\ud83d\ude00\";", CompletionResponseParser.parseClaudeResponse(new StringReader(body)));
+    }
+
+    @Test
+    public void readsEveryChoiceInOrder() throws IOException {
+        String body = "{\"id\":\"x\",\"choices\":["
+                + "{\"index\":0,\"message\":{\"content\":\"first\"}},"
+                + "{\"index\":1,\"message\":{\"content\":null}},"
+                + "{\"index\":2,\"message\":{\"content\":\"third\"}}],"
+                + "\"usage\":{\"total_tokens\":12}}";
+
+        assertEquals(List.of("first", "third"), CompletionResponseParser.parseOpenAICandidates(new StringReader(body)));
+        assertEquals("first", CompletionResponseParser.parseOpenAIResponse(new StringReader(body)));
+    }
+
+    @Test
+    public void concatenatesClaudeTextBlocksAndSkipsOthers() throws IOException {
+        String body = "{\"content\":[{\"type\":\"text\",\"text\":\"a\"},"
+                + "{\"type\":\"tool_use\",\"text\":\"ignored\",\"input\":{}},{\"type\":\"text\",\"text\":\"b\"}]}";
+
+        assertEquals("ab", CompletionResponseParser.parseClaudeResponse(new StringReader(body)));
+    }
+
+    @Test
+    public void readsStreamedDeltas() throws IOException {
+        assertEquals("re\"t", CompletionResponseParser.parseOpenAIStreamEvent(
+                "{\"choices\":[{\"index\":0,\"delta\":{\"content\":\"re\\\"t\"},\"finish_reason\":null}]}"));
+        assertNull(CompletionResponseParser.parseOpenAIStreamEvent(
+                "{\"choices\":[{\"index\":0,\"delta\":{\"role\":\"assistant\"}}]}"));
+        assertNull(CompletionResponseParser.parseOpenAIStreamEvent("{\"choices\":[]}"));
+
+        assertEquals("urn", CompletionResponseParser.parseClaudeStreamEvent(
+                "{\"type\":\"content_block_delta\",\"index\":0,\"delta\":{\"type\":\"text_delta\",\"text\":\"urn\"}}"));
+        assertNull(CompletionResponseParser.parseClaudeStreamEvent(
+                "{\"type\":\"message_start\",\"message\":{\"content\":[]}}"));
+        assertNull(CompletionResponseParser.parseClaudeStreamEvent(
+                "{\"type\":\"error\",\"error\":{\"type\":\"overloaded_error\"}}"));
+    }
+
+    @Test
+    public void readsStreamedDeltasOfSeveralChoicesByIndex() throws IOException {
+        // With n > 1 every chunk tags its choices with their index, and chunks of different choices interleave
+        assertEquals(Map.of(2, "b", 0, "a"), CompletionResponseParser.parseOpenAIStreamChoices(
+                "{\"choices\":[{\"index\":2,\"delta\":{\"content\":\"b\"}},"
+                        + "{\"index\":0,\"delta\":{\"content\":\"a\"}}]}"));
+        assertEquals(Map.of(1, "x"), CompletionResponseParser.parseOpenAIStreamChoices(
+                "{\"choices\":[{\"index\":0,\"delta\":{\"role\":\"assistant\"}},"
+                        + "{\"index\":1,\"delta\":{\"content\":\"x\"},\"finish_reason\":null}]}"));
+        assertEquals(Map.of(0, "p", 1, "q"), CompletionResponseParser.parseOpenAIStreamChoices(
+                "{\"choices\":[{\"delta\":{\"content\":\"p\"}},{\"delta\":{\"content\":\"q\"}}]}"));
+        assertTrue(CompletionResponseParser.parseOpenAIStreamChoices("{\"choices\":[],\"usage\":null}").isEmpty());
+    }
+
+    @Test
+    public void allocatesLessThanBufferingAndBuildingATree() throws IOException {
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+        assumeTrue("allocation counting is not supported by this JVM", threads != null);
+
+        byte[] body = largeResponse().getBytes(StandardCharsets.UTF_8);
+        int iterations = 200;
+        for (int i = 0; i < iterations; i++) {
+            // Warm both paths up so that interpreter allocations do not skew the comparison
+            parseBuffered(body);
+            parseStreaming(body);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            parseBuffered(body);
+        }
+        long buffered = (threads.getThreadAllocatedBytes(threadId) - start) / iterations;
+
+        start = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            parseStreaming(body);
+        }
+        long streaming = (threads.getThreadAllocatedBytes(threadId) - start) / iterations;
+
+        assertTrue("streaming parser allocated " + streaming + " bytes per response, buffered " + buffered,
+                streaming < buffered / 2);
+    }
+
+    /**
+     * The former path: the whole body as a String, then a JSON tree to pick the content out of
+     */
+    private static String parseBuffered(byte[] body) {
+        String text = new String(body, StandardCharsets.UTF_8);
+        JsonObject response = JsonParser.parseString(text).getAsJsonObject();
+        return response.getAsJsonArray("choices").get(0).getAsJsonObject()
+                .getAsJsonObject("message").get("content").getAsString();
+    }
+
+    private static String parseStreaming(byte[] body) throws IOException {
+        InputStream stream = new ByteArrayInputStream(body);
+        return CompletionResponseParser.parseOpenAIResponse(new InputStreamReader(stream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A response with token log probabilities, whose metadata dwarfs the completion text
+     */
+    private static String largeResponse() {
+        StringBuilder logprobs = new StringBuilder();
+        for (int i = 0; i < 150; i++) {
+            if (i > 0) {
+                logprobs.append(',');
+            }
+            logprobs.append("{\"token\":\"tok").append(i).append("\",\"logprob\":-0.").append(i)
+                    .append(",\"top_logprobs\":[{\"token\":\"alt").append(i).append("\",\"logprob\":-1.5}]}");
+        }
+        return "{\"id\":\"chatcmpl-1\",\"object\":\"chat.completion\",\"choices\":[{\"index\":0,"
+                + "\"message\":{\"role\":\"assistant\",\"content\":\"return a + b;\"},"
+                + "\"logprobs\":{\"content\":[" + logprobs + "]},\"finish_reason\":\"stop\"}],"
+                + "\"usage\":{\"prompt_tokens\":512,\"completion_tokens\":150,\"total_tokens\":662}}";
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                && threads.isThreadAllocatedMemorySupported()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+            return threads;
+        }
+        return null;
+    }
+}
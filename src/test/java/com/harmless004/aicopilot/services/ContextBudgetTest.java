@@ -0,0 +1,118 @@
+package com.harmless004.aicopilot.services;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ContextBudgetTest {
+
+    @Test
+    public void keepsSectionsInInsertionOrder() {
+        ContextBudget budget = new ContextBudget(1_000);
+        budget.addFixed("File: A.java");
+        budget.addSection("Later", List.of("b"), 5, 100);
+        budget.addSection("Earlier", List.of("a"), 1, 100);
+
+        assertEquals("File: A.java\n\nLater:\nb\n\nEarlier:\na\n", budget.build());
+    }
+
+    @Test
+    public void fixedTextIsKeptEvenOverBudget() {
+        ContextBudget budget = new ContextBudget(1);
+        budget.addFixed("File: SomeRatherLongName.java\nLanguage: JAVA");
+
+        assertTrue(budget.build().startsWith("File: SomeRatherLongName.java"));
+        assertTrue(budget.getUsedTokens() > 1);
+    }
+
+    @Test
+    public void neverExceedsTheBudget() {
+        ContextBudget budget = new ContextBudget(60);
+        budget.addSection("Dependencies", lines("import com.example.pkg%d.SomeClass%d;", 40), 2, 30);
+        budget.addSection("Structure", lines("Method: public void run%d()", 10), 1, 30);
+        budget.addWindow("Code", lines("%d: doSomething(argument%d);", 21), 15, 0, 2, 0, 40);
+
+        budget.build();
+        assertTrue(budget.getUsedTokens() <= 60);
+    }
+
+    @Test
+    public void lowerPriorityFillsFirstAndUnusedAllowanceIsShared() {
+        ContextBudget budget = new ContextBudget(40);
+        budget.addSection("Short", List.of("x"), 0, 20);
+        budget.addSection("Long", lines("line%d", 50), 1, 5);
+
+        String context = budget.build();
+        // The short section leaves most of its allowance to the long one in the second pass
+        assertTrue(context.contains("Short:\nx\n"));
+        assertTrue(budget.getUsedTokens() > 25);
+        assertTrue(countLines(context, "line") > 5);
+    }
+
+    @Test
+    public void windowTakesTwoLinesBeforeForEachLineAfter() {
+        List<String> code = lines("line%d", 21);
+        int cost = TokenCounter.count("line10") + 1;
+        // Title, the focus line and six more lines
+        int allowance = TokenCounter.count("Code") + 2 + 7 * cost;
+        ContextBudget budget = new ContextBudget(allowance);
+        budget.addWindow("Code", code, 10, 0, 2, 0, allowance);
+
+        assertEquals("Code:\nline6\nline7\nline8\nline9\nline10\nline11\nline12\n", budget.build());
+    }
+
+    @Test
+    public void overlongFocusLineIsCutAroundTheFocusColumn() {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 2_000; i++) {
+            line.append("word").append(i).append(' ');
+        }
+        int column = line.length() / 2;
+        line.insert(column, "CARET");
+        List<String> code = List.of("before", line.toString(), "after");
+
+        ContextBudget budget = new ContextBudget(50);
+        budget.addWindow("Code", code, 1, column, 2, 0, 50);
+        String context = budget.build();
+
+        assertTrue(budget.getUsedTokens() <= 50);
+        assertTrue(context.contains("CARET"));
+        assertFalse(context.contains("before"));
+        String kept = context.substring("Code:\n".length(), context.length() - 1);
+        assertTrue(line.toString().contains(kept));
+        // About two characters are kept before the column for every one after it
+        int caret = kept.indexOf("CARET");
+        assertTrue(caret > kept.length() / 2);
+    }
+
+    @Test
+    public void focusLineThatFitsIsNotCut() {
+        ContextBudget budget = new ContextBudget(1_000);
+        budget.addWindow("Code", List.of("int x = foo();"), 0, 8, 2, 0, 100);
+
+        assertEquals("Code:\nint x = foo();\n", budget.build());
+    }
+
+    private static List<String> lines(String format, int count) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            lines.add(String.format(format, i, i));
+        }
+        return lines;
+    }
+
+    private static int countLines(String text, String prefix) {
+        int count = 0;
+        for (String line : text.split("\n")) {
+            if (line.startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,74 @@
+package com.harmless004.aicopilot.services;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InFlightCompletionTest {
+
+    @Test
+    public void lateSubscriberReceivesReplayThenLiveDeltas() {
+        InFlightCompletion flight = new InFlightCompletion();
+        StringBuilder first = new StringBuilder();
+        StringBuilder second = new StringBuilder();
+
+        flight.subscribe(first::append);
+        flight.publish("foo");
+        flight.subscribe(second::append);
+        flight.publish("bar");
+
+        assertEquals("foobar", first.toString());
+        assertEquals("foobar", second.toString());
+    }
+
+    @Test
+    public void sharedRequestIsCancelledOnlyWhenEveryCallerCancels() {
+        InFlightCompletion flight = new InFlightCompletion();
+        CompletableFuture<String> first = flight.subscribe(delta -> { });
+        CompletableFuture<String> second = flight.subscribe(delta -> { });
+
+        first.cancel(true);
+        assertFalse(flight.getShared().isCancelled());
+
+        second.cancel(true);
+        assertTrue(flight.getShared().isCancelled());
+    }
+
+    @Test
+    public void subscribeAfterCompletionReturnsNull() {
+        InFlightCompletion flight = new InFlightCompletion();
+        flight.getShared().complete("done");
+
+        assertNull(flight.subscribe(delta -> { }));
+    }
+
+    @Test
+    public void listenerRunsWithoutHoldingTheFlightLock() throws Exception {
+        InFlightCompletion flight = new InFlightCompletion();
+        CountDownLatch joined = new CountDownLatch(1);
+
+        // A listener that waits for another thread to join would deadlock if called under the lock
+        flight.subscribe(delta -> {
+            Thread other = new Thread(() -> {
+                flight.subscribe(ignored -> { });
+                joined.countDown();
+            });
+            other.start();
+            try {
+                assertTrue(joined.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        flight.publish("x");
+        assertEquals(0, joined.getCount());
+    }
+}
@@ -0,0 +1,55 @@
+package com.harmless004.aicopilot.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramHasNoPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram(60_000);
+
+        assertEquals(-1, histogram.percentile(0.5));
+        assertEquals(0, histogram.count());
+    }
+
+    @Test
+    public void percentilesAreWithinOneBucket() {
+        LatencyHistogram histogram = new LatencyHistogram(60_000);
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.count());
+        assertWithinBucket(500, histogram.percentile(0.50));
+        assertWithinBucket(900, histogram.percentile(0.90));
+        assertWithinBucket(990, histogram.percentile(0.99));
+    }
+
+    @Test
+    public void outliersAreClampedToTheLargestBucket() {
+        LatencyHistogram histogram = new LatencyHistogram(60_000);
+        histogram.record(10 * 60_000);
+
+        assertTrue(histogram.percentile(1.0) >= 120_000);
+    }
+
+    @Test
+    public void samplesAgeOutAfterTwoWindows() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram(200);
+        histogram.record(100);
+        Thread.sleep(250);
+        assertEquals("kept for the second window", 1, histogram.count());
+
+        Thread.sleep(500);
+        assertEquals(0, histogram.count());
+    }
+
+    private static void assertWithinBucket(long expected, long actual) {
+        // Buckets are about 10% wide and percentiles report the upper bound
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected * 1.11);
+    }
+}
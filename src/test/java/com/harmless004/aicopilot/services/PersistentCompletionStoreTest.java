@@ -0,0 +1,50 @@
+package com.harmless004.aicopilot.services;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PersistentCompletionStoreTest {
+
+    private static final long CAPACITY = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void survivesReopening() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PersistentCompletionStore store = new PersistentCompletionStore(directory, CAPACITY, Duration.ofHours(1));
+        store.put("key", "value");
+        store.close();
+
+        PersistentCompletionStore reopened = new PersistentCompletionStore(directory, CAPACITY, Duration.ofHours(1));
+        assertTrue(reopened.open());
+        assertEquals("value", reopened.get("key"));
+        assertNull(reopened.get("other"));
+        reopened.close();
+    }
+
+    @Test
+    public void compactionKeepsTheNewestEntries() throws Exception {
+        PersistentCompletionStore store = new PersistentCompletionStore(folder.getRoot().toPath(), CAPACITY,
+                Duration.ofHours(1));
+        String value = "x".repeat(200);
+        // Several times the capacity, so the log is compacted repeatedly
+        for (int i = 0; i < 2_000; i++) {
+            store.put("key" + i, value + i);
+        }
+
+        assertEquals(value + 1_999, store.get("key1999"));
+        assertEquals(value + 1_990, store.get("key1990"));
+        assertNull(store.get("key0"));
+        store.close();
+    }
+}
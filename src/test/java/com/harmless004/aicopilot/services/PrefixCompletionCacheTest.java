@@ -0,0 +1,64 @@
+package com.harmless004.aicopilot.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PrefixCompletionCacheTest {
+
+    @Test
+    public void returnsRemainderWhileTypingThroughSuggestion() {
+        PrefixCompletionCache cache = new PrefixCompletionCache();
+        cache.put("ctx", "int x = ", "compute(a, b);");
+
+        assertEquals("compute(a, b);", cache.lookup("ctx", "int x = "));
+        assertEquals("pute(a, b);", cache.lookup("ctx", "int x = com"));
+        assertEquals(";", cache.lookup("ctx", "int x = compute(a, b)"));
+    }
+
+    @Test
+    public void divergingOrFinishedTextHasNoContinuation() {
+        PrefixCompletionCache cache = new PrefixCompletionCache();
+        cache.put("ctx", "int x = ", "compute();");
+
+        assertNull(cache.lookup("ctx", "int x = cond"));
+        assertNull(cache.lookup("ctx", "int x = compute();"));
+    }
+
+    @Test
+    public void prefixShorterThanWhereTheSuggestionStartedIsNotOffered() {
+        PrefixCompletionCache cache = new PrefixCompletionCache();
+        cache.put("ctx", "int x = ", "compute();");
+
+        assertNull(cache.lookup("ctx", "int x"));
+    }
+
+    @Test
+    public void contextsAreSeparate() {
+        PrefixCompletionCache cache = new PrefixCompletionCache();
+        cache.put("a", "foo", "Bar()");
+
+        assertNull(cache.lookup("b", "foo"));
+    }
+
+    @Test
+    public void mostRecentSuggestionWinsAfterEdgeSplit() {
+        PrefixCompletionCache cache = new PrefixCompletionCache();
+        cache.put("ctx", "call", "First()");
+        cache.put("ctx", "call", "Fresh()");
+
+        assertEquals("Fresh()", cache.lookup("ctx", "call"));
+        assertEquals("rst()", cache.lookup("ctx", "callFi"));
+        assertEquals("esh()", cache.lookup("ctx", "callFr"));
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        PrefixCompletionCache cache = new PrefixCompletionCache();
+        cache.put("ctx", "a", "b");
+        cache.clear();
+
+        assertNull(cache.lookup("ctx", "a"));
+    }
+}
@@ -0,0 +1,73 @@
+package com.harmless004.aicopilot.services;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProviderCallTest {
+
+    private static final Duration CAP = Duration.ofSeconds(30);
+
+    private final ProviderLatency latency = new ProviderLatency("test", 60_000);
+    private final ProviderCircuitBreaker breaker = new ProviderCircuitBreaker((from, to) -> {
+    });
+
+    @Test
+    public void deadlineCappedTimeoutsLeaveTheBreakerClosed() {
+        // The request spent most of its deadline queued: far less is left than the provider's budget
+        long remaining = TimeUnit.MILLISECONDS.toNanos(50);
+        for (int i = 0; i < 10; i++) {
+            ProviderCall call = new ProviderCall(latency, null, breaker, System.nanoTime(), CAP, remaining);
+            assertTrue(call.headersTimeout.toNanos() <= remaining);
+
+            if (i % 2 == 0) {
+                call.headersTimedOut();
+            } else {
+                call.bodyTimedOut();
+            }
+            assertTrue(call.timedOut);
+            call.recordFailure();
+        }
+
+        assertTrue(breaker.allowsRequests());
+    }
+
+    @Test
+    public void providerBudgetTimeoutsOpenTheBreaker() {
+        for (int i = 0; i < 5; i++) {
+            ProviderCall call = new ProviderCall(latency, null, breaker, System.nanoTime(), CAP, Long.MAX_VALUE);
+            call.bodyTimedOut();
+            call.recordFailure();
+        }
+
+        assertFalse(breaker.allowsRequests());
+    }
+
+    @Test
+    public void otherFailuresCountEvenNearTheDeadline() {
+        for (int i = 0; i < 5; i++) {
+            ProviderCall call = new ProviderCall(latency, null, breaker, System.nanoTime(), CAP,
+                    TimeUnit.MILLISECONDS.toNanos(50));
+            call.recordFailure(); // For example a 5xx response
+        }
+
+        assertFalse(breaker.allowsRequests());
+    }
+
+    @Test
+    public void timeoutsAreTheShorterOfBudgetAndDeadline() {
+        long start = System.nanoTime();
+        ProviderCall unbounded = new ProviderCall(latency, null, breaker, start, CAP, Long.MAX_VALUE);
+        assertEquals(latency.headersTimeout(CAP), unbounded.headersTimeout);
+        assertEquals(start + latency.totalTimeout(CAP).toNanos(), unbounded.bodyDeadlineNanos);
+
+        ProviderCall capped = new ProviderCall(latency, null, breaker, start, CAP, 1_000);
+        assertEquals(Duration.ofNanos(1_000), capped.headersTimeout);
+        assertEquals(start + 1_000, capped.bodyDeadlineNanos);
+    }
+}
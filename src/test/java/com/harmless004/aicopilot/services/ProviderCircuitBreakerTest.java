@@ -0,0 +1,93 @@
+package com.harmless004.aicopilot.services;
+
+import com.harmless004.aicopilot.services.CircuitBreakerListener.State;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProviderCircuitBreakerTest {
+
+    private final List<String> transitions = new ArrayList<>();
+    private final ProviderCircuitBreaker breaker =
+            new ProviderCircuitBreaker((from, to) -> transitions.add(from + "->" + to));
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        for (int i = 0; i < 4; i++) {
+            breaker.recordFailure();
+        }
+        assertTrue(breaker.allowsRequests());
+
+        breaker.recordFailure();
+        assertFalse(breaker.allowsRequests());
+        assertEquals(List.of("CLOSED->OPEN"), transitions);
+    }
+
+    @Test
+    public void opensWhenHalfOfTheRecentCallsFailed() {
+        for (int i = 0; i < 5; i++) {
+            breaker.recordSuccess();
+            breaker.recordFailure();
+        }
+
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void successesResetTheConsecutiveCount() {
+        for (int i = 0; i < 20; i++) {
+            breaker.recordFailure();
+            breaker.recordSuccess();
+            breaker.recordSuccess();
+        }
+
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void successfulProbeCloses() {
+        trip();
+        assertTrue(breaker.startProbe());
+        assertFalse("only one probe at a time", breaker.startProbe());
+        breaker.probeSucceeded();
+
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(List.of("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED"), transitions);
+
+        // The failure window starts over after recovery
+        breaker.recordFailure();
+        assertTrue(breaker.allowsRequests());
+    }
+
+    @Test
+    public void failedProbeReopensForTwiceAsLong() {
+        trip();
+        long openNanos = breaker.getOpenNanos();
+        breaker.startProbe();
+        breaker.probeFailed();
+
+        assertEquals(State.OPEN, breaker.getState());
+        assertEquals(2 * openNanos, breaker.getOpenNanos());
+    }
+
+    @Test
+    public void lateResultsWhileOpenAreIgnored() {
+        trip();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+
+        assertEquals(State.OPEN, breaker.getState());
+        assertEquals(1, transitions.size());
+    }
+
+    private void trip() {
+        for (int i = 0; i < 5; i++) {
+            breaker.recordFailure();
+        }
+    }
+}
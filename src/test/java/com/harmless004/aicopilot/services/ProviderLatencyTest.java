@@ -0,0 +1,54 @@
+package com.harmless004.aicopilot.services;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProviderLatencyTest {
+
+    private static final Duration CAP = Duration.ofSeconds(5);
+
+    @Test
+    public void usesTheCapUntilThereAreEnoughSamples() {
+        ProviderLatency latency = new ProviderLatency("test", 60_000);
+        latency.getTotal().record(100);
+
+        assertEquals(CAP, latency.totalTimeout(CAP));
+    }
+
+    @Test
+    public void derivesTimeoutFromObservedLatency() {
+        ProviderLatency latency = recordFastCalls();
+
+        Duration timeout = latency.totalTimeout(CAP);
+        assertTrue(timeout.toMillis() >= 500 && timeout.toMillis() < 1000);
+    }
+
+    @Test
+    public void timeoutsWidenTheDerivedTimeout() {
+        ProviderLatency latency = recordFastCalls();
+        long tight = latency.totalTimeout(CAP).toMillis();
+
+        // A provider that slowed down keeps hitting the tight timeout; its censored samples must count
+        for (int i = 0; i < 5; i++) {
+            latency.recordTimeout(tight, true, false);
+        }
+
+        assertTrue(latency.totalTimeout(CAP).toMillis() >= 2 * tight);
+        assertTrue(latency.getFirstToken().percentile(0.99) >= tight);
+        assertEquals("headers had arrived", 100, latency.getHeaders().count());
+    }
+
+    private static ProviderLatency recordFastCalls() {
+        ProviderLatency latency = new ProviderLatency("test", 60_000);
+        for (int i = 0; i < 100; i++) {
+            latency.getHeaders().record(100);
+            latency.getFirstToken().record(150);
+            latency.getTotal().record(300);
+        }
+        return latency;
+    }
+}
@@ -0,0 +1,104 @@
+package com.harmless004.aicopilot.services;
+
+import org.junit.Test;
+
+import java.net.http.HttpHeaders;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProviderRateLimiterTest {
+
+    private static final CompletionRequest.Priority MANUAL = CompletionRequest.Priority.MANUAL;
+    private static final CompletionRequest.Priority AUTOMATIC = CompletionRequest.Priority.AUTOMATIC;
+    private static final CompletionRequest.Priority SPECULATIVE = CompletionRequest.Priority.SPECULATIVE;
+
+    @Test
+    public void automaticRequestsLeaveAReserveForManualOnes() {
+        ProviderRateLimiter limiter = new ProviderRateLimiter("test", 4, 100_000);
+
+        assertEquals(0, limiter.tryAcquire(AUTOMATIC, 10));
+        assertEquals(0, limiter.tryAcquire(AUTOMATIC, 10));
+        assertEquals(0, limiter.tryAcquire(AUTOMATIC, 10));
+        assertEquals("last quarter is reserved", ProviderRateLimiter.SHED, limiter.tryAcquire(AUTOMATIC, 10));
+        assertEquals(0, limiter.tryAcquire(MANUAL, 10));
+    }
+
+    @Test
+    public void speculativeRequestsStopAtHalf() {
+        ProviderRateLimiter limiter = new ProviderRateLimiter("test", 4, 100_000);
+
+        assertEquals(0, limiter.tryAcquire(SPECULATIVE, 10));
+        assertEquals(0, limiter.tryAcquire(SPECULATIVE, 10));
+        assertEquals(ProviderRateLimiter.SHED, limiter.tryAcquire(SPECULATIVE, 10));
+    }
+
+    @Test
+    public void manualRequestsAreToldHowLongToWait() {
+        ProviderRateLimiter limiter = new ProviderRateLimiter("test", 60, 100_000);
+        for (int i = 0; i < 60; i++) {
+            assertEquals(0, limiter.tryAcquire(MANUAL, 1));
+        }
+
+        long wait = limiter.tryAcquire(MANUAL, 1);
+        assertTrue(wait > 0 && wait <= TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void tokenBudgetIsEnforced() {
+        ProviderRateLimiter limiter = new ProviderRateLimiter("test", 100, 1000);
+
+        assertEquals(0, limiter.tryAcquire(AUTOMATIC, 700));
+        assertEquals(ProviderRateLimiter.SHED, limiter.tryAcquire(AUTOMATIC, 100));
+    }
+
+    @Test
+    public void retryAfterBlocksEveryPriority() {
+        ProviderRateLimiter limiter = new ProviderRateLimiter("test", 60, 100_000);
+        limiter.onResponse(429, headers(Map.of("retry-after", List.of("30"))));
+
+        assertEquals(ProviderRateLimiter.SHED, limiter.tryAcquire(AUTOMATIC, 1));
+        long wait = limiter.tryAcquire(MANUAL, 1);
+        assertTrue(wait > TimeUnit.SECONDS.toNanos(29) && wait <= TimeUnit.SECONDS.toNanos(30));
+    }
+
+    @Test
+    public void throttlingWithoutHintBacksOffExponentially() {
+        ProviderRateLimiter limiter = new ProviderRateLimiter("test", 60, 100_000);
+        limiter.onResponse(429, headers(Map.of()));
+        long first = limiter.tryAcquire(MANUAL, 1);
+        limiter.onResponse(429, headers(Map.of()));
+        long second = limiter.tryAcquire(MANUAL, 1);
+
+        assertTrue(first > 0 && first <= TimeUnit.SECONDS.toNanos(1));
+        assertTrue(second > first);
+    }
+
+    @Test
+    public void providerHeadersLowerTheBuckets() {
+        ProviderRateLimiter limiter = new ProviderRateLimiter("test", 60, 100_000);
+        limiter.onResponse(200, headers(Map.of(
+                "x-ratelimit-remaining-requests", List.of("0"),
+                "x-ratelimit-reset-requests", List.of("6m0s"))));
+
+        assertEquals(ProviderRateLimiter.SHED, limiter.tryAcquire(AUTOMATIC, 1));
+        assertTrue(limiter.tryAcquire(MANUAL, 1) > TimeUnit.MINUTES.toNanos(5));
+    }
+
+    @Test
+    public void anthropicHeadersAreUnderstood() {
+        ProviderRateLimiter limiter = new ProviderRateLimiter("test", 60, 100_000);
+        limiter.onResponse(200, headers(Map.of(
+                "anthropic-ratelimit-tokens-limit", List.of("1000"),
+                "anthropic-ratelimit-tokens-remaining", List.of("100"))));
+
+        assertEquals(ProviderRateLimiter.SHED, limiter.tryAcquire(AUTOMATIC, 50));
+    }
+
+    private static HttpHeaders headers(Map<String, List<String>> values) {
+        return HttpHeaders.of(values, (name, value) -> true);
+    }
+}
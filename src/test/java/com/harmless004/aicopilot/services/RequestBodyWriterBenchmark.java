@@ -0,0 +1,87 @@
+package com.harmless004.aicopilot.services;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.http.HttpRequest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the single-pass request body encoding with the former escapeJson and String.format
+ * path, which built the prompt, escaped it in five replace passes, formatted it into a template
+ * and encoded the result again in the body publisher. Run with
+ * {@code ./gradlew benchmark -Pbenchmark=RequestBodyWriterBenchmark -Pprofiler=gc} to compare the
+ * allocation rate as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBodyWriterBenchmark {
+
+    @Param({"2000", "16000"})
+    public int contextLength;
+
+    private CompletionRequest request;
+
+    @Setup
+    public void setUp() {
+        String line = "        String value = map.get(\"key\\n\"); // caf\u00e9\n";
+        StringBuilder context = new StringBuilder(contextLength + line.length());
+        while (context.length() < contextLength) {
+            context.append(line);
+        }
+        request = new CompletionRequest(context.toString(), "        return value.");
+    }
+
+    @Benchmark
+    public HttpRequest.BodyPublisher writer() {
+        return RequestBodyWriter.openAI("gpt-4", request, 150, true, 1);
+    }
+
+    @Benchmark
+    public HttpRequest.BodyPublisher formatted() {
+        String prompt = "Complete the following code. Provide only the completion, no explanations:\n\n"
+                + "Context:\n" + request.getCodeContext()
+                + "\n\nCurrent line to complete:\n" + request.getCurrentLine()
+                + "\n\nCompletion:";
+        String body = String.format("""
+                {
+                    "model": "%s",
+                    "messages": [
+                        {
+                            "role": "system",
+                            "content": "You are a code completion assistant. Provide clean, accurate code completions without explanations."
+                        },
+                        {
+                            "role": "user",
+                            "content": "%s"
+                        }
+                    ],
+                    "max_tokens": %d,
+                    "temperature": 0.1,
+                    "stream": %s
+                }
+                """, "gpt-4", escapeJson(prompt), 150, true);
+        return HttpRequest.BodyPublishers.ofString(body);
+    }
+
+    private static String escapeJson(String text) {
+        return text.replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n")
+                .replace("\r", "\\r")
+                .replace("\t", "\\t");
+    }
+}
@@ -0,0 +1,144 @@
+package com.harmless004.aicopilot.services;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Flow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestBodyWriterTest {
+
+    private static final String TRICKY = "say(\"hi\"); path = \"C:\\\\dir\\\\\"; // \\u0041 \t\r\n"
+            + "caf\u00e9 \u20ac \ud83d\ude00 \u0000\u0001\u001f\b\f\u007f";
+
+    @Test
+    public void openAIBodyIsValidJsonWithTheExactPrompt() {
+        CompletionRequest request = new CompletionRequest(TRICKY, "int \"x\" = \\");
+        JsonObject body = parse(RequestBodyWriter.openAI("gpt-\"4\"", request, 150, true, 3));
+
+        assertEquals("gpt-\"4\"", body.get("model").getAsString());
+        assertEquals(expectedPrompt(request),
+                body.getAsJsonArray("messages").get(1).getAsJsonObject().get("content").getAsString());
+        assertEquals(150, body.get("max_tokens").getAsInt());
+        assertEquals(3, body.get("n").getAsInt());
+        assertTrue(body.get("stream").getAsBoolean());
+    }
+
+    @Test
+    public void claudeBodyIsValidJsonWithTheExactPrompt() {
+        CompletionRequest request = new CompletionRequest(TRICKY, "");
+        JsonObject body = parse(RequestBodyWriter.claude("claude", request, 64, false));
+
+        assertEquals(expectedPrompt(request),
+                body.getAsJsonArray("messages").get(0).getAsJsonObject().get("content").getAsString());
+        assertFalse(body.get("stream").getAsBoolean());
+    }
+
+    @Test
+    public void everyControlCharacterIsEscaped() {
+        StringBuilder controls = new StringBuilder();
+        for (char c = 0; c < 0x20; c++) {
+            controls.append(c);
+        }
+        CompletionRequest request = new CompletionRequest(controls.toString(), "");
+        String json = new String(bytesOf(RequestBodyWriter.openAI("m", request, 1, false, 1)), StandardCharsets.UTF_8);
+
+        for (int i = 0; i < json.length(); i++) {
+            assertTrue("raw control character at " + i, json.charAt(i) >= 0x20);
+        }
+        assertEquals(expectedPrompt(request), parse(json).getAsJsonArray("messages").get(1).getAsJsonObject()
+                .get("content").getAsString());
+    }
+
+    @Test
+    public void surrogatePairsAreEncodedAsOneFourByteSequence() {
+        CompletionRequest request = new CompletionRequest("\ud83d\ude00", "");
+        byte[] body = bytesOf(RequestBodyWriter.claude("m", request, 1, false));
+        byte[] emoji = "\ud83d\ude00".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(4, emoji.length);
+        assertTrue(indexOf(body, emoji) >= 0);
+    }
+
+    @Test
+    public void unpairedSurrogatesAreReplacedLikeStringGetBytes() {
+        CompletionRequest request = new CompletionRequest("a\ud83db\ude00c", "");
+        JsonObject body = parse(RequestBodyWriter.claude("m", request, 1, false));
+
+        String prompt = body.getAsJsonArray("messages").get(0).getAsJsonObject().get("content").getAsString();
+        assertTrue(prompt.contains("a?b?c"));
+    }
+
+    @Test
+    public void promptLengthMatchesThePrompt() {
+        CompletionRequest request = new CompletionRequest(TRICKY, "line");
+
+        assertEquals(expectedPrompt(request).length(), RequestBodyWriter.promptLength(request));
+    }
+
+    private static String expectedPrompt(CompletionRequest request) {
+        return "Complete the following code. Provide only the completion, no explanations:\n\nContext:\n"
+                + request.getCodeContext() + "\n\nCurrent line to complete:\n" + request.getCurrentLine()
+                + "\n\nCompletion:";
+    }
+
+    private static JsonObject parse(HttpRequest.BodyPublisher publisher) {
+        return parse(new String(bytesOf(publisher), StandardCharsets.UTF_8));
+    }
+
+    private static JsonObject parse(String json) {
+        return JsonParser.parseString(json).getAsJsonObject();
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Drains a body publisher synchronously; byte array publishers emit on the subscribing thread
+     */
+    static byte[] bytesOf(HttpRequest.BodyPublisher publisher) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        publisher.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                byte[] chunk = new byte[item.remaining()];
+                item.get(chunk);
+                bytes.write(chunk, 0, chunk.length);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throw new AssertionError(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        assertEquals(publisher.contentLength(), bytes.size());
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,165 @@
+package com.harmless004.aicopilot.services;
+
+import com.intellij.openapi.editor.Document;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScopeIndexTest {
+
+    private static final String SOURCE = """
+            package a;
+            public class Foo {
+              private int x;
+              public void bar(int y)
+              {
+                if (y > 0) {
+                  x++; // }
+                }
+              }
+              /* { */
+              class Inner {
+                String s = "{";
+                public int get() {
+                  return 1;
+                }
+              }
+            }
+            """;
+
+    @Test
+    public void findsEnclosingMethodAndClass() {
+        TextDocument text = new TextDocument(SOURCE);
+        ScopeIndex index = new ScopeIndex(text.document);
+
+        ScopeIndex.Scope scope = index.scopeAt(text.document, SOURCE.indexOf("x++"));
+        assertEquals(3, scope.getDepth());
+        assertEquals(3, scope.getMethodLine()); // The brace on its own line belongs to the signature
+        assertEquals(1, scope.getClassLine());
+        assertFalse(scope.isInComment());
+
+        scope = index.scopeAt(text.document, SOURCE.indexOf("return"));
+        assertEquals(3, scope.getDepth());
+        assertEquals(12, scope.getMethodLine());
+        assertEquals(10, scope.getClassLine());
+
+        scope = index.scopeAt(text.document, SOURCE.indexOf("String s"));
+        assertEquals(2, scope.getDepth());
+        assertEquals(-1, scope.getMethodLine());
+        assertEquals(10, scope.getClassLine());
+
+        assertTrue(index.scopeAt(text.document, SOURCE.indexOf("/* {") + 3).isInComment());
+        assertTrue(index.scopeAt(text.document, SOURCE.indexOf("// }") + 3).isInComment());
+        assertEquals(0, index.scopeAt(text.document, 0).getDepth());
+    }
+
+    @Test
+    public void incrementalUpdatesMatchFreshBuild() {
+        String[] pieces = {"{", "}", "\n", "/*", "*/", "//", "\"", "\"\"\"", "class A ", "public void m() ", "x",
+                "\n  ", "if (a) ", "private int f(int q) {\n", "}\n"};
+        Random random = new Random(42);
+        TextDocument text = new TextDocument(SOURCE);
+        ScopeIndex index = new ScopeIndex(text.document);
+
+        for (int iteration = 0; iteration < 5_000; iteration++) {
+            // Several edits are recorded before each catch-up, the way keystrokes pile up between queries
+            int edits = 1 + random.nextInt(4);
+            for (int edit = 0; edit < edits; edit++) {
+                int offset = random.nextInt(text.text.length() + 1);
+                int length = Math.min(random.nextInt(4), text.text.length() - offset);
+                StringBuilder inserted = new StringBuilder();
+                for (int i = random.nextInt(3); i > 0; i--) {
+                    inserted.append(pieces[random.nextInt(pieces.length)]);
+                }
+                String removed = text.replace(offset, length, inserted.toString());
+                index.changed(text.document, offset, removed, inserted);
+            }
+            if (text.text.length() > 3_000) {
+                text.replace(1_000, text.text.length() - 1_000, "");
+                index.invalidate();
+            }
+
+            assertTrue(index.catchUp(text.document));
+            ScopeIndex fresh = new ScopeIndex(text.document);
+            assertEquals(fresh.getLineCount(), index.getLineCount());
+            for (int offset = 0; offset <= text.text.length(); offset += 1 + random.nextInt(7)) {
+                assertEquals("iteration " + iteration + ", offset " + offset + " of:\n" + text.text,
+                        describe(fresh.scopeAt(text.document, offset)), describe(index.scopeAt(text.document, offset)));
+            }
+        }
+    }
+
+    @Test
+    public void refusesDocumentsThatOutgrowTheLimit() {
+        TextDocument text = new TextDocument("class A {\n}\n");
+        ScopeIndex index = new ScopeIndex(text.document);
+
+        String lines = "\n".repeat(ScopeIndex.MAX_LINES);
+        text.replace(0, 0, lines);
+        index.changed(text.document, 0, "", lines);
+
+        assertFalse(index.catchUp(text.document));
+    }
+
+    private static String describe(ScopeIndex.Scope scope) {
+        return scope.getDepth() + "/" + scope.getMethodLine() + "/" + scope.getClassLine() + "/"
+                + scope.isClassBefore() + "/" + scope.isInComment();
+    }
+
+    /**
+     * Mutable text behind a {@link Document} that answers the line queries the index makes
+     */
+    private static final class TextDocument {
+        String text;
+        final Document document;
+
+        TextDocument(String text) {
+            this.text = text;
+            this.document = (Document) Proxy.newProxyInstance(Document.class.getClassLoader(),
+                    new Class<?>[]{Document.class}, (proxy, method, args) -> switch (method.getName()) {
+                        case "getImmutableCharSequence", "getCharsSequence", "getText" -> this.text;
+                        case "getTextLength" -> this.text.length();
+                        case "getLineCount" -> lineNumber(this.text.length()) + 1;
+                        case "getLineNumber" -> lineNumber((Integer) args[0]);
+                        case "getLineStartOffset" -> lineStart((Integer) args[0]);
+                        case "getLineEndOffset" -> lineEnd((Integer) args[0]);
+                        default -> throw new UnsupportedOperationException(method.getName());
+                    });
+        }
+
+        /** Replaces the range and returns the text it held */
+        String replace(int offset, int length, String replacement) {
+            String removed = text.substring(offset, offset + length);
+            text = text.substring(0, offset) + replacement + text.substring(offset + length);
+            return removed;
+        }
+
+        private int lineNumber(int offset) {
+            int line = 0;
+            for (int i = 0; i < offset; i++) {
+                if (text.charAt(i) == '\n') {
+                    line++;
+                }
+            }
+            return line;
+        }
+
+        private int lineStart(int line) {
+            int offset = 0;
+            for (; line > 0; line--) {
+                offset = text.indexOf('\n', offset) + 1;
+            }
+            return offset;
+        }
+
+        private int lineEnd(int line) {
+            int end = text.indexOf('\n', lineStart(line));
+            return end < 0 ? text.length() : end;
+        }
+    }
+}
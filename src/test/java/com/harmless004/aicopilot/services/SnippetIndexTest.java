@@ -0,0 +1,124 @@
+package com.harmless004.aicopilot.services;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SnippetIndexTest {
+
+    @Test
+    public void fingerprintsAreDistinctIdentifierPairs() {
+        String text = "a.b(c); a.b(c);";
+        int[] fingerprints = SnippetIndex.fingerprints(text, 0, text.length());
+
+        // a-b, b-c, c-a; the repetition adds nothing new
+        assertEquals(3, fingerprints.length);
+        assertEquals(3, new HashSet<>(List.of(fingerprints[0], fingerprints[1], fingerprints[2])).size());
+    }
+
+    @Test
+    public void fingerprintsIgnorePunctuationAndLayout() {
+        String compact = "foo(bar,baz)";
+        String spread = "foo (\n    bar,\n    baz\n)";
+
+        assertArrayEquals(SnippetIndex.fingerprints(compact, 0, compact.length()),
+                SnippetIndex.fingerprints(spread, 0, spread.length()));
+    }
+
+    @Test
+    public void fingerprintsDependOnOrder() {
+        String forward = "alpha beta";
+        String backward = "beta alpha";
+
+        assertNotEquals(SnippetIndex.fingerprints(forward, 0, forward.length())[0],
+                SnippetIndex.fingerprints(backward, 0, backward.length())[0]);
+    }
+
+    @Test
+    public void fingerprintsOfRangeOnlySeeTheRange() {
+        String text = "one two three four";
+        int start = text.indexOf("two");
+        int end = text.indexOf(" four");
+        String range = text.substring(start, end);
+
+        assertArrayEquals(SnippetIndex.fingerprints(range, 0, range.length()),
+                SnippetIndex.fingerprints(text, start, end));
+        assertEquals(0, SnippetIndex.fingerprints(text, 0, 3).length);
+    }
+
+    @Test
+    public void identifiersAreSortedAndDistinct() {
+        String text = "x = y + x * 2;";
+        int[] identifiers = SnippetIndex.identifiers(text, 0, text.length());
+
+        assertEquals(2, identifiers.length);
+        assertTrue(identifiers[0] < identifiers[1]);
+    }
+
+    @Test
+    public void lineStartsFollowLineBreaks() {
+        assertArrayEquals(new int[]{0}, SnippetIndex.lineStarts(""));
+        assertArrayEquals(new int[]{0, 2, 3}, SnippetIndex.lineStarts("a\n\nb"));
+        assertEquals(201, SnippetIndex.lineStarts("x\n".repeat(200)).length);
+    }
+
+    @Test
+    public void shortFileIsOneWindow() {
+        String text = "int a = b;\nint c = d;\n";
+        Map<Integer, int[]> postings = SnippetIndex.index(text);
+
+        int[] fingerprints = SnippetIndex.fingerprints(text, 0, text.length());
+        assertEquals(fingerprints.length, postings.size());
+        for (int fingerprint : fingerprints) {
+            assertArrayEquals(new int[]{0, fingerprints.length}, postings.get(fingerprint));
+        }
+    }
+
+    @Test
+    public void postingsMatchFingerprintsOfOverlappingWindows() {
+        StringBuilder text = new StringBuilder();
+        for (int line = 0; line < 100; line++) {
+            text.append("value").append(line % 7).append(" = compute(input").append(line % 5).append(");\n");
+        }
+        Map<Integer, int[]> postings = SnippetIndex.index(text);
+
+        // Recompute every window directly and compare with what the postings say about it
+        int[] lineStarts = SnippetIndex.lineStarts(text);
+        Map<Integer, Set<Integer>> expected = new HashMap<>();
+        Map<Integer, Integer> sizes = new HashMap<>();
+        for (int window = 0, line = 0; line < lineStarts.length; window++, line += SnippetIndex.WINDOW_STEP) {
+            int end = line + SnippetIndex.WINDOW_LINES < lineStarts.length
+                    ? lineStarts[line + SnippetIndex.WINDOW_LINES] : text.length();
+            int[] fingerprints = SnippetIndex.fingerprints(text, lineStarts[line], end);
+            sizes.put(window, fingerprints.length);
+            for (int fingerprint : fingerprints) {
+                expected.computeIfAbsent(fingerprint, key -> new HashSet<>()).add(window);
+            }
+            if (line + SnippetIndex.WINDOW_LINES >= lineStarts.length) {
+                break;
+            }
+        }
+
+        assertEquals(expected.keySet(), postings.keySet());
+        for (Map.Entry<Integer, int[]> posting : postings.entrySet()) {
+            int[] entries = posting.getValue();
+            Set<Integer> windows = new HashSet<>();
+            for (int i = 0; i < entries.length; i += 2) {
+                assertTrue(windows.add(entries[i]));
+                assertEquals((int) sizes.get(entries[i]), entries[i + 1]);
+            }
+            assertEquals(expected.get(posting.getKey()), windows);
+        }
+        // 101 lines in windows of 12 every 6 lines
+        assertEquals(16, sizes.size());
+    }
+}
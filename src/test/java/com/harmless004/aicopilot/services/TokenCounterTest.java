@@ -0,0 +1,47 @@
+package com.harmless004.aicopilot.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TokenCounterTest {
+
+    @Test
+    public void emptyTextHasNoTokens() {
+        assertEquals(0, TokenCounter.count(""));
+    }
+
+    @Test
+    public void wordsAbsorbTheirLeadingSpace() {
+        assertEquals(2, TokenCounter.count("hello world"));
+    }
+
+    @Test
+    public void camelCasePartsAndLongWordsCostExtra() {
+        // get + Completion (10 letters) + Candidates (10 letters)
+        assertEquals(5, TokenCounter.count("getCompletionCandidates"));
+        assertEquals(3, TokenCounter.count("internationalization"));
+    }
+
+    @Test
+    public void digitsAreGroupedInThrees() {
+        assertEquals(3, TokenCounter.count("12345678"));
+    }
+
+    @Test
+    public void contractionsAreOneToken() {
+        assertEquals(2, TokenCounter.count("don't"));
+    }
+
+    @Test
+    public void singleSpaceMergesIntoFollowingPunctuation() {
+        assertEquals(1, TokenCounter.count(" ;"));
+        assertEquals(3, TokenCounter.count("a  ;"));
+    }
+
+    @Test
+    public void indentationRunIsOneToken() {
+        assertEquals(4, TokenCounter.count("        return x;"));
+        assertEquals(1, TokenCounter.count("\n\n"));
+    }
+}